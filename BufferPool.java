@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Pool de buffers diretos de tamanho fixo para montar quadros de envio.
+// Cada thread segura no máximo os quadros de uma rodada (um quantum do escalonador mais as
+// paridades, ou os reenvios de um SACK; ver SendWindow.flush), então o pool só cresce até isso
+// vezes o número de threads enviando ao mesmo tempo. Quadros adiados com a fila de dados cheia ficam
+// com a janela até o próximo tique. Buffers excedentes são descartados na devolução.
+public class BufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int capacity, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf.capacity() == bufferSize) {
+            free.offer(buf);
+        }
+    }
+
+    public int getBufferSize() { return bufferSize; }
+}
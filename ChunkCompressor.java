@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compressão opcional por chunk do protocolo binário ("zip=deflate" no OFFER).
+// O remetente só a oferece com -Dlabredes.compress=deflate; o receptor sempre aceita.
+// Cada chunk é comprimido sozinho (Deflate cru, sem cabeçalho zlib) e o quadro leva FLAG_DEFLATE,
+// então perdas e retransmissões não dependem de outros chunks. Chunks que não encolhem ao menos
+// 1/16 vão crus, sem a flag. A compressão roda num pool com uma thread por núcleo e Deflaters
+// reutilizados; o receptor descomprime no próprio worker de recepção, antes da escrita.
+public class ChunkCompressor {
+    public static final String CODEC = "deflate";
+    public static final boolean ENABLED = CODEC.equalsIgnoreCase(System.getProperty("labredes.compress"));
+    private static final int LEVEL = Integer.getInteger("labredes.compressLevel", Deflater.BEST_SPEED);
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<ByteBuffer> RAW =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TransferOptions.MAX_CHUNK));
+    // Trabalho de CPU: threads de plataforma (ver Threads), uma por núcleo
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), Threads.platformFactory("Compressor-"));
+
+    public static void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    // Lê o chunk 'seq' e o grava em dst a partir de dst.position(), comprimido se compensar.
+    // Deixa dst.position() no fim dos dados; retorna true se eles estão comprimidos.
+    public static boolean pack(ChunkSource source, int seq, ByteBuffer dst, boolean tryDeflate) throws IOException {
+        if (!tryDeflate) {
+            source.read(seq, dst);
+            return false;
+        }
+        ByteBuffer raw = RAW.get();
+        raw.clear();
+        int length = source.read(seq, raw);
+        raw.position(0);
+        int start = dst.position();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            dst.limit(start + length - length / 16);
+            while (!deflater.finished() && dst.hasRemaining()) {
+                deflater.deflate(dst);
+            }
+            if (deflater.finished()) {
+                return true;
+            }
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+        // Incompressível: vai cru
+        raw.position(0);
+        dst.limit(dst.capacity()).position(start);
+        dst.put(raw);
+        return false;
+    }
+
+    // Descomprime src (position..limit) em dst a partir de dst.position()
+    public static void unpack(ByteBuffer src, ByteBuffer dst) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(src);
+        while (!inflater.finished()) {
+            if (inflater.inflate(dst) == 0 && (inflater.needsInput() || inflater.needsDictionary() || !dst.hasRemaining())) {
+                throw new DataFormatException("chunk comprimido truncado");
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// Arquivo em envio lido sob demanda: um chunk é identificado só por (seq, offset, tamanho)
+// e o conteúdo é relido com FileChannel.read posicional a cada envio ou retransmissão.
+// Assim a memória do remetente não depende do tamanho do arquivo.
+// O MD5 do arquivo é calculado na mesma passada: cada chunk lido pela primeira vez em ordem
+// alimenta o digest, e o END não precisa reler o arquivo.
+public class ChunkSource implements Closeable {
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final MessageDigest md5 = FileUtils.newMD5();
+    private int hashedUpTo;   // todos os chunks até este seq já entraram no digest
+    private String md5Hex;
+
+    public ChunkSource(File file, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+    }
+
+    public long getSize() { return size; }
+    public int getChunkSize() { return chunkSize; }
+
+    public int getTotalChunks() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public long offsetOf(int seq) {
+        return (seq - 1L) * chunkSize;
+    }
+
+    public int lengthOf(int seq) {
+        return (int) Math.min(chunkSize, size - offsetOf(seq));
+    }
+
+    // Lê o chunk 'seq' em dst a partir de dst.position(); retorna o número de bytes lidos
+    public int read(int seq, ByteBuffer dst) throws IOException {
+        long position = offsetOf(seq);
+        int length = lengthOf(seq);
+        int start = dst.position();
+        dst.limit(start + length);
+        while (dst.hasRemaining()) {
+            int r = channel.read(dst, position + (dst.position() - start));
+            if (r < 0) {
+                throw new EOFException("Arquivo encolheu durante o envio (seq=" + seq + ")");
+            }
+        }
+        synchronized (md5) {
+            if (seq == hashedUpTo + 1) {
+                dst.position(start);
+                md5.update(dst);
+                hashedUpTo = seq;
+            }
+        }
+        return length;
+    }
+
+    // MD5 do arquivo inteiro. Se algum chunk ainda não passou pelo digest (leituras fora de ordem),
+    // só o restante é lido aqui.
+    public String md5Hex() throws IOException {
+        synchronized (md5) {
+            if (md5Hex == null) {
+                ByteBuffer buf = ByteBuffer.allocate(chunkSize);
+                while (hashedUpTo < getTotalChunks()) {
+                    buf.clear();
+                    read(hashedUpTo + 1, buf);
+                }
+                md5Hex = FileUtils.toHex(md5.digest());
+            }
+            return md5Hex;
+        }
+    }
+
+    // Monta o "CHUNK id seq base64" do protocolo de texto para o chunk 'seq'
+    public String textChunk(String id, int seq) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(lengthOf(seq));
+        read(seq, buf);
+        return "CHUNK " + id + " " + seq + " " + Base64.getEncoder().encodeToString(buf.array());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,423 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// Sincronização por diferença (no estilo do rsync) para arquivos que o receptor já tem em uma
+// versão anterior.
+// O receptor guarda a cópia antiga como received_<nome>.basis ao receber o FILE. Se o remetente
+// ofereceu "delta=1", o ACCEPT volta com "delta=<bloco> basis=<tamanho>" e o receptor envia a
+// assinatura de cada bloco inteiro da base em quadros SIG: checksum fraco rolante (4 bytes) e os
+// 8 primeiros bytes do MD5 do bloco. O remetente percorre o arquivo novo com o checksum rolante
+// (o MD5 só é calculado quando o fraco coincide) e grava um delta com as operações
+//   COPY:    op(1)=0 bloco(4) quantidade(4)   blocos consecutivos da base
+//   LITERAL: op(1)=1 tamanho(4) dados         bytes novos
+// Depois do "DELTA <id> <tamanho>" o delta segue como um arquivo comum (janela, SACK, CRC, FEC,
+// compressão) e o receptor o aplica sobre a base no END. O MD5 do END continua sendo o do
+// arquivo novo, conferido sobre o resultado da aplicação.
+public class DeltaSync {
+    // -Dlabredes.delta=false deixa de oferecer o delta como remetente (o receptor sempre aceita)
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("labredes.delta", "true"));
+    public static final int SIG_SIZE = 12;
+    public static final int SIGS_PER_FRAME = 100;
+    private static final int STRONG_SIZE = 8;
+    private static final int MIN_BLOCK = 2048;
+    private static final int MAX_BLOCK = 64 * 1024;
+    // Literais são divididos neste tamanho (o receptor recusa maiores)
+    private static final int MAX_LITERAL = 64 * 1024;
+    // O delta só é enviado se for menor que esta fração do arquivo
+    private static final double MAX_RATIO = 0.9;
+    private static final int OP_COPY = 0;
+    private static final int OP_LITERAL = 1;
+
+    // Delta gerado pelo remetente: arquivo temporário, tamanho e MD5 do arquivo novo
+    public static class Delta {
+        public final File file;
+        public final long size;
+        public final String md5;
+        public long literalBytes;
+        public long copiedBlocks;
+
+        Delta(File file, long size, String md5) {
+            this.file = file;
+            this.size = size;
+            this.md5 = md5;
+        }
+    }
+
+    // Quadros SIG recebidos pelo remetente de uma transferência, pelo índice (seq)
+    public static class Signatures {
+        private final Map<Integer, byte[]> frames = new HashMap<>();
+
+        public synchronized void onFrame(FrameCodec.Frame frame) {
+            if (frame.seq < 0 || frame.length % SIG_SIZE != 0 || frames.containsKey(frame.seq)) return;
+            byte[] payload = new byte[frame.length];
+            frame.copyPayload(payload, 0);
+            frames.put(frame.seq, payload);
+            notifyAll();
+        }
+
+        // Espera até ter 'count' quadros ou passar 'millis' sem nenhum novo; retorna quantos tem
+        public synchronized int await(int count, long millis) throws InterruptedException {
+            int before = frames.size();
+            long deadline = System.currentTimeMillis() + millis;
+            while (frames.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                wait(left);
+                if (frames.size() > before) {
+                    before = frames.size();
+                    deadline = System.currentTimeMillis() + millis;
+                }
+            }
+            return frames.size();
+        }
+
+        public synchronized BitSet missing(int count) {
+            BitSet missing = new BitSet();
+            for (int i = 0; i < count; i++) {
+                if (!frames.containsKey(i)) missing.set(i);
+            }
+            return missing;
+        }
+
+        // Tabela contínua das assinaturas de 'blocks' blocos
+        public synchronized byte[] assemble(int blocks) {
+            byte[] table = new byte[blocks * SIG_SIZE];
+            for (Map.Entry<Integer, byte[]> e : frames.entrySet()) {
+                int offset = e.getKey() * SIGS_PER_FRAME * SIG_SIZE;
+                int length = Math.min(e.getValue().length, table.length - offset);
+                if (length > 0) {
+                    System.arraycopy(e.getValue(), 0, table, offset, length);
+                }
+            }
+            return table;
+        }
+    }
+
+    static File basisOf(File target) {
+        return new File(target.getPath() + ".basis");
+    }
+
+    static File deltaOf(File target) {
+        return new File(target.getPath() + ".delta");
+    }
+
+    // Bloco de ~raiz do tamanho da base: poucas assinaturas em arquivos grandes e boa granularidade
+    // nos pequenos
+    public static int blockSizeFor(long basisSize) {
+        long block = (long) Math.sqrt((double) basisSize);
+        block = (block + 511) / 512 * 512;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, block));
+    }
+
+    // Só blocos inteiros têm assinatura; o resto da base nunca é referenciado
+    public static int blockCount(long basisSize, int block) {
+        return (int) (basisSize / block);
+    }
+
+    public static int frameCount(long basisSize, int block) {
+        return (blockCount(basisSize, block) + SIGS_PER_FRAME - 1) / SIGS_PER_FRAME;
+    }
+
+    // Checksum fraco do rsync: a = soma dos bytes, b = soma ponderada pela distância ao fim
+    private static int weak(int a, int b) {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    // Receptor: calcula as assinaturas da base em 'sigs' e chama onFrame(i) a cada quadro completo
+    public static void sign(File basis, int block, byte[] sigs, IntConsumer onFrame) throws IOException {
+        int blocks = sigs.length / SIG_SIZE;
+        MessageDigest md5 = FileUtils.newMD5();
+        byte[] buf = new byte[block];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(basis), Math.max(block, 64 * 1024))) {
+            for (int i = 0; i < blocks; i++) {
+                readFully(in, buf, block);
+                int a = 0;
+                int b = 0;
+                for (int k = 0; k < block; k++) {
+                    int x = buf[k] & 0xff;
+                    a += x;
+                    b += (block - k) * x;
+                }
+                ByteBuffer.wrap(sigs, i * SIG_SIZE, 4).putInt(weak(a, b));
+                md5.update(buf, 0, block);
+                System.arraycopy(md5.digest(), 0, sigs, i * SIG_SIZE + 4, STRONG_SIZE);
+                if ((i + 1) % SIGS_PER_FRAME == 0 || i + 1 == blocks) {
+                    onFrame.accept(i / SIGS_PER_FRAME);
+                }
+            }
+        }
+    }
+
+    // Remetente: gera o delta de 'src' contra as assinaturas em 'out'. Retorna null (e apaga 'out')
+    // se o delta não ficar menor que MAX_RATIO do arquivo.
+    public static Delta encode(File src, byte[] sigs, int block, File out) throws IOException {
+        int blocks = sigs.length / SIG_SIZE;
+        // Índice das assinaturas pelo checksum fraco: cabeças de lista por hash e encadeamento
+        int mask = Integer.highestOneBit(Math.max(1, blocks) * 2) * 2 - 1;
+        int[] heads = new int[mask + 1];
+        Arrays.fill(heads, -1);
+        int[] next = new int[blocks];
+        for (int i = blocks - 1; i >= 0; i--) {
+            int slot = spread(ByteBuffer.wrap(sigs, i * SIG_SIZE, 4).getInt()) & mask;
+            next[i] = heads[slot];
+            heads[slot] = i;
+        }
+
+        MessageDigest fileMd5 = FileUtils.newMD5();
+        MessageDigest blockMd5 = FileUtils.newMD5();
+        long srcSize = src.length();
+        Encoder enc = new Encoder(out);
+        boolean done = false;
+        try (InputStream in = new FileInputStream(src)) {
+            byte[] buf = new byte[Math.max(1024 * 1024, 4 * block)];
+            int len = 0;        // bytes válidos em buf
+            int pos = 0;        // início da janela
+            int lit = 0;        // início do literal pendente
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (len - pos < block && !eof) {
+                    // Janela no fim do buffer: grava o literal pendente, compacta e lê mais
+                    enc.literal(buf, lit, pos - lit);
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    len -= pos;
+                    pos = 0;
+                    lit = 0;
+                    while (len < buf.length) {
+                        int r = in.read(buf, len, buf.length - len);
+                        if (r < 0) {
+                            eof = true;
+                            break;
+                        }
+                        fileMd5.update(buf, len, r);
+                        len += r;
+                    }
+                    continue;
+                }
+                if (len - pos < block) break;
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int k = 0; k < block; k++) {
+                        int x = buf[pos + k] & 0xff;
+                        a += x;
+                        b += (block - k) * x;
+                    }
+                    rolling = true;
+                }
+                int match = find(weak(a, b), buf, pos, block, sigs, heads, next, mask, enc.nextCopy(), blockMd5);
+                if (match >= 0) {
+                    enc.literal(buf, lit, pos - lit);
+                    enc.copy(match);
+                    pos += block;
+                    lit = pos;
+                    rolling = false;
+                    continue;
+                }
+                if (pos + block < len) {
+                    int outByte = buf[pos] & 0xff;
+                    int inByte = buf[pos + block] & 0xff;
+                    a += inByte - outByte;
+                    b += a - block * outByte;
+                } else {
+                    rolling = false;
+                }
+                pos++;
+                if (pos - lit >= MAX_LITERAL) {
+                    enc.literal(buf, lit, pos - lit);
+                    lit = pos;
+                }
+            }
+            enc.literal(buf, lit, len - lit);
+            enc.close();
+            if (enc.size >= srcSize * MAX_RATIO) {
+                return null;
+            }
+            Delta delta = new Delta(out, enc.size, FileUtils.toHex(fileMd5.digest()));
+            delta.literalBytes = enc.literalBytes;
+            delta.copiedBlocks = enc.copiedBlocks;
+            done = true;
+            return delta;
+        } finally {
+            enc.close();
+            if (!done) {
+                out.delete();
+            }
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // Bloco da base com o mesmo conteúdo da janela, ou -1. O bloco seguinte ao último COPY é testado
+    // primeiro para manter as cópias em sequência (uma única operação).
+    private static int find(int weak, byte[] buf, int pos, int block, byte[] sigs, int[] heads, int[] next,
+                            int mask, int preferred, MessageDigest md5) {
+        byte[] strong = null;
+        if (preferred >= 0 && preferred < next.length && weakOf(sigs, preferred) == weak) {
+            strong = strongOf(buf, pos, block, md5);
+            if (strongMatches(sigs, preferred, strong)) return preferred;
+        }
+        for (int i = heads[spread(weak) & mask]; i >= 0; i = next[i]) {
+            if (weakOf(sigs, i) != weak) continue;
+            if (strong == null) {
+                strong = strongOf(buf, pos, block, md5);
+            }
+            if (strongMatches(sigs, i, strong)) return i;
+        }
+        return -1;
+    }
+
+    private static int weakOf(byte[] sigs, int i) {
+        return ByteBuffer.wrap(sigs, i * SIG_SIZE, 4).getInt();
+    }
+
+    private static byte[] strongOf(byte[] buf, int pos, int block, MessageDigest md5) {
+        md5.update(buf, pos, block);
+        return md5.digest();
+    }
+
+    private static boolean strongMatches(byte[] sigs, int i, byte[] strong) {
+        int base = i * SIG_SIZE + 4;
+        for (int k = 0; k < STRONG_SIZE; k++) {
+            if (sigs[base + k] != strong[k]) return false;
+        }
+        return true;
+    }
+
+    // Escreve as operações do delta, juntando COPYs de blocos consecutivos
+    private static class Encoder {
+        private final DataOutputStream out;
+        long size;
+        long literalBytes;
+        long copiedBlocks;
+        private int copyStart = -1;
+        private int copyCount;
+        private boolean closed;
+
+        Encoder(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        }
+
+        // Próximo bloco que estenderia o COPY pendente (-1 se não há)
+        int nextCopy() {
+            return copyCount > 0 ? copyStart + copyCount : -1;
+        }
+
+        void copy(int blockIndex) throws IOException {
+            if (copyCount > 0 && blockIndex == copyStart + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyStart = blockIndex;
+                copyCount = 1;
+            }
+            copiedBlocks++;
+        }
+
+        void literal(byte[] buf, int off, int len) throws IOException {
+            if (len <= 0) return;
+            flushCopy();
+            for (int done = 0; done < len; ) {
+                int n = Math.min(MAX_LITERAL, len - done);
+                out.writeByte(OP_LITERAL);
+                out.writeInt(n);
+                out.write(buf, off + done, n);
+                size += 5 + n;
+                literalBytes += n;
+                done += n;
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount == 0) return;
+            out.writeByte(OP_COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            size += 9;
+            copyCount = 0;
+        }
+
+        void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                flushCopy();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Receptor: reconstrói o arquivo novo em 'target' a partir da base e do delta, e retorna o MD5
+    // do resultado. Um delta malformado (operação desconhecida, bloco fora da base, tamanho
+    // diferente do anunciado no FILE) gera IOException.
+    public static String apply(File basis, int block, File delta, File target, long size) throws IOException {
+        MessageDigest md5 = FileUtils.newMD5();
+        byte[] buf = new byte[Math.max(block, MAX_LITERAL)];
+        long written = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta), 64 * 1024));
+             FileChannel base = FileChannel.open(basis.toPath(), StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024)) {
+            long baseBlocks = base.size() / block;
+            while (true) {
+                int op = in.read();
+                if (op < 0) break;
+                if (op == OP_COPY) {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    if (first < 0 || count <= 0 || (long) first + count > baseBlocks) {
+                        throw new IOException("COPY fora da base: bloco " + first + " x" + count);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer dst = ByteBuffer.wrap(buf, 0, block);
+                        long position = (long) (first + i) * block;
+                        while (dst.hasRemaining()) {
+                            if (base.read(dst, position + dst.position()) < 0) {
+                                throw new EOFException("Base encolheu durante a aplicação do delta");
+                            }
+                        }
+                        md5.update(buf, 0, block);
+                        out.write(buf, 0, block);
+                    }
+                    written += (long) count * block;
+                } else if (op == OP_LITERAL) {
+                    int n = in.readInt();
+                    if (n <= 0 || n > MAX_LITERAL) {
+                        throw new IOException("LITERAL com tamanho inválido: " + n);
+                    }
+                    in.readFully(buf, 0, n);
+                    md5.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    written += n;
+                } else {
+                    throw new IOException("Operação de delta desconhecida: " + op);
+                }
+                if (written > size) break;
+            }
+        }
+        if (written != size) {
+            throw new IOException("Delta gera " + written + " bytes, esperado " + size);
+        }
+        return FileUtils.toHex(md5.digest());
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            int r = in.read(buf, off, len - off);
+            if (r < 0) throw new EOFException("Base encolheu durante o cálculo das assinaturas");
+            off += r;
+        }
+    }
+}
@@ -1,20 +1,102 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
 public class DeviceInfo {
+    // Limites do RTO (ms); o valor inicial segue a RFC 6298
+    private static final long INITIAL_RTO = 1000;
+    private static final long MIN_RTO = 200;
+    private static final long MAX_RTO = 60000;
+
     private final String name;
     private final String ip;
     private final int port;
-    private long lastHeartbeat;
+    // Resolvido uma única vez: todo envio ao dispositivo reutiliza o mesmo endereço
+    private final InetSocketAddress address;
+    private volatile long lastHeartbeat;
+
+    // Pertinência (modo gossip): versão do estado anunciada pelo próprio dispositivo e suspeita
+    private volatile long incarnation;
+    private volatile boolean suspect;
+    private volatile long suspectSince;
+    // Prazo de expiração no índice do DeviceRegistry
+    private TimerWheel.Timeout expiry;
+    // MTU do caminho descoberto por PathMtu (0 = sem resposta) e quando foi medido
+    private volatile int pathMtu;
+    private volatile long pathMtuAt;
+
+    // Estimativa de RTT por dispositivo (RFC 6298)
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO;
+    private long lastBackoff;
 
     public DeviceInfo(String name, String ip, int port, long lastHeartbeat) {
         this.name = name;
         this.ip = ip;
         this.port = port;
+        this.address = new InetSocketAddress(ip, port);
         this.lastHeartbeat = lastHeartbeat;
     }
 
     public String getName() { return name; }
     public String getIp() { return ip; }
     public int getPort() { return port; }
+    public InetSocketAddress getAddress() { return address; }
+    public boolean isAt(InetAddress addr, int port) { return port == this.port && address.getAddress().equals(addr); }
     public long getLastHeartbeat() { return lastHeartbeat; }
     public void setLastHeartbeat(long t) { this.lastHeartbeat = t; }
-} 
-    
+
+    public long getIncarnation() { return incarnation; }
+    public void setIncarnation(long incarnation) { this.incarnation = incarnation; }
+    public boolean isSuspect() { return suspect; }
+    public long getSuspectSince() { return suspectSince; }
+
+    public void markSuspect(long now) {
+        suspect = true;
+        suspectSince = now;
+    }
+
+    public void markAlive() {
+        suspect = false;
+    }
+
+    public int getPathMtu() { return pathMtu; }
+    public long getPathMtuAt() { return pathMtuAt; }
+
+    public void setPathMtu(int mtu, long now) {
+        pathMtu = mtu;
+        pathMtuAt = now;
+    }
+
+    TimerWheel.Timeout getExpiry() { return expiry; }
+    void setExpiry(TimerWheel.Timeout expiry) { this.expiry = expiry; }
+
+    // Só deve receber amostras de mensagens que não foram retransmitidas (regra de Karn); o chamador
+    // também as registra no histograma do seu nó (Metrics.rtt)
+    public synchronized void onRttSample(long rttMs) {
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    // Dobra o RTO após um timeout, no máximo uma vez por RTO para que uma janela
+    // inteira expirando junto não leve o valor direto ao teto
+    public synchronized void backoff(long now) {
+        if (now - lastBackoff >= rto) {
+            rto = clamp(rto * 2);
+            lastBackoff = now;
+        }
+    }
+
+    public synchronized long getRto() { return rto; }
+    public synchronized double getSrtt() { return srtt; }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+    }
+}
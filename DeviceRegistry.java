@@ -0,0 +1,96 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registro concorrente dos dispositivos conhecidos, com índice de expiração.
+// Em vez de varrer a tabela inteira periodicamente, cada dispositivo tem um prazo agendado na roda
+// de temporização. Um heartbeat só atualiza o último contato, sem tocar na roda; quando o prazo
+// vence, ele é recalculado pela política e o dispositivo é removido ou reagendado para o novo prazo.
+public class DeviceRegistry {
+    // Prazo absoluto (ms) em que o dispositivo expira; Long.MAX_VALUE = não expira
+    public interface ExpiryPolicy {
+        long deadline(DeviceInfo d);
+    }
+
+    public interface Listener {
+        void onExpired(DeviceInfo d);
+    }
+
+    private final Map<String, DeviceInfo> devices = new ConcurrentHashMap<>();
+    private final TimerWheel wheel;
+    private final ExpiryPolicy policy;
+    private final Listener listener;
+
+    public DeviceRegistry(TimerWheel wheel, ExpiryPolicy policy, Listener listener) {
+        this.wheel = wheel;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    public DeviceInfo get(String name) {
+        return devices.get(name);
+    }
+
+    public Collection<DeviceInfo> values() {
+        return devices.values();
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public boolean isEmpty() {
+        return devices.isEmpty();
+    }
+
+    // Registra o contato; retorna o dispositivo se ele é novo, ou null se já era conhecido
+    public DeviceInfo touch(String name, String ip, int port, long now) {
+        DeviceInfo existing = devices.get(name);
+        if (existing == null) {
+            DeviceInfo info = new DeviceInfo(name, ip, port, now);
+            existing = devices.putIfAbsent(name, info);
+            if (existing == null) {
+                info.setExpiry(new TimerWheel.Timeout(() -> onTimer(info)));
+                schedule(info);
+                return info;
+            }
+        }
+        existing.setLastHeartbeat(now);
+        return null;
+    }
+
+    public boolean remove(String name, DeviceInfo d) {
+        if (devices.remove(name, d)) {
+            d.getExpiry().cancel();
+            return true;
+        }
+        return false;
+    }
+
+    // Recalcula o prazo após uma mudança de estado que a política leva em conta (ex.: suspeita)
+    public void reschedule(DeviceInfo d) {
+        if (devices.get(d.getName()) == d) {
+            schedule(d);
+        }
+    }
+
+    private void schedule(DeviceInfo d) {
+        long deadline = policy.deadline(d);
+        if (deadline == Long.MAX_VALUE) {
+            d.getExpiry().cancel();
+            return;
+        }
+        wheel.schedule(d.getExpiry(), Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    private void onTimer(DeviceInfo d) {
+        if (devices.get(d.getName()) != d) return;
+        if (policy.deadline(d) <= System.currentTimeMillis()) {
+            if (devices.remove(d.getName(), d)) {
+                listener.onExpired(d);
+            }
+        } else {
+            schedule(d);
+        }
+    }
+}
@@ -1,9 +1,10 @@
 import java.io.*;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
     public static String calculateMD5(File file) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("MD5");
+        MessageDigest md = newMD5();
         try (InputStream is = new FileInputStream(file)) {
             byte[] buf = new byte[4096];
             int r;
@@ -11,7 +12,19 @@ public class FileUtils {
                 md.update(buf, 0, r);
             }
         }
-        byte[] digest = md.digest();
+        return toHex(md.digest());
+    }
+
+    // MD5 para hash incremental (o algoritmo é obrigatório em toda JVM)
+    public static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
         StringBuilder sb = new StringBuilder();
         for (byte b : digest) {
             sb.append(String.format("%02x", b));
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+
+// Codec do protocolo binário (versão 1).
+// Layout do cabeçalho fixo (big-endian, 20 bytes):
+//   magic(1) versao(1) tipo(1) flags(1) transferId(8) seq(4) tamanho(4)
+// seguido de 'tamanho' bytes de payload bruto (sem Base64).
+// O encoder e o decoder trabalham sobre ByteBuffers reutilizados e não alocam por pacote.
+public class FrameCodec {
+    // 0xB1 é um byte de continuação UTF-8, logo nunca inicia uma mensagem de texto válida
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    // Com FLAG_CRC32C o payload termina com o CRC32C (4 bytes) dos dados que o precedem
+    public static final int CRC_SIZE = 4;
+    public static final byte FLAG_CRC32C = 0x01;
+    // Com FLAG_ACK um quadro DATA leva de carona um ACK cumulativo de uma transferência no sentido
+    // oposto: transferId(8) + cumulativo(4) ao fim dos dados, antes do CRC (que também o cobre)
+    public static final int ACK_SIZE = 12;
+    public static final byte FLAG_ACK = 0x02;
+    // Com FLAG_DEFLATE os dados do chunk (antes do ACK de carona e do CRC) estão comprimidos
+    // com Deflate cru; o receptor os descomprime antes de gravar
+    public static final byte FLAG_DEFLATE = 0x04;
+    // Com FLAG_GROUP o quadro DATA é de um envio em grupo (broadcast): não é confirmado por SACK e
+    // nós que não participam o descartam em silêncio
+    public static final byte FLAG_GROUP = 0x08;
+    // Com FLAG_SWARM o quadro DATA responde a um PULL de download por conteúdo (ver Swarm):
+    // transferId vem do hash do arquivo e o chunk não é confirmado
+    public static final byte FLAG_SWARM = 0x10;
+
+    public static final byte TYPE_DATA = 1;
+    // ACK seletivo: seq = ACK cumulativo, payload = bitmap dos chunks recebidos acima dele
+    public static final byte TYPE_SACK = 2;
+    // Pedido de reenvio imediato do chunk 'seq' (CRC32C não confere)
+    public static final byte TYPE_NACK = 3;
+    // Paridade FEC: seq = primeiro chunk do grupo, payload = XOR dos dados do grupo (ver Fec)
+    public static final byte TYPE_PARITY = 4;
+    // Buracos de um receptor de envio em grupo: seq = primeiro chunk que falta (0 = nenhum),
+    // payload = rodada(4) + bitmap dos chunks seq, seq+1, ... que faltam
+    public static final byte TYPE_NAK = 5;
+    // Assinaturas dos blocos da cópia anterior do receptor (ver DeltaSync): seq = índice do quadro,
+    // payload = até 100 assinaturas de 12 bytes
+    public static final byte TYPE_SIG = 6;
+
+    // Quadro decodificado. Uma instância é reutilizada para todos os pacotes de uma thread;
+    // o payload não é copiado, apenas referenciado por (buffer, payloadOffset, length).
+    public static class Frame {
+        public byte version;
+        public byte type;
+        public byte flags;
+        public long transferId;
+        public int seq;
+        public int length;
+        public ByteBuffer buffer;
+        public int payloadOffset;
+
+        // Copia o payload para dst (dst deve ter pelo menos 'length' bytes)
+        public void copyPayload(byte[] dst, int dstOffset) {
+            if (buffer.hasArray()) {
+                System.arraycopy(buffer.array(), buffer.arrayOffset() + payloadOffset, dst, dstOffset, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    dst[dstOffset + i] = buffer.get(payloadOffset + i);
+                }
+            }
+        }
+    }
+
+    public static boolean isBinary(byte[] data, int len) {
+        return len >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    public static boolean isBinary(ByteBuffer buf) {
+        return buf.remaining() >= HEADER_SIZE && buf.get(buf.position()) == MAGIC;
+    }
+
+    // Escreve o quadro em dst (a partir do início) e deixa dst pronto para leitura (flip)
+    public static void encode(ByteBuffer dst, byte type, byte flags, long transferId, int seq,
+                              byte[] payload, int offset, int length) {
+        dst.clear();
+        putHeader(dst, type, flags, transferId, seq, length);
+        dst.put(payload, offset, length);
+        dst.flip();
+    }
+
+    // Variante que consome os bytes restantes de payload
+    public static void encode(ByteBuffer dst, byte type, byte flags, long transferId, int seq,
+                              ByteBuffer payload) {
+        dst.clear();
+        putHeader(dst, type, flags, transferId, seq, payload.remaining());
+        dst.put(payload);
+        dst.flip();
+    }
+
+    // Grava só o cabeçalho nas posições 0..HEADER_SIZE-1, para payloads lidos direto no buffer
+    // (a partir de HEADER_SIZE); deixa dst pronto para leitura com o quadro completo
+    public static void encodeHeader(ByteBuffer dst, byte type, byte flags, long transferId, int seq, int length) {
+        dst.put(0, MAGIC);
+        dst.put(1, VERSION);
+        dst.put(2, type);
+        dst.put(3, flags);
+        dst.putLong(4, transferId);
+        dst.putInt(12, seq);
+        dst.putInt(16, length);
+        dst.limit(HEADER_SIZE + length).position(0);
+    }
+
+    // Seq de um quadro já codificado a partir da posição 0 de buf
+    public static int seqOf(ByteBuffer buf) {
+        return buf.getInt(12);
+    }
+
+    private static void putHeader(ByteBuffer dst, byte type, byte flags, long transferId, int seq, int length) {
+        dst.put(MAGIC);
+        dst.put(VERSION);
+        dst.put(type);
+        dst.put(flags);
+        dst.putLong(transferId);
+        dst.putInt(seq);
+        dst.putInt(length);
+    }
+
+    // Decodifica o quadro que começa em src.position() sem alterar a posição de src.
+    // Retorna false se o quadro estiver malformado ou for de versão desconhecida.
+    public static boolean decode(ByteBuffer src, Frame out) {
+        int base = src.position();
+        int available = src.limit() - base;
+        if (available < HEADER_SIZE || src.get(base) != MAGIC) {
+            return false;
+        }
+        byte version = src.get(base + 1);
+        if (version != VERSION) {
+            return false;
+        }
+        int length = src.getInt(base + 16);
+        if (length < 0 || length > available - HEADER_SIZE) {
+            return false;
+        }
+        out.version = version;
+        out.type = src.get(base + 2);
+        out.flags = src.get(base + 3);
+        out.transferId = src.getLong(base + 4);
+        out.seq = src.getInt(base + 12);
+        out.length = length;
+        out.buffer = src;
+        out.payloadOffset = base + HEADER_SIZE;
+        return true;
+    }
+}
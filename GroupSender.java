@@ -0,0 +1,321 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Envio de um arquivo a todos os dispositivos de uma vez (sendfile-all).
+// Cada chunk sai uma única vez em broadcast (quadro DATA com FLAG_GROUP), em vez de uma cópia por
+// destino. Os receptores não confirmam chunk a chunk: ao fim de cada rodada o remetente pergunta a
+// cada um o que falta ("GPOLL <id> <rodada>"), cada um responde com um quadro NAK (bitmap dos buracos)
+// e a rodada seguinte retransmite em broadcast só a união dos buracos. Quando ninguém mais reporta
+// buracos, cada receptor recebe o END com o MD5, como numa transferência unicast.
+// O anúncio é "GFILE <id> <nome> <tamanho> <chunk>", respondido com "GACK <id>"; quem não responde
+// (nós antigos) recebe o arquivo por sendfile unicast. Como não há controle de congestionamento por
+// receptor, o broadcast sai num ritmo fixo, -Dlabredes.groupRate (padrão 8m), além do limite global
+// -Dlabredes.rate.
+public class GroupSender {
+    private static final long GROUP_RATE = TokenBucket.parseRate(System.getProperty("labredes.groupRate", "8m"));
+    private static final int ANNOUNCE_ATTEMPTS = 5;
+    private static final int POLL_ATTEMPTS = 4;
+    private static final int END_ATTEMPTS = 8;
+    private static final int MAX_ROUNDS = 100;
+
+    private static class Member {
+        final DeviceInfo info;
+        boolean joined;          // respondeu ao GFILE
+        int reportedRound = -1;  // última rodada com NAK recebido
+        BitSet holes = new BitSet();
+        boolean ended;           // confirmou o END
+        String droppedReason;    // saiu do grupo (sem resposta, cancelou, hash inválido)
+
+        Member(DeviceInfo info) {
+            this.info = info;
+        }
+
+        boolean live() {
+            return joined && droppedReason == null;
+        }
+    }
+
+    private final UdpNode node;
+    private final String id;
+    private final long transferId;
+    private final Transfer transfer;
+    private final File file;
+    private final Map<InetSocketAddress, Member> members = new LinkedHashMap<>();
+    private final TokenBucket bucket = new TokenBucket(GROUP_RATE);
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(ReceivePipeline.MAX_DATAGRAM);
+    private final CRC32C crc = new CRC32C();
+    private int chunkSize;
+    private int round;
+    private long framesSent;
+
+    public GroupSender(UdpNode node, String id, Transfer transfer, File file, List<DeviceInfo> targets) {
+        this.node = node;
+        this.id = id;
+        this.transferId = UdpNode.transferIdOf(id);
+        this.transfer = transfer;
+        this.file = file;
+        for (DeviceInfo d : targets) {
+            members.put(d.getAddress(), new Member(d));
+        }
+    }
+
+    public long getTransferId() { return transferId; }
+
+    // Executa o envio na thread de controle; retorna os dispositivos que não entraram no grupo,
+    // para que recebam o arquivo por unicast
+    public List<DeviceInfo> run() throws IOException, InterruptedException {
+        chunkSize = chunkSize();
+        announce();
+        List<DeviceInfo> outside = new ArrayList<>();
+        int joined = 0;
+        synchronized (this) {
+            for (Member m : members.values()) {
+                if (m.joined) joined++;
+                else outside.add(m.info);
+            }
+        }
+        if (joined == 0) {
+            transfer.setState(Transfer.State.FALHA);
+            return outside;
+        }
+        Log.info(">>> [GRUPO] ID=" + id + " " + joined + " receptores, chunk=" + chunkSize
+                + (outside.isEmpty() ? "" : ", " + outside.size() + " por unicast"));
+
+        transfer.setState(Transfer.State.ATIVA);
+        try (ChunkSource source = new ChunkSource(file, chunkSize)) {
+            BitSet pending = new BitSet();
+            pending.set(1, source.getTotalChunks() + 1);
+            for (round = 0; !pending.isEmpty(); round++) {
+                if (round == MAX_ROUNDS || !broadcast(source, pending)) {
+                    abandon(round == MAX_ROUNDS ? "LIMITE_RODADAS" : UdpNode.CANCEL_REASON);
+                    return outside;
+                }
+                pending = poll();
+                if (liveCount() == 0) {
+                    transfer.setState(Transfer.State.FALHA);
+                    return outside;
+                }
+                node.getMetrics().retxGroup.add(pending.cardinality());
+                Log.info(">>> [GRUPO] ID=" + id + " rodada " + (round + 1) + ": "
+                        + pending.cardinality() + " chunks a retransmitir");
+            }
+            transfer.setState(Transfer.State.FINALIZANDO);
+            end(source.md5Hex());
+        }
+        return outside;
+    }
+
+    // O maior chunk que cabe no caminho até todos os receptores
+    private int chunkSize() {
+        int chunk = TransferOptions.MAX_CHUNK;
+        for (Member m : members.values()) {
+            int c = node.getPathMtu().chunkSizeFor(m.info);
+            chunk = Math.min(chunk, c > 0 ? c : UdpNode.CHUNK_SIZE);
+        }
+        return chunk;
+    }
+
+    private void announce() throws InterruptedException {
+        String msg = "GFILE " + id + " " + file.getName() + " " + file.length() + " " + chunkSize;
+        for (int attempt = 0; attempt < ANNOUNCE_ATTEMPTS; attempt++) {
+            long wait = 0;
+            synchronized (this) {
+                for (Member m : members.values()) {
+                    if (!m.joined) {
+                        node.sendUdp(msg, m.info.getAddress());
+                        wait = Math.max(wait, m.info.getRto());
+                    }
+                }
+                if (wait == 0) return;
+                awaitAll(wait, m -> m.joined || m.droppedReason != null);
+            }
+        }
+    }
+
+    // Uma rodada: cada chunk pendente sai uma vez em broadcast. Retorna false se cancelado.
+    private boolean broadcast(ChunkSource source, BitSet pending) throws IOException {
+        for (int seq = pending.nextSetBit(1); seq >= 0; seq = pending.nextSetBit(seq + 1)) {
+            int length = source.lengthOf(seq);
+            int size = FrameCodec.HEADER_SIZE + length + FrameCodec.CRC_SIZE;
+            if (!node.getTransfers().awaitTurn(transfer, bucket, size)) {
+                return false;
+            }
+            frame.clear().position(FrameCodec.HEADER_SIZE);
+            source.read(seq, frame);
+            frame.limit(FrameCodec.HEADER_SIZE + length).position(FrameCodec.HEADER_SIZE);
+            crc.reset();
+            crc.update(frame);
+            frame.limit(frame.capacity());
+            frame.putInt(FrameCodec.HEADER_SIZE + length, (int) crc.getValue());
+            FrameCodec.encodeHeader(frame, FrameCodec.TYPE_DATA, (byte) (FrameCodec.FLAG_CRC32C | FrameCodec.FLAG_GROUP),
+                    transferId, seq, length + FrameCodec.CRC_SIZE);
+            node.broadcastFrame(frame);
+            framesSent++;
+            if (round == 0) {
+                transfer.addBytes(length);
+            }
+        }
+        return true;
+    }
+
+    // Pergunta a cada receptor os buracos da rodada; quem não responde sai do grupo.
+    // O GPOLL vai na fila de dados, atrás dos chunks da rodada, para não chegar antes deles.
+    private BitSet poll() throws InterruptedException {
+        String msg = "GPOLL " + id + " " + round;
+        BitSet union = new BitSet();
+        synchronized (this) {
+            for (int attempt = 0; attempt < POLL_ATTEMPTS; attempt++) {
+                long wait = 0;
+                for (Member m : members.values()) {
+                    if (m.live() && m.reportedRound != round) {
+                        node.sendUdp(msg, m.info.getAddress());
+                        wait = Math.max(wait, m.info.getRto());
+                    }
+                }
+                if (wait == 0) break;
+                awaitAll(wait, m -> !m.live() || m.reportedRound == round);
+            }
+            for (Member m : members.values()) {
+                if (!m.live()) continue;
+                if (m.reportedRound != round) {
+                    drop(m, "SEM_RESPOSTA");
+                } else {
+                    union.or(m.holes);
+                }
+            }
+        }
+        return union;
+    }
+
+    private void end(String md5) throws InterruptedException {
+        String msg = "END " + id + " " + md5;
+        synchronized (this) {
+            for (int attempt = 0; attempt < END_ATTEMPTS; attempt++) {
+                long wait = 0;
+                for (Member m : members.values()) {
+                    if (m.live() && !m.ended) {
+                        node.sendUdp(msg, m.info.getAddress());
+                        wait = Math.max(wait, m.info.getRto());
+                    }
+                }
+                if (wait == 0) break;
+                awaitAll(wait, m -> !m.live() || m.ended);
+            }
+            int ok = 0;
+            for (Member m : members.values()) {
+                if (m.live() && !m.ended) drop(m, "SEM_RESPOSTA");
+                if (m.live()) ok++;
+            }
+            long unicastFrames = ok * ((file.length() + chunkSize - 1) / chunkSize);
+            Log.info(">>> [GRUPO] ID=" + id + " concluída em " + ok + " receptores, " + round + " rodadas, "
+                    + framesSent + " quadros em broadcast (unicast sem perdas: " + unicastFrames + ")");
+            node.getTransfers().finish(id, ok > 0 ? Transfer.State.CONCLUIDA : Transfer.State.FALHA);
+        }
+    }
+
+    private void abandon(String reason) {
+        synchronized (this) {
+            for (Member m : members.values()) {
+                if (m.live()) {
+                    node.sendUdp("NACK " + id + " " + UdpNode.CANCEL_REASON, m.info.getAddress());
+                    m.droppedReason = reason;
+                }
+            }
+        }
+        node.getTransfers().finish(id, UdpNode.CANCEL_REASON.equals(reason)
+                ? Transfer.State.CANCELADA : Transfer.State.FALHA);
+        Log.info(">>> [GRUPO] ID=" + id + " interrompida: " + reason);
+    }
+
+    private void drop(Member m, String reason) {
+        m.droppedReason = reason;
+        Log.info(">>> [GRUPO] ID=" + id + " " + m.info.getName() + " saiu do grupo: " + reason);
+        node.sendUdp("NACK " + id + " " + UdpNode.CANCEL_REASON, m.info.getAddress());
+    }
+
+    private int liveCount() {
+        synchronized (this) {
+            int n = 0;
+            for (Member m : members.values()) {
+                if (m.live()) n++;
+            }
+            return n;
+        }
+    }
+
+    private interface Condition {
+        boolean test(Member m);
+    }
+
+    // Espera até 'millis' por todos os membros satisfazerem a condição (chamado com o monitor)
+    private void awaitAll(long millis, Condition done) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (true) {
+            boolean all = true;
+            for (Member m : members.values()) {
+                if (!done.test(m)) {
+                    all = false;
+                    break;
+                }
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (all || left <= 0) return;
+            wait(left);
+        }
+    }
+
+    // "GACK <id>": o receptor abriu a recepção e entrou no grupo
+    public synchronized void onJoin(InetSocketAddress from) {
+        Member m = members.get(from);
+        if (m == null || m.joined) return;
+        m.joined = true;
+        notifyAll();
+    }
+
+    // ACK do END: o receptor validou o arquivo
+    public synchronized void onAck(InetSocketAddress from) {
+        Member m = members.get(from);
+        if (m == null || !m.live()) return;
+        m.ended = true;
+        notifyAll();
+    }
+
+    // NACK de um receptor: cancelou a recepção ou o hash não conferiu; só ele sai do grupo
+    public synchronized void onNack(InetSocketAddress from, String reason) {
+        Member m = members.get(from);
+        if (m == null || m.droppedReason != null) return;
+        m.droppedReason = reason;
+        Log.info(">>> [GRUPO] ID=" + id + " " + m.info.getName() + " saiu do grupo: " + reason);
+        notifyAll();
+    }
+
+    // Quadro NAK: seq = primeiro chunk que falta (0 = nada), payload = rodada(4) + bitmap dos
+    // chunks seq, seq+1, ... que faltam
+    public synchronized void onNak(FrameCodec.Frame nak, InetSocketAddress from) {
+        Member m = members.get(from);
+        if (m == null || !m.live() || nak.length < 4) return;
+        int nakRound = nak.buffer.getInt(nak.payloadOffset);
+        if (nakRound != round) return;
+        BitSet holes = new BitSet();
+        if (nak.seq > 0) {
+            int bits = (nak.length - 4) * 8;
+            for (int i = 0; i < bits; i++) {
+                byte b = nak.buffer.get(nak.payloadOffset + 4 + (i >> 3));
+                if (((b >> (i & 7)) & 1) != 0) {
+                    holes.set(nak.seq + i);
+                }
+            }
+        }
+        m.holes = holes;
+        m.reportedRound = round;
+        notifyAll();
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log assíncrono: quem registra só coloca a linha num buffer circular sem locks (vários produtores,
+// um consumidor) e uma thread em segundo plano a escreve no console. Nenhuma thread de rede ou de
+// envio faz I/O síncrono por causa do log; com o buffer cheio a linha é descartada e contada.
+// O nível vem de -Dlabredes.log=erro|aviso|info|debug (padrão info) e pode ser trocado pelo comando
+// "log". Eventos por chunk são DEBUG e passam por um Limiter, que deixa sair poucas linhas por
+// segundo e informa quantas foram omitidas; o progresso das transferências sai em linhas periódicas
+// (ver TransferManager).
+// As respostas aos comandos do console continuam saindo direto em System.out.
+public final class Log {
+    public enum Level { ERRO, AVISO, INFO, DEBUG }
+
+    // Capacidade do buffer em linhas (potência de 2, -Dlabredes.logBuffer=N)
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("labredes.logBuffer", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    // Linhas escritas de uma vez pelo consumidor
+    private static final int BATCH = 256;
+    // Sem linhas, o consumidor dorme até ser acordado ou até este prazo
+    private static final long IDLE_PARK_NANOS = 100_000_000;
+
+    // Buffer circular limitado (Vyukov): sequence[i] == posição quando o slot está livre para
+    // essa posição e == posição + 1 quando a linha já foi publicada
+    private static final String[] lines = new String[CAPACITY];
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;   // só o consumidor
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported;
+
+    private static volatile Level level = parseLevel(System.getProperty("labredes.log"), Level.INFO);
+    private static volatile boolean sleeping;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequence.set(i, i);
+        }
+        writer = new Thread(Log::drainLoop, "Log");
+        writer.setDaemon(true);
+        writer.start();
+        // Na saída, escreve o que ainda estiver no buffer
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "Log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static Level parseLevel(String value, Level fallback) {
+        if (value == null) return fallback;
+        switch (value.toLowerCase()) {
+            case "erro":
+            case "error":
+                return Level.ERRO;
+            case "aviso":
+            case "warn":
+                return Level.AVISO;
+            case "info":
+                return Level.INFO;
+            case "debug":
+                return Level.DEBUG;
+            default:
+                return fallback;
+        }
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level next) {
+        level = next;
+    }
+
+    public static boolean enabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String msg) {
+        log(Level.ERRO, msg);
+    }
+
+    public static void warn(String msg) {
+        log(Level.AVISO, msg);
+    }
+
+    public static void info(String msg) {
+        log(Level.INFO, msg);
+    }
+
+    public static void debug(String msg) {
+        log(Level.DEBUG, msg);
+    }
+
+    public static void log(Level l, String msg) {
+        if (!enabled(l)) return;
+        if (!offer(msg)) {
+            dropped.increment();
+            return;
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static boolean offer(String msg) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) pos & MASK;
+            long diff = sequence.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    lines[slot] = msg;
+                    sequence.set(slot, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // Buffer cheio: o consumidor ainda não liberou o slot desta volta
+                return false;
+            }
+            // Outro produtor pegou a posição: tenta a seguinte
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (drain() > 0) continue;
+            sleeping = true;
+            // Confere de novo depois de anunciar que vai dormir: uma linha publicada entre o drain
+            // e o anúncio não fica esperando o prazo inteiro
+            if (sequence.get((int) head & MASK) != head + 1) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    // Escreve as linhas publicadas, em lotes; retorna quantas escreveu
+    private static synchronized int drain() {
+        int total = 0;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int n = 0;
+            sb.setLength(0);
+            while (n < BATCH) {
+                int slot = (int) head & MASK;
+                if (sequence.get(slot) != head + 1) break;
+                sb.append(lines[slot]).append(System.lineSeparator());
+                lines[slot] = null;
+                sequence.set(slot, head + CAPACITY);
+                head++;
+                n++;
+            }
+            long lost = dropped.sum();
+            if (lost > droppedReported) {
+                sb.append("[WARN] ").append(lost - droppedReported).append(" linhas de log descartadas (buffer cheio)")
+                        .append(System.lineSeparator());
+                droppedReported = lost;
+            }
+            if (sb.length() == 0) return total;
+            System.out.print(sb);
+            System.out.flush();
+            total += n;
+        }
+    }
+
+    // Limita um evento repetitivo (por chunk ou por pacote) a 'perSecond' linhas por segundo.
+    // Uso: if (LIMITER.allow()) LIMITER.log(...); assim a mensagem nem é montada quando omitida.
+    public static final class Limiter {
+        private final Level level;
+        private final int perSecond;
+        private final AtomicLong second = new AtomicLong();
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        public Limiter(Level level, int perSecond) {
+            this.level = level;
+            this.perSecond = perSecond;
+        }
+
+        public boolean allow() {
+            if (!enabled(level)) return false;
+            long now = System.nanoTime() / 1_000_000_000L;
+            long current = second.get();
+            if (current != now && second.compareAndSet(current, now)) {
+                count.set(0);
+            }
+            if (count.incrementAndGet() <= perSecond) return true;
+            suppressed.incrementAndGet();
+            return false;
+        }
+
+        public void log(String msg) {
+            int omitted = suppressed.getAndSet(0);
+            Log.log(level, omitted > 0 ? msg + " (+" + omitted + " semelhantes omitidas)" : msg);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pertinência no estilo SWIM (-Dlabredes.membership=gossip), em lugar do HEARTBEAT em broadcast.
+// A cada período o nó sonda um único membro (round-robin sobre uma ordem embaralhada) com PING.
+// Sem PONG em PING_TIMEOUT, pede a INDIRECT_PROBES outros membros que sondem por ele (PINGREQ);
+// sem resposta até o fim do período, o membro vira suspeito e, se não refutar com uma incarnation
+// maior, é declarado morto após o tempo de suspeita. As mudanças de estado viajam de carona nos
+// PING/PONG, cada uma retransmitida ~log(n) vezes, então o tráfego por nó é constante por período.
+// A descoberta no mesmo segmento continua com um HEARTBEAT em broadcast a cada ANNOUNCE_INTERVAL
+// (como no modo padrão): quem ouve um nó desconhecido o sonda e o espalha. Só com a disseminação
+// por carona, 50 nós levavam mais de um minuto para se conhecer. O gossip fica com a detecção de
+// falhas e a disseminação de entradas, suspeitas e saídas. Sem membros conhecidos, o nó também
+// sonda as sementes (-Dlabredes.seeds=ip:porta,...), o que permite formar o grupo entre sub-redes.
+//
+//   PING <seq> <nome> <incarnation> [atualizações]
+//   PINGREQ <seq> <nome> <incarnation> <alvo> <ip> <porta> [atualizações]
+//   PONG <seq> <nome> <incarnation> [atualizações]
+//   atualização: <A|S|D>,<nome>,<ip>,<porta>,<incarnation>   (alive, suspect, dead)
+public class Membership {
+    private static final long PROBE_INTERVAL = Long.getLong("labredes.probeInterval", 1000);
+    private static final long PING_TIMEOUT = PROBE_INTERVAL * 3 / 10;
+    private static final long PROBE_TIMEOUT = PROBE_INTERVAL * 9 / 10;
+    // HEARTBEAT de descoberta a cada N ms mesmo com membros conhecidos (0 = só sem membros)
+    private static final long ANNOUNCE_INTERVAL = Long.getLong("labredes.announceInterval", 5000);
+    private static final int INDIRECT_PROBES = 3;
+    // Tempo de suspeita = SUSPICION_MULT * log10(n) períodos (mínimo de um)
+    private static final int SUSPICION_MULT = 2;
+    private static final int RETRANSMIT_MULT = 3;
+    private static final int MAX_PIGGYBACK = 8;
+    // Por quanto tempo um membro morto não pode voltar com a mesma incarnation
+    private static final long TOMBSTONE_TTL = 60000;
+
+    private static class Probe {
+        String target;                  // null para sondas às sementes
+        long sentAt;
+        boolean indirect;
+        InetSocketAddress relayTo;      // PINGREQ recebido: a quem repassar o PONG
+        int relaySeq;
+        TimerWheel.Timeout timeout;
+    }
+
+    private static class Update {
+        final char kind;
+        final String name;
+        final String ip;
+        final int port;
+        final long incarnation;
+        int remaining;
+
+        Update(char kind, String name, String ip, int port, long incarnation, int remaining) {
+            this.kind = kind;
+            this.name = name;
+            this.ip = ip;
+            this.port = port;
+            this.incarnation = incarnation;
+            this.remaining = remaining;
+        }
+    }
+
+    private final UdpNode node;
+    private final DeviceRegistry registry;
+    private final TimerWheel wheel;
+    private final String self;
+    private final List<InetSocketAddress> seeds = new ArrayList<>();
+    // Começa no relógio para que um nó reiniciado sempre anuncie uma incarnation maior que a anterior
+    private long incarnation = System.currentTimeMillis() / 1000;
+
+    private final AtomicInteger seqGen = new AtomicInteger();
+    private final Map<Integer, Probe> probes = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Update> updates = new LinkedHashMap<>();
+    private final Map<String, long[]> tombstones = new HashMap<>();   // nome -> {incarnation, instante}
+    private final List<String> probeOrder = new ArrayList<>();
+    private int probeIndex;
+    private long lastAnnounce;
+
+    public Membership(UdpNode node, DeviceRegistry registry, TimerWheel wheel, String self) {
+        this.node = node;
+        this.registry = registry;
+        this.wheel = wheel;
+        this.self = self;
+        String list = System.getProperty("labredes.seeds", "");
+        for (String seed : list.split(",")) {
+            int colon = seed.lastIndexOf(':');
+            if (colon <= 0) continue;
+            try {
+                seeds.add(new InetSocketAddress(seed.substring(0, colon).trim(),
+                        Integer.parseInt(seed.substring(colon + 1).trim())));
+            } catch (IllegalArgumentException e) {
+                Log.warn("[WARN] Semente inválida ignorada: " + seed);
+            }
+        }
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::protocolPeriod, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized long getIncarnation() {
+        return incarnation;
+    }
+
+    // Prazo dos membros no registro: só suspeitos expiram (viram mortos); os vivos saem por sondagem
+    public long deadline(DeviceInfo d) {
+        if (!d.isSuspect()) return Long.MAX_VALUE;
+        int n = registry.size() + 1;
+        long rounds = Math.max(1, SUSPICION_MULT * (long) Math.ceil(Math.log10(n + 1)));
+        return d.getSuspectSince() + rounds * PROBE_INTERVAL;
+    }
+
+    // Tempo de suspeita esgotado: o registro já removeu o membro
+    public synchronized void onExpired(DeviceInfo d) {
+        Log.info(">>> [INFO] Dispositivo inativo removido: " + d.getName());
+        tombstones.put(d.getName(), new long[] {d.getIncarnation(), System.currentTimeMillis()});
+        enqueue('D', d.getName(), d.getIp(), d.getPort(), d.getIncarnation());
+    }
+
+    // HEARTBEAT de um nó no mesmo segmento: entra como membro, com a incarnation que vier no primeiro
+    // PING ou PONG trocado com ele. Sem sondá-lo na hora: com o anúncio periódico, cada rodada de
+    // HEARTBEATs viraria uma rajada de n PINGs por nó.
+    public void onHeartbeat(String name, String ip, int port) {
+        if (name.equals(self) || registry.get(name) != null) return;
+        DeviceInfo d = registry.touch(name, ip, port, System.currentTimeMillis());
+        if (d != null) {
+            Log.info(">>> [INFO] Novo dispositivo encontrado: " + name + " (" + ip + ":" + port + ")");
+        }
+    }
+
+    private void protocolPeriod() {
+        try {
+            pruneTombstones();
+            if (registry.isEmpty()) {
+                announce();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (ANNOUNCE_INTERVAL > 0 && now - lastAnnounce >= ANNOUNCE_INTERVAL) {
+                lastAnnounce = now;
+                node.sendHeartbeat();
+            }
+            DeviceInfo target = nextTarget();
+            if (target != null) {
+                probe(target);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void announce() {
+        lastAnnounce = System.currentTimeMillis();
+        node.sendHeartbeat();
+        for (InetSocketAddress seed : seeds) {
+            Probe p = new Probe();
+            int seq = register(p);
+            send("PING " + seq + " " + self + " " + getIncarnation(), seed);
+        }
+    }
+
+    // Round-robin sobre uma permutação aleatória dos membros, refeita a cada volta
+    private synchronized DeviceInfo nextTarget() {
+        for (int tries = 0; tries < 2; tries++) {
+            while (probeIndex < probeOrder.size()) {
+                DeviceInfo d = registry.get(probeOrder.get(probeIndex++));
+                if (d != null) return d;
+            }
+            probeOrder.clear();
+            for (DeviceInfo d : registry.values()) {
+                probeOrder.add(d.getName());
+            }
+            Collections.shuffle(probeOrder, ThreadLocalRandom.current());
+            probeIndex = 0;
+        }
+        return null;
+    }
+
+    private void probe(DeviceInfo target) {
+        Probe p = new Probe();
+        p.target = target.getName();
+        int seq = register(p);
+        p.sentAt = System.currentTimeMillis();
+        wheel.schedule(p.timeout, PING_TIMEOUT);
+        send("PING " + seq + " " + self + " " + getIncarnation(), target.getAddress());
+    }
+
+    private int register(Probe p) {
+        int seq = seqGen.incrementAndGet();
+        p.timeout = new TimerWheel.Timeout(() -> onProbeTimer(seq));
+        probes.put(seq, p);
+        if (p.target == null) {
+            // Sonda a semente ou repasse de PINGREQ: só expira
+            wheel.schedule(p.timeout, PROBE_TIMEOUT);
+        }
+        return seq;
+    }
+
+    private void onProbeTimer(int seq) {
+        Probe p = probes.get(seq);
+        if (p == null) return;
+        if (p.target == null || p.relayTo != null) {
+            probes.remove(seq);
+            return;
+        }
+        DeviceInfo target = registry.get(p.target);
+        if (target == null) {
+            probes.remove(seq);
+            return;
+        }
+        if (!p.indirect) {
+            // Sem resposta direta: pede a outros membros que sondem o alvo
+            p.indirect = true;
+            List<DeviceInfo> helpers = new ArrayList<>();
+            for (DeviceInfo d : registry.values()) {
+                if (d != target && !d.isSuspect()) helpers.add(d);
+            }
+            Collections.shuffle(helpers, ThreadLocalRandom.current());
+            for (DeviceInfo h : helpers.subList(0, Math.min(INDIRECT_PROBES, helpers.size()))) {
+                send("PINGREQ " + seq + " " + self + " " + getIncarnation() + " " + target.getName()
+                        + " " + target.getIp() + " " + target.getPort(), h.getAddress());
+            }
+            wheel.schedule(p.timeout, PROBE_TIMEOUT - PING_TIMEOUT);
+        } else {
+            probes.remove(seq);
+            applySuspect(target.getName(), target.getIncarnation());
+        }
+    }
+
+    public void handlePing(String[] tokens, InetAddress addr, int port) {
+        if (tokens.length < 4) return;
+        int seq = Integer.parseInt(tokens[1]);
+        applyAlive(tokens[2], addr.getHostAddress(), port, Long.parseLong(tokens[3]), true);
+        applyUpdates(tokens, 4);
+        send("PONG " + seq + " " + self + " " + getIncarnation(), new InetSocketAddress(addr, port));
+    }
+
+    public void handlePingReq(String[] tokens, InetAddress addr, int port) {
+        if (tokens.length < 7) return;
+        int originSeq = Integer.parseInt(tokens[1]);
+        applyAlive(tokens[2], addr.getHostAddress(), port, Long.parseLong(tokens[3]), true);
+        applyUpdates(tokens, 7);
+        Probe relay = new Probe();
+        relay.relayTo = new InetSocketAddress(addr, port);
+        relay.relaySeq = originSeq;
+        int seq = register(relay);
+        DeviceInfo target = registry.get(tokens[4]);
+        send("PING " + seq + " " + self + " " + getIncarnation(), target != null ? target.getAddress()
+                : new InetSocketAddress(tokens[5], Integer.parseInt(tokens[6])));
+    }
+
+    public void handlePong(String[] tokens, InetAddress addr, int port) {
+        if (tokens.length < 4) return;
+        int seq = Integer.parseInt(tokens[1]);
+        String name = tokens[2];
+        long inc = Long.parseLong(tokens[3]);
+        Probe p = probes.remove(seq);
+        // Um PONG repassado por um intermediário fala do alvo, não de quem o enviou:
+        // vale como contato, mas o endereço continua o do registro
+        DeviceInfo known = registry.get(name);
+        boolean relayed = known != null && (!known.getIp().equals(addr.getHostAddress()) || known.getPort() != port);
+        if (relayed) {
+            applyAlive(name, known.getIp(), known.getPort(), inc, true);
+        } else {
+            applyAlive(name, addr.getHostAddress(), port, inc, true);
+        }
+        applyUpdates(tokens, 4);
+        if (p == null) return;
+        p.timeout.cancel();
+        if (p.relayTo != null) {
+            send("PONG " + p.relaySeq + " " + name + " " + inc, p.relayTo);
+        } else if (p.target != null && !p.indirect) {
+            // Cada PING tem seq próprio e nunca é reenviado: a amostra de RTT é válida (regra de Karn)
+            DeviceInfo d = registry.get(p.target);
+            if (d != null) {
+                long rtt = System.currentTimeMillis() - p.sentAt;
+                node.getMetrics().rtt.record(rtt);
+                d.onRttSample(rtt);
+            }
+        }
+    }
+
+    private void applyUpdates(String[] tokens, int start) {
+        for (int i = start; i < tokens.length; i++) {
+            String[] f = tokens[i].split(",");
+            if (f.length != 5 || f[0].length() != 1) continue;
+            try {
+                int port = Integer.parseInt(f[3]);
+                long inc = Long.parseLong(f[4]);
+                switch (f[0].charAt(0)) {
+                    case 'A':
+                        applyAlive(f[1], f[2], port, inc, false);
+                        break;
+                    case 'S':
+                        applySuspect(f[1], inc);
+                        break;
+                    case 'D':
+                        applyDead(f[1], inc);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                // atualização malformada: ignorada
+            }
+        }
+    }
+
+    // 'direct': a mensagem veio do próprio membro, então conta como contato
+    private synchronized void applyAlive(String name, String ip, int port, long inc, boolean direct) {
+        if (name.equals(self)) return;
+        long[] dead = tombstones.get(name);
+        if (dead != null && inc <= dead[0]) return;
+        long now = System.currentTimeMillis();
+        DeviceInfo d = registry.get(name);
+        if ("-".equals(ip)) {
+            // Refutação: o membro não conhece o próprio endereço, vale o que já temos
+            if (d == null) return;
+            ip = d.getIp();
+            port = d.getPort();
+        }
+        if (d != null && inc > d.getIncarnation() && (!d.getIp().equals(ip) || d.getPort() != port)) {
+            // Reiniciado em outro endereço
+            registry.remove(name, d);
+            d = null;
+        }
+        if (d == null) {
+            d = registry.touch(name, ip, port, now);
+            if (d == null) return;
+            d.setIncarnation(inc);
+            Log.info(">>> [INFO] Novo dispositivo encontrado: " + name + " (" + ip + ":" + port + ")");
+            enqueue('A', name, ip, port, inc);
+            return;
+        }
+        if (direct) {
+            d.setLastHeartbeat(now);
+        }
+        if (inc > d.getIncarnation()) {
+            d.setIncarnation(inc);
+            if (d.isSuspect()) {
+                Log.info(">>> [INFO] Dispositivo " + name + " refutou a suspeita");
+                d.markAlive();
+                registry.reschedule(d);
+            }
+            enqueue('A', name, d.getIp(), d.getPort(), inc);
+        }
+    }
+
+    private synchronized void applySuspect(String name, long inc) {
+        if (name.equals(self)) {
+            refute(inc);
+            return;
+        }
+        DeviceInfo d = registry.get(name);
+        if (d == null || inc < d.getIncarnation() || (inc == d.getIncarnation() && d.isSuspect())) return;
+        d.setIncarnation(inc);
+        d.markSuspect(System.currentTimeMillis());
+        registry.reschedule(d);
+        Log.info(">>> [INFO] Dispositivo suspeito: " + name);
+        enqueue('S', name, d.getIp(), d.getPort(), inc);
+    }
+
+    private synchronized void applyDead(String name, long inc) {
+        if (name.equals(self)) {
+            refute(inc);
+            return;
+        }
+        DeviceInfo d = registry.get(name);
+        if (d == null || inc < d.getIncarnation() || !registry.remove(name, d)) return;
+        onExpired(d);
+    }
+
+    // Alguém nos considera suspeitos ou mortos: anuncia uma incarnation maior
+    private void refute(long inc) {
+        if (inc >= incarnation) {
+            incarnation = inc + 1;
+            enqueue('A', self, "-", 0, incarnation);
+        }
+    }
+
+    private void enqueue(char kind, String name, String ip, int port, long inc) {
+        int n = registry.size() + 2;
+        int times = RETRANSMIT_MULT * (32 - Integer.numberOfLeadingZeros(n));
+        updates.remove(name);
+        updates.put(name, new Update(kind, name, ip, port, inc, times));
+    }
+
+    // Acrescenta até MAX_PIGGYBACK atualizações; as enviadas vão para o fim da fila (rodízio)
+    private synchronized String withUpdates(String msg) {
+        if (updates.isEmpty()) return msg;
+        StringBuilder sb = new StringBuilder(msg);
+        List<Update> sent = new ArrayList<>();
+        Iterator<Update> it = updates.values().iterator();
+        while (it.hasNext() && sent.size() < MAX_PIGGYBACK) {
+            Update u = it.next();
+            it.remove();
+            sb.append(' ').append(u.kind).append(',').append(u.name).append(',')
+              .append(u.ip).append(',').append(u.port).append(',').append(u.incarnation);
+            sent.add(u);
+        }
+        for (Update u : sent) {
+            if (--u.remaining > 0) {
+                updates.put(u.name, u);
+            }
+        }
+        return sb.toString();
+    }
+
+    private synchronized void pruneTombstones() {
+        long now = System.currentTimeMillis();
+        tombstones.values().removeIf(t -> now - t[1] > TOMBSTONE_TTL);
+    }
+
+    private void send(String msg, InetSocketAddress dest) {
+        node.sendUdp(withUpdates(msg), dest);
+    }
+}
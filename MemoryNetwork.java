@@ -0,0 +1,385 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// Rede emulada em memória, para rodar muitos UdpNode na mesma JVM (ver NetworkSimulation).
+// Cada nó recebe um Endpoint (o seu Transport) num endereço 10.x.y.z; o broadcast 10.255.255.255
+// chega a todos os pontos da mesma porta. Cada datagrama enviado é copiado e entregue por uma
+// única thread depois da latência e do jitter sorteados, e pode ser perdido, duplicado ou atrasado
+// além dos seguintes (reordenação). Com limite de banda, cada ponto tem um enlace de saída com
+// fila limitada, como a de um roteador: o que não cabe na fila é descartado. Datagramas maiores
+// que o MTU (menos os cabeçalhos IP/UDP) são descartados, como com DF, e um destino com o buffer
+// de recepção cheio descarta o que chega. Os sorteios usam uma semente fixa; para perdas escolhidas
+// a dedo (testes), setDropRule descarta os datagramas que a regra apontar.
+public class MemoryNetwork implements Closeable {
+    public static final int PORT = 9876;
+    private static final int IP_UDP_HEADERS = 28;
+    private static final InetAddress BROADCAST = address(new byte[] {10, (byte) 255, (byte) 255, (byte) 255});
+
+    // Condições da rede, trocáveis durante a execução com setConditions()
+    public static class Conditions {
+        public double latencyMs = 0.5;
+        public double jitterMs = 0;
+        public double loss = 0;
+        public double duplicate = 0;
+        public double reorder = 0;
+        // Atraso a mais dos datagramas sorteados para reordenação
+        public double reorderMs = 10;
+        // Banda de saída de cada ponto, em bytes/s (0 = sem limite), e a fila do enlace
+        public long bandwidth = 0;
+        public long queueBytes = 256 * 1024;
+        public int mtu = 1500;
+        // Buffer de recepção de cada ponto (como o SO_RCVBUF)
+        public long receiveBuffer = 4 * 1024 * 1024;
+        public long seed = 42;
+
+        // "latency=5,jitter=2,loss=0.01,dup=0.001,reorder=0.01,reorderDelay=10,bw=10m,queue=256k,
+        // mtu=1500,rcvbuf=4m,seed=42": tempos em ms, probabilidades de 0 a 1, bytes com k/m/g
+        public static Conditions parse(String spec) {
+            Conditions c = new Conditions();
+            if (spec == null) return c;
+            for (String token : spec.split("[,\\s]+")) {
+                int eq = token.indexOf('=');
+                if (eq < 0) continue;
+                String key = token.substring(0, eq);
+                String value = token.substring(eq + 1);
+                try {
+                    switch (key) {
+                        case "latency": c.latencyMs = Double.parseDouble(value); break;
+                        case "jitter": c.jitterMs = Double.parseDouble(value); break;
+                        case "loss": c.loss = Double.parseDouble(value); break;
+                        case "dup": c.duplicate = Double.parseDouble(value); break;
+                        case "reorder": c.reorder = Double.parseDouble(value); break;
+                        case "reorderDelay": c.reorderMs = Double.parseDouble(value); break;
+                        case "bw": c.bandwidth = TokenBucket.parseRate(value); break;
+                        case "queue": c.queueBytes = TokenBucket.parseRate(value); break;
+                        case "mtu": c.mtu = Integer.parseInt(value); break;
+                        case "rcvbuf": c.receiveBuffer = TokenBucket.parseRate(value); break;
+                        case "seed": c.seed = Long.parseLong(value); break;
+                        default: Log.warn("[WARN] Condição de rede desconhecida ignorada: " + key);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.warn("[WARN] Valor inválido ignorado: " + token);
+                }
+            }
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latência=%.1fms jitter=%.1fms perda=%.2f%% duplicação=%.2f%% reordenação=%.2f%% banda=%s mtu=%d",
+                    latencyMs, jitterMs, loss * 100, duplicate * 100, reorder * 100,
+                    bandwidth > 0 ? String.format("%.1f MB/s", bandwidth / (1024.0 * 1024.0)) : "ilimitada", mtu);
+        }
+    }
+
+    // Datagrama em trânsito, ordenado pelo instante de entrega (e pela ordem de envio no empate)
+    private static final class Datagram implements Delayed {
+        final byte[] data;
+        final InetSocketAddress from;
+        final Endpoint to;
+        final long due;
+        final long order;
+
+        Datagram(byte[] data, InetSocketAddress from, Endpoint to, long due, long order) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Datagram o = (Datagram) other;
+            int c = Long.compare(due, o.due);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+
+    private final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final DelayQueue<Datagram> inFlight = new DelayQueue<>();
+    private final Thread deliverer;
+    private volatile Conditions conditions;
+    private volatile Predicate<ByteBuffer> dropRule;
+    private volatile boolean closed;
+    // Sorteios e enlaces de saída: guardados pelo monitor da rede
+    private Random random;
+    private long order;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    private final LongAdder droppedQueue = new LongAdder();
+    private final LongAdder droppedBuffer = new LongAdder();
+    private final LongAdder droppedMtu = new LongAdder();
+    private final LongAdder droppedNoRoute = new LongAdder();
+
+    public MemoryNetwork(Conditions conditions) {
+        setConditions(conditions);
+        deliverer = new Thread(this::deliverLoop, "MemoryNetwork");
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    public synchronized void setConditions(Conditions next) {
+        conditions = next;
+        random = new Random(next.seed);
+    }
+
+    public Conditions getConditions() {
+        return conditions;
+    }
+
+    // A regra vê cada datagrama enviado (entre position e limit) e retorna true para perdê-lo;
+    // null desliga. As perdas contam como as sorteadas.
+    public void setDropRule(Predicate<ByteBuffer> rule) {
+        dropRule = rule;
+    }
+
+    // Endereço 10.x.y.z do n-ésimo nó (n a partir de 1)
+    public static InetSocketAddress addressOf(int n) {
+        return new InetSocketAddress(address(new byte[] {10, (byte) (n >> 16), (byte) (n >> 8), (byte) n}), PORT);
+    }
+
+    private static InetAddress address(byte[] ip) {
+        try {
+            return InetAddress.getByAddress(ip);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public Endpoint open(InetSocketAddress address) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        Endpoint endpoint = new Endpoint(address);
+        if (endpoints.putIfAbsent(address, endpoint) != null) {
+            throw new IOException("Endereço já em uso: " + address);
+        }
+        return endpoint;
+    }
+
+    private void send(Endpoint from, ByteBuffer buf, InetSocketAddress dest) {
+        Conditions c = conditions;
+        int length = buf.remaining();
+        sent.increment();
+        if (length > c.mtu - IP_UDP_HEADERS) {
+            buf.position(buf.limit());
+            droppedMtu.increment();
+            return;
+        }
+        Predicate<ByteBuffer> rule = dropRule;
+        if (rule != null && rule.test(buf.duplicate())) {
+            buf.position(buf.limit());
+            lost.increment();
+            return;
+        }
+        byte[] data = new byte[length];
+        buf.get(data);
+        List<Endpoint> targets = new ArrayList<>(1);
+        if (dest.getAddress().equals(BROADCAST)) {
+            for (Endpoint e : endpoints.values()) {
+                if (e != from && e.address.getPort() == dest.getPort()) targets.add(e);
+            }
+        } else {
+            Endpoint e = endpoints.get(dest);
+            if (e == null) {
+                droppedNoRoute.increment();
+                return;
+            }
+            targets.add(e);
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            long depart = now;
+            if (c.bandwidth > 0) {
+                // Enlace de saída: o datagrama sai quando os anteriores terminarem de sair
+                long start = Math.max(now, from.linkFreeAt);
+                if ((start - now) * c.bandwidth / 1_000_000_000L > c.queueBytes) {
+                    droppedQueue.increment();
+                    return;
+                }
+                from.linkFreeAt = start + length * 1_000_000_000L / c.bandwidth;
+                depart = from.linkFreeAt;
+            }
+            for (Endpoint to : targets) {
+                if (random.nextDouble() < c.loss) {
+                    lost.increment();
+                    continue;
+                }
+                int copies = 1;
+                if (random.nextDouble() < c.duplicate) {
+                    copies = 2;
+                    duplicated.increment();
+                }
+                for (int i = 0; i < copies; i++) {
+                    double delayMs = c.latencyMs + c.jitterMs * (2 * random.nextDouble() - 1);
+                    if (random.nextDouble() < c.reorder) {
+                        delayMs += c.reorderMs;
+                        reordered.increment();
+                    }
+                    long due = depart + (long) (Math.max(0, delayMs) * 1_000_000);
+                    inFlight.add(new Datagram(data, from.address, to, due, order++));
+                }
+            }
+        }
+    }
+
+    private void deliverLoop() {
+        while (!closed) {
+            try {
+                Datagram d = inFlight.take();
+                if (d.to.offer(d)) {
+                    delivered.increment();
+                } else {
+                    droppedBuffer.increment();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        deliverer.interrupt();
+        for (Endpoint e : endpoints.values()) {
+            e.close();
+        }
+    }
+
+    public String summary() {
+        return String.format("enviados=%d entregues=%d perdidos=%d duplicados=%d reordenados=%d "
+                        + "descartados: fila=%d buffer=%d mtu=%d sem destino=%d",
+                sent.sum(), delivered.sum(), lost.sum(), duplicated.sum(), reordered.sum(),
+                droppedQueue.sum(), droppedBuffer.sum(), droppedMtu.sum(), droppedNoRoute.sum());
+    }
+
+    public long getSent() { return sent.sum(); }
+    public long getDelivered() { return delivered.sum(); }
+    public long getLost() { return lost.sum(); }
+    public long getDropped() {
+        return droppedQueue.sum() + droppedBuffer.sum() + droppedMtu.sum() + droppedNoRoute.sum();
+    }
+
+    // Ponto de acesso de um nó à rede emulada
+    public final class Endpoint implements Transport {
+        private final InetSocketAddress address;
+        private final InetSocketAddress broadcastAddress;
+        private final ArrayDeque<Datagram> inbox = new ArrayDeque<>();
+        private long inboxBytes;
+        private boolean woken;
+        private boolean open = true;
+        // Instante em que o enlace de saída fica livre (guardado pelo monitor da rede)
+        private long linkFreeAt;
+
+        private Endpoint(InetSocketAddress address) {
+            this.address = address;
+            this.broadcastAddress = new InetSocketAddress(BROADCAST, address.getPort());
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return address;
+        }
+
+        @Override
+        public InetSocketAddress getBroadcastAddress() {
+            return broadcastAddress;
+        }
+
+        @Override
+        public boolean send(ByteBuffer buf, InetSocketAddress dest) throws IOException {
+            if (!isOpen()) throw new ClosedChannelException();
+            MemoryNetwork.this.send(this, buf, dest);
+            return true;
+        }
+
+        private synchronized boolean isOpen() {
+            return open;
+        }
+
+        private synchronized boolean offer(Datagram d) {
+            if (!open) return true;
+            if (inboxBytes + d.data.length > conditions.receiveBuffer) return false;
+            inbox.add(d);
+            inboxBytes += d.data.length;
+            notifyAll();
+            return true;
+        }
+
+        // Como no UDP, o que não cabe em dst é descartado
+        @Override
+        public synchronized InetSocketAddress receive(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            Datagram d = inbox.poll();
+            if (d == null) return null;
+            inboxBytes -= d.data.length;
+            dst.put(d.data, 0, Math.min(d.data.length, dst.remaining()));
+            return d.from;
+        }
+
+        @Override
+        public synchronized void await() throws IOException {
+            try {
+                while (inbox.isEmpty() && !woken && open) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            woken = false;
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        @Override
+        public void setTrafficClass(int tos) {
+            throw new UnsupportedOperationException("Rede emulada sem DSCP");
+        }
+
+        @Override
+        public int mtu(InetSocketAddress dest) {
+            return conditions.mtu;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                open = false;
+                inbox.clear();
+                inboxBytes = 0;
+                notifyAll();
+            }
+            endpoints.remove(address, this);
+        }
+    }
+}
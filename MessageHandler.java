@@ -1,26 +1,249 @@
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Base64;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
 
 public class MessageHandler {
-    // Estrutura para rastrear arquivos sendo recebidos
-    private static final Map<String, FileInfo> receivingFiles = new HashMap<>();
+    // Recepções de um nó (acessadas pelos workers de recepção). Ficam no UdpNode, não aqui, para que
+    // vários nós possam rodar na mesma JVM (ver MemoryNetwork)
+    public static class ReceiveState {
+        // Arquivos sendo recebidos, pelo remetente e ID da transferência: cada nó numera os seus envios
+        // a partir de msg1, então o mesmo ID de dois remetentes são recepções diferentes
+        final Map<Key, FileInfo> files = new ConcurrentHashMap<>();
+        // Recepções validadas no END, para reconfirmar chunks e END atrasados sem reabri-las
+        final Set<Key> finished = ConcurrentHashMap.newKeySet();
+        // Recepções com ACK atrasado pendente, pelo remetente: um envio nosso para ele leva o ACK de carona
+        final Map<InetSocketAddress, FileInfo> delayedAcks = new ConcurrentHashMap<>();
+    }
+
+    // Uma recepção: endereço do remetente + ID numérico da transferência (o N de "msgN"), que é o
+    // mesmo nas mensagens de texto e nos quadros binários
+    static final class Key {
+        final InetAddress addr;
+        final int port;
+        final long transferId;
+
+        Key(InetAddress addr, int port, long transferId) {
+            this.addr = addr;
+            this.port = port;
+            this.transferId = transferId;
+        }
+
+        Key(InetAddress addr, int port, String id) {
+            this(addr, port, UdpNode.transferIdOf(id));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return transferId == k.transferId && port == k.port && addr.equals(k.addr);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Long.hashCode(transferId) * 31 + port) * 31 + addr.hashCode();
+        }
+    }
+
+    // Opções que este nó aceita como receptor
+    private static final TransferOptions SUPPORTED = TransferOptions.local();
+    // Bitmap máximo de um SACK (cobre até 2048 chunks acima do ACK cumulativo)
+    private static final int MAX_SACK_BYTES = 256;
+    private static final ThreadLocal<ByteBuffer> SACK_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(FrameCodec.HEADER_SIZE + MAX_SACK_BYTES));
+    private static final ThreadLocal<byte[]> SACK_BITMAP = ThreadLocal.withInitial(() -> new byte[MAX_SACK_BYTES]);
+    // NAK de envio em grupo: rodada(4) + bitmap de até 8192 chunks a partir do primeiro que falta
+    private static final int MAX_NAK_BYTES = 1024;
+    private static final ThreadLocal<ByteBuffer> NAK_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(FrameCodec.HEADER_SIZE + 4 + MAX_NAK_BYTES));
+    private static final ThreadLocal<byte[]> NAK_PAYLOAD = ThreadLocal.withInitial(() -> new byte[4 + MAX_NAK_BYTES]);
+    // Quadro SIG: cabeçalho + até SIGS_PER_FRAME assinaturas
+    private static final ThreadLocal<ByteBuffer> SIG_BUFFER = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(FrameCodec.HEADER_SIZE + DeltaSync.SIGS_PER_FRAME * DeltaSync.SIG_SIZE));
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+    // Destino dos chunks comprimidos (FLAG_DEFLATE), descomprimidos no worker antes da escrita
+    private static final ThreadLocal<ByteBuffer> INFLATE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(TransferOptions.MAX_CHUNK));
+    // Tamanho de chunk do protocolo de texto, usado para calcular a posição de escrita
+    private static final int LEGACY_CHUNK_SIZE = 1024;
+    // Intervalo mínimo entre checkpoints do mapa de chunks recebidos (ms)
+    private static final long CHECKPOINT_INTERVAL = 2000;
+    // ACK atrasado (binário): chunks em ordem são confirmados a cada ACK_EVERY ou após ACK_DELAY ms,
+    // o que vier antes; fora de ordem, duplicado, buraco preenchido ou último chunk confirmam na hora.
+    // -Dlabredes.ackDelay=0 volta a confirmar cada chunk.
+    private static final long ACK_DELAY = Long.getLong("labredes.ackDelay", 20);
+    private static final int ACK_EVERY = Integer.getInteger("labredes.ackEvery", 8);
+    // Eventos por pacote: poucas linhas por segundo, o resto é contado e informado na linha seguinte
+    private static final Log.Limiter CHUNK_LOG = new Log.Limiter(Log.Level.DEBUG, 20);
+    private static final Log.Limiter ACK_LOG = new Log.Limiter(Log.Level.DEBUG, 20);
+    private static final Log.Limiter CORRUPT_LOG = new Log.Limiter(Log.Level.ERRO, 5);
+    private static final Log.Limiter UNKNOWN_LOG = new Log.Limiter(Log.Level.AVISO, 5);
     
     // Classe interna para rastrear informações de arquivos sendo recebidos
     private static class FileInfo {
+        String id;
+        Key key;
         String fileName;
         long size;
-        RandomAccessFile file;
-        Map<Integer, Boolean> receivedChunks = new HashMap<>();
+        int chunkSize = LEGACY_CHUNK_SIZE;
+        File target;
+        ReceiveStorage storage;
+        BitSet received = new BitSet();   // bit seq = chunk seq já gravado
+        int contiguous;   // maior seq tal que todos os anteriores foram recebidos
+        int highestSeq;   // maior seq recebido
+        // MD5 incremental: chunks em ordem entram direto; os que chegaram adiantados são relidos
+        // do armazenamento quando o buraco anterior é preenchido. Nulo em recepções retomadas,
+        // que calculam o hash do arquivo inteiro no END.
+        MessageDigest md5 = FileUtils.newMD5();
+        int hashedUpTo;
+        ByteBuffer hashBuf;
+        // Remetente, para avisá-lo se a recepção for cancelada aqui
+        InetSocketAddress peer;
+        // Chunks em ordem ainda não confirmados e o temporizador do ACK atrasado
+        int unacked;
+        TimerWheel.Timeout ackTimer;
+        Transfer transfer;
+        // Versão do arquivo de origem (OFFER resume=...); sem ela não há checkpoint
+        String version;
+        long lastCheckpoint;
+        boolean closed;
+        // FEC: chunks por grupo (0 = sem FEC) e paridades de grupos com mais de um chunk faltando
+        int fecGroup;
+        Map<Integer, byte[]> parity = new HashMap<>();
+        ByteBuffer fecBuf;
+        int recovered;
+        // Envio em grupo (GFILE): chunks chegam por broadcast e não são confirmados um a um;
+        // os buracos só são informados quando o remetente pergunta (GPOLL)
+        boolean group;
+        // Delta (DeltaSync): cópia anterior posta de lado no FILE, bloco e assinaturas enviadas ao
+        // remetente (quadros já calculados em signedFrames). Depois do DELTA os chunks são do delta,
+        // gravado em deltaFile, e 'size' passa a ser o tamanho dele; o arquivo final tem finalSize.
+        File basis;
+        long basisSize;
+        int deltaBlock;
+        byte[] signatures;
+        volatile int signedFrames;
+        File deltaFile;
+        long finalSize;
         
-        public FileInfo(String fileName, long size) throws IOException {
+        public FileInfo(String id, String fileName, long size, File target) throws IOException {
+            this.id = id;
             this.fileName = fileName;
             this.size = size;
-            this.file = new RandomAccessFile("received_" + fileName, "rw");
-            file.setLength(size);
+            this.target = target;
+            this.storage = ReceiveStorage.open(target, size);
+        }
+
+        int totalChunks() {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        // Fixa o tamanho de chunk negociado no OFFER. Com checkpoint da mesma versão, fica com o tamanho
+        // dele (se não passar do proposto) para que a retomada aproveite os chunks já gravados.
+        // Depois do primeiro chunk o tamanho não muda mais (OFFER repetido).
+        synchronized int negotiateChunkSize(int proposed, String version) {
+            if (this.version != null || !received.isEmpty()) return chunkSize;
+            chunkSize = proposed;
+            if (version != null) {
+                TransferCheckpoint cp = TransferCheckpoint.load(TransferCheckpoint.sidecarOf(target));
+                if (cp != null && cp.chunkSize <= proposed && cp.matches(fileName, size, cp.chunkSize, version)) {
+                    chunkSize = cp.chunkSize;
+                }
+            }
+            hashBuf = null;
+            return chunkSize;
+        }
+
+        // O remetente não recebeu o ACCEPT e caiu para o protocolo de texto, de chunks de 1 KB:
+        // descarta o que foi negociado (tamanho e retomada) e recomeça a recepção
+        synchronized void fallBackToText() {
+            chunkSize = LEGACY_CHUNK_SIZE;
+            version = null;
+            received.clear();
+            contiguous = 0;
+            highestSeq = 0;
+            md5 = FileUtils.newMD5();
+            hashedUpTo = 0;
+            hashBuf = null;
+            fecGroup = 0;
+            parity.clear();
+        }
+
+        // Carrega o checkpoint da mesma versão do arquivo, se houver, e retorna os chunks já recebidos
+        synchronized BitSet resume(String version) {
+            if (this.version == null) {
+                this.version = version;
+                TransferCheckpoint cp = TransferCheckpoint.load(TransferCheckpoint.sidecarOf(target));
+                if (cp != null && cp.matches(fileName, size, chunkSize, version)) {
+                    received.or(cp.received);
+                    received.clear(0);
+                    if (received.length() > totalChunks() + 1) {
+                        received.clear(totalChunks() + 1, received.length());
+                    }
+                    contiguous = received.nextClearBit(1) - 1;
+                    highestSeq = Math.max(0, received.length() - 1);
+                    md5 = null;
+                    transfer.addBytes(Math.min(size, (long) received.cardinality() * chunkSize));
+                }
+            }
+            return (BitSet) received.clone();
+        }
+
+        // Dados primeiro, depois o mapa: o checkpoint nunca aponta para chunks que não estão no disco
+        synchronized void checkpoint() throws IOException {
+            if (version == null || closed) return;
+            storage.sync();
+            new TransferCheckpoint(fileName, size, chunkSize, version, received)
+                    .save(TransferCheckpoint.sidecarOf(target));
+            lastCheckpoint = System.currentTimeMillis();
+        }
+
+        synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                storage.close();
+            }
+        }
+
+        // "DELTA": os chunks seguintes são do delta. O arquivo final só é montado no END.
+        synchronized void switchToDelta(long deltaSize) throws IOException {
+            storage.close();
+            finalSize = size;
+            size = deltaSize;
+            deltaFile = DeltaSync.deltaOf(target);
+            deltaFile.delete();
+            storage = ReceiveStorage.open(deltaFile, deltaSize);
+            // Sem MD5 incremental (o hash é o do arquivo aplicado) nem checkpoint
+            md5 = null;
+            hashBuf = null;
+            version = null;
+        }
+
+        // Fim da recepção: a cópia anterior só é descartada se o arquivo novo foi validado;
+        // senão volta para o lugar dele
+        void releaseBasis(boolean ok) {
+            if (deltaFile != null) {
+                deltaFile.delete();
+            }
+            if (basis == null || !basis.exists()) return;
+            if (ok) {
+                basis.delete();
+            } else {
+                target.delete();
+                basis.renameTo(target);
+            }
         }
     }
 
@@ -40,31 +263,148 @@ public class MessageHandler {
             case "FILE":
                 handleFile(msg, addr, port, node);
                 break;
+            case "GFILE":
+                handleGroupFile(msg, addr, port, node);
+                break;
+            case "GPOLL":
+                handleGroupPoll(msg, addr, port, node);
+                break;
+            case "GACK":
+                handleGroupJoin(msg, addr, port, node);
+                break;
             case "CHUNK":
                 handleChunk(msg, addr, port, node);
                 break;
             case "END":
                 handleEnd(msg, addr, port, node);
                 break;
+            case "OFFER":
+                handleOffer(msg, addr, port, node);
+                break;
+            case "ACCEPT":
+            case "RESUME":
+                handleAccept(msg, node);
+                break;
+            case "SIGREQ":
+                handleSignatureRequest(msg, addr, port, node);
+                break;
+            case "DELTA":
+                handleDelta(msg, addr, port, node);
+                break;
+            case "DELTAOK":
+                if (parts.length < 2) return;
+                node.completeHandshake(parts[1].trim() + "-delta", new TransferOptions());
+                break;
             case "ACK":
-                handleAck(msg, node);
+                handleAck(msg, addr, port, node);
                 break;
             case "NACK":
-                handleNack(msg);
+                handleNack(msg, addr, port, node);
+                break;
+            case "WHO":
+                node.getSwarm().onWho(msg, addr, port);
+                break;
+            case "HAVE":
+                node.getSwarm().onHave(msg, addr, port);
+                break;
+            case "PULL":
+                node.getSwarm().onPull(msg, addr, port);
+                break;
+            case "PMTU":
+                node.getPathMtu().handleProbe(msg, addr, port);
+                break;
+            case "PMTUACK":
+                node.getPathMtu().handleAck(msg);
+                break;
+            case "PING":
+            case "PINGREQ":
+            case "PONG":
+                handleMembership(command, msg, addr, port, node);
+                break;
+            default:
+                if (UNKNOWN_LOG.allow()) UNKNOWN_LOG.log("[WARN] Mensagem desconhecida: " + msg);
+        }
+    }
+
+    public static void handleFrame(FrameCodec.Frame frame, InetAddress addr, int port, UdpNode node) {
+        switch (frame.type) {
+            case FrameCodec.TYPE_DATA:
+                handleBinaryChunk(frame, addr, port, node);
+                break;
+            case FrameCodec.TYPE_SACK:
+                SendWindow window = windowFrom(frame.transferId, addr, port, node);
+                if (window != null) {
+                    window.onSack(frame);
+                }
+                break;
+            case FrameCodec.TYPE_PARITY:
+                handleParity(frame, addr, port, node);
+                break;
+            case FrameCodec.TYPE_NACK:
+                SendWindow nacked = windowFrom(frame.transferId, addr, port, node);
+                if (nacked != null) {
+                    nacked.onNack(frame.seq);
+                }
+                break;
+            case FrameCodec.TYPE_SIG:
+                DeltaSync.Signatures sigs = node.getSignatures(frame.transferId);
+                if (sigs != null) {
+                    sigs.onFrame(frame);
+                }
+                break;
+            case FrameCodec.TYPE_NAK:
+                GroupSender group = node.getGroupSender(frame.transferId);
+                if (group != null) {
+                    group.onNak(frame, new InetSocketAddress(addr, port));
+                }
                 break;
             default:
-                System.out.println("[WARN] Mensagem desconhecida: " + msg);
+                if (UNKNOWN_LOG.allow()) UNKNOWN_LOG.log("[WARN] Quadro binário desconhecido: tipo=" + frame.type);
         }
     }
 
+    // Janela de envio do ID, se a mensagem veio do destino dela: o mesmo ID vindo de outro nó é de
+    // uma transferência dele
+    private static SendWindow windowFrom(long transferId, InetAddress addr, int port, UdpNode node) {
+        SendWindow window = node.getSendWindow(transferId);
+        return window != null && window.getPeer().isAt(addr, port) ? window : null;
+    }
+
+    // Destino de uma recepção, no diretório do nó
+    static File receivedFile(String fileName, UdpNode node) {
+        return new File(node.getDirectory(), "received_" + fileName);
+    }
+
+    // ID da recepção no console (transfers, cancel): o do remetente, que só é único entre os envios dele
+    static String inboundId(String id, InetAddress addr, int port) {
+        return id + "@" + addr.getHostAddress() + ":" + port;
+    }
+
     private static void handleHeartbeat(String otherName, InetAddress addr, int port, UdpNode node) {
-        long now = System.currentTimeMillis();
-        if (!node.getActiveDevices().containsKey(otherName)) {
-            node.getActiveDevices().put(otherName, new DeviceInfo(otherName, addr.getHostAddress(), port, now));
-            System.out.println(">>> [INFO] Novo dispositivo encontrado: " + otherName
-                    + " (" + addr.getHostAddress() + ":" + port + ")");
-        } else {
-            node.getActiveDevices().get(otherName).setLastHeartbeat(now);
+        node.onHeartbeat(otherName, addr, port);
+    }
+
+    // PING, PINGREQ e PONG: só fazem sentido com a pertinência por gossip ativada
+    private static void handleMembership(String command, String msg, InetAddress addr, int port, UdpNode node) {
+        Membership membership = node.getMembership();
+        if (membership == null) {
+            Log.warn("[WARN] " + command + " recebido sem -Dlabredes.membership=gossip");
+            return;
+        }
+        String[] tokens = msg.split(" ");
+        try {
+            switch (command) {
+                case "PING":
+                    membership.handlePing(tokens, addr, port);
+                    break;
+                case "PINGREQ":
+                    membership.handlePingReq(tokens, addr, port);
+                    break;
+                default:
+                    membership.handlePong(tokens, addr, port);
+            }
+        } catch (NumberFormatException e) {
+            Log.warn("[WARN] Mensagem de pertinência malformada: " + msg);
         }
     }
 
@@ -73,8 +413,8 @@ public class MessageHandler {
         if (tokens.length < 3) return;
         String id = tokens[1];
         String dados = tokens[2];
-        node.sendUdp("ACK " + id, addr.getHostAddress(), port);
-        System.out.println(">>> [TALK recebido] ID=" + id + " Mensagem=\"" + dados +
+        node.sendUdp("ACK " + id, addr, port);
+        Log.info(">>> [TALK recebido] ID=" + id + " Mensagem=\"" + dados +
                 "\" de " + addr.getHostAddress() + ":" + port);
     }
 
@@ -84,18 +424,299 @@ public class MessageHandler {
         String id = tokens[1];
         String nomeArq = tokens[2];
         long tamanho = Long.parseLong(tokens[3]);
+        Key key = new Key(addr, port, id);
+        if (node.getReceiveState().files.containsKey(key)) {
+            // FILE retransmitido (o ACK se perdeu): a recepção já está aberta
+            node.sendUdp("ACK " + id, addr, port);
+            return;
+        }
+        // Uma nova transferência do mesmo arquivo substitui a anterior (ex.: o remetente desistiu
+        // após a queda do enlace); o checkpoint gravado aqui é o que permite retomá-la
+        for (FileInfo old : node.getReceiveState().files.values()) {
+            if (old.fileName.equals(nomeArq)) {
+                abandon(old, node);
+            }
+        }
         
         try {
+            // Uma cópia completa de um envio anterior vira a base de um possível delta (DeltaSync);
+            // com checkpoint ela é uma recepção interrompida e fica onde está para a retomada
+            File target = receivedFile(nomeArq, node);
+            File basis = DeltaSync.basisOf(target);
+            if (target.length() > 0 && !TransferCheckpoint.sidecarOf(target).exists()) {
+                Files.move(target.toPath(), basis.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
             // Inicializa a estrutura para receber os chunks
-            FileInfo fileInfo = new FileInfo(nomeArq, tamanho);
-            receivingFiles.put(id, fileInfo);
+            FileInfo fileInfo = new FileInfo(id, nomeArq, tamanho, target);
+            if (basis.isFile()) {
+                fileInfo.basis = basis;
+                fileInfo.basisSize = basis.length();
+            }
+            fileInfo.key = key;
+            fileInfo.peer = new InetSocketAddress(addr, port);
+            fileInfo.transfer = node.getTransfers().registerInbound(inboundId(id, addr, port),
+                    node.peerLabel(addr, port), nomeArq, tamanho);
+            node.getReceiveState().files.put(key, fileInfo);
             
-            node.sendUdp("ACK " + id, addr.getHostAddress(), port);
-            System.out.println(">>> [FILE recebido] ID=" + id + " Arquivo=\"" + nomeArq + "\" Tamanho=" + tamanho);
+            node.sendUdp("ACK " + id, addr, port);
+            Log.info(">>> [FILE recebido] ID=" + id + " Arquivo=\"" + nomeArq + "\" Tamanho=" + tamanho);
+        } catch (IOException e) {
+            Log.error(">>> [ERRO] Falha ao inicializar arquivo: " + e.getMessage());
+            node.sendUdp("NACK " + id + " FALHA_INICIALIZACAO", addr, port);
+        }
+    }
+
+    // "GFILE <id> <nome> <tamanho> <chunk>": convite para um envio em grupo (ver GroupSender).
+    // Abre a recepção como o FILE, já com o tamanho de chunk fixado, e entra no grupo com GACK.
+    private static void handleGroupFile(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 5) return;
+        String id = tokens[1];
+        String nomeArq = tokens[2];
+        long tamanho = Long.parseLong(tokens[3]);
+        int chunk = Integer.parseInt(tokens[4]);
+        if (chunk <= 0 || chunk > TransferOptions.MAX_CHUNK) {
+            node.sendUdp("NACK " + id + " CHUNK_INVALIDO", addr, port);
+            return;
+        }
+        Key key = new Key(addr, port, id);
+        if (node.getReceiveState().files.containsKey(key)) {
+            node.sendUdp("GACK " + id, addr, port);
+            return;
+        }
+        for (FileInfo old : node.getReceiveState().files.values()) {
+            if (old.fileName.equals(nomeArq)) {
+                abandon(old, node);
+            }
+        }
+
+        try {
+            FileInfo fileInfo = new FileInfo(id, nomeArq, tamanho, receivedFile(nomeArq, node));
+            fileInfo.chunkSize = chunk;
+            fileInfo.group = true;
+            fileInfo.key = key;
+            fileInfo.peer = new InetSocketAddress(addr, port);
+            fileInfo.transfer = node.getTransfers().registerInbound(inboundId(id, addr, port),
+                    node.peerLabel(addr, port), nomeArq, tamanho);
+            node.getReceiveState().files.put(key, fileInfo);
+
+            node.sendUdp("GACK " + id, addr, port);
+            Log.info(">>> [GFILE recebido] ID=" + id + " Arquivo=\"" + nomeArq + "\" Tamanho=" + tamanho
+                    + " chunk=" + chunk + " (broadcast)");
+        } catch (IOException e) {
+            Log.error(">>> [ERRO] Falha ao inicializar arquivo: " + e.getMessage());
+            node.sendUdp("NACK " + id + " FALHA_INICIALIZACAO", addr, port);
+        }
+    }
+
+    // "GPOLL <id> <rodada>": responde com um quadro NAK. seq = primeiro chunk que falta (0 = nenhum);
+    // payload = rodada + bitmap onde o bit i indica o chunk (seq + i). Buracos além do bitmap
+    // ficam para a rodada seguinte.
+    private static void handleGroupPoll(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 3) return;
+        String id = tokens[1];
+        int round = Integer.parseInt(tokens[2]);
+        Key key = new Key(addr, port, id);
+        byte[] payload = NAK_PAYLOAD.get();
+        int first = 0;
+        int bytes = 0;
+        FileInfo fileInfo = node.getReceiveState().files.get(key);
+        if (fileInfo == null && !node.getReceiveState().finished.contains(key)) return;
+        if (fileInfo != null) {
+            synchronized (fileInfo) {
+                if (fileInfo.closed) return;
+                int total = fileInfo.totalChunks();
+                first = fileInfo.received.nextClearBit(1);
+                if (first > total) {
+                    first = 0;
+                } else {
+                    int span = Math.min(total - first + 1, MAX_NAK_BYTES * 8);
+                    bytes = (span + 7) / 8;
+                    Arrays.fill(payload, 4, 4 + bytes, (byte) 0);
+                    for (int i = 0; i < span; i++) {
+                        if (!fileInfo.received.get(first + i)) {
+                            payload[4 + (i >> 3)] |= (byte) (1 << (i & 7));
+                        }
+                    }
+                }
+            }
+        }
+        ByteBuffer.wrap(payload).putInt(0, round);
+        ByteBuffer buf = NAK_BUFFER.get();
+        FrameCodec.encode(buf, FrameCodec.TYPE_NAK, (byte) 0, key.transferId, first, payload, 0, 4 + bytes);
+        node.sendFrame(buf, new InetSocketAddress(addr, port));
+    }
+
+    // "GACK <id>": um receptor entrou no envio em grupo
+    private static void handleGroupJoin(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 2) return;
+        GroupSender group = node.getGroupSender(UdpNode.transferIdOf(tokens[1]));
+        if (group != null) {
+            group.onJoin(new InetSocketAddress(addr, port));
+        }
+    }
+
+    // Cancelamento pelo console do receptor: guarda o checkpoint e avisa o remetente
+    public static boolean cancelReceive(Transfer transfer, UdpNode node) {
+        for (FileInfo fileInfo : node.getReceiveState().files.values()) {
+            if (fileInfo.transfer == transfer) {
+                abandon(fileInfo, node);
+                node.sendUdp("NACK " + fileInfo.id + " " + UdpNode.CANCEL_REASON, fileInfo.peer);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void abandon(FileInfo fileInfo, UdpNode node) {
+        node.getReceiveState().files.remove(fileInfo.key, fileInfo);
+        fileInfo.transfer.setState(Transfer.State.CANCELADA);
+        try {
+            fileInfo.checkpoint();
+            fileInfo.close();
+            if (fileInfo.deltaFile != null) {
+                // O delta não se retoma: a cópia anterior volta para o lugar
+                fileInfo.releaseBasis(false);
+            }
+            Log.info(">>> [INFO] Recepção ID=" + fileInfo.id + " interrompida; "
+                    + fileInfo.received.cardinality() + " chunks guardados para retomada");
+        } catch (IOException e) {
+            Log.error(">>> [ERRO] Falha ao salvar checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static void handleOffer(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 2) return;
+        String id = tokens[1];
+        TransferOptions offered = TransferOptions.parse(tokens, 2);
+        TransferOptions accepted = offered.accept(SUPPORTED);
+
+        // Sem o FILE ainda (perdido ou atrasado) não há onde fixar o tamanho: fica o padrão
+        FileInfo fileInfo = node.getReceiveState().files.get(new Key(addr, port, id));
+        if (fileInfo == null || !accepted.binary) {
+            accepted.chunk = 0;
+            accepted.fec = 0;
+        } else {
+            if (accepted.chunk > 0) {
+                accepted.chunk = fileInfo.negotiateChunkSize(accepted.chunk, offered.resume);
+            }
+            synchronized (fileInfo) {
+                fileInfo.fecGroup = accepted.fec;
+            }
+        }
+
+        // Retomada: só o protocolo binário sabe pular chunks
+        if (fileInfo != null && accepted.binary && offered.resume != null) {
+            BitSet have = fileInfo.resume(offered.resume);
+            if (!have.isEmpty()) {
+                accepted.have = have;
+                node.sendUdp("RESUME " + id + " " + accepted, addr, port);
+                Log.info(">>> [RESUME] ID=" + id + " " + have.cardinality() + " de "
+                        + fileInfo.totalChunks() + " chunks já recebidos");
+                return;
+            }
+        }
+        boolean sign = fileInfo != null && accepted.binary && offered.delta > 0 && offerDelta(fileInfo, accepted);
+        node.sendUdp("ACCEPT " + id + " " + accepted, addr, port);
+        if (sign) {
+            node.getTransfers().submit(() -> signBasis(fileInfo, node));
+        }
+    }
+
+    // Com uma cópia anterior do arquivo, aceita o delta com o bloco escolhido para ela.
+    // Retorna true se as assinaturas ainda precisam ser calculadas (primeiro OFFER).
+    private static boolean offerDelta(FileInfo fileInfo, TransferOptions accepted) {
+        synchronized (fileInfo) {
+            if (fileInfo.basis == null || fileInfo.group || !fileInfo.received.isEmpty()) return false;
+            int block = DeltaSync.blockSizeFor(fileInfo.basisSize);
+            if (DeltaSync.blockCount(fileInfo.basisSize, block) == 0) return false;
+            accepted.delta = block;
+            accepted.basis = fileInfo.basisSize;
+            if (fileInfo.signatures != null) return false;
+            fileInfo.deltaBlock = block;
+            fileInfo.signatures = new byte[DeltaSync.blockCount(fileInfo.basisSize, block) * DeltaSync.SIG_SIZE];
+            return true;
+        }
+    }
+
+    // Calcula as assinaturas da base e as envia ao remetente à medida que cada quadro fica pronto
+    private static void signBasis(FileInfo fileInfo, UdpNode node) {
+        long start = System.currentTimeMillis();
+        try {
+            DeltaSync.sign(fileInfo.basis, fileInfo.deltaBlock, fileInfo.signatures, index -> {
+                fileInfo.signedFrames = index + 1;
+                sendSignatureFrame(fileInfo, index, node);
+            });
+            Log.info(">>> [DELTA] ID=" + fileInfo.id + " " + fileInfo.signatures.length / DeltaSync.SIG_SIZE
+                    + " assinaturas de blocos de " + fileInfo.deltaBlock + " bytes enviadas em "
+                    + (System.currentTimeMillis() - start) + " ms");
         } catch (IOException e) {
-            System.out.println(">>> [ERRO] Falha ao inicializar arquivo: " + e.getMessage());
-            node.sendUdp("NACK " + id + " FALHA_INICIALIZACAO", addr.getHostAddress(), port);
+            // Sem as assinaturas o remetente desiste do delta e envia o arquivo inteiro
+            Log.error(">>> [ERRO] Falha ao calcular assinaturas: " + e.getMessage());
+        }
+    }
+
+    // Só em threads de controle (signBasis, SIGREQ): pace bloqueia até haver tokens
+    private static void sendSignatureFrame(FileInfo fileInfo, int index, UdpNode node) {
+        int blocks = fileInfo.signatures.length / DeltaSync.SIG_SIZE;
+        int first = index * DeltaSync.SIGS_PER_FRAME;
+        int count = Math.min(DeltaSync.SIGS_PER_FRAME, blocks - first);
+        if (count <= 0) return;
+        ByteBuffer buf = SIG_BUFFER.get();
+        FrameCodec.encode(buf, FrameCodec.TYPE_SIG, (byte) 0, fileInfo.key.transferId, index,
+                fileInfo.signatures, first * DeltaSync.SIG_SIZE, count * DeltaSync.SIG_SIZE);
+        node.getTransfers().pace(fileInfo.transfer.getPeer(), buf.remaining());
+        node.sendFrame(buf, fileInfo.peer);
+    }
+
+    // "SIGREQ <id> <faixas>": quadros de assinaturas que não chegaram ao remetente. Reenviados numa
+    // thread de controle: cada quadro espera os tokens do destino, o que não pode parar um worker.
+    private static void handleSignatureRequest(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 3) return;
+        FileInfo fileInfo = node.getReceiveState().files.get(new Key(addr, port, tokens[1]));
+        if (fileInfo == null || fileInfo.signatures == null) return;
+        BitSet wanted = TransferOptions.parseRanges(tokens[2]);
+        int ready = fileInfo.signedFrames;
+        node.getTransfers().submit(() -> {
+            for (int i = wanted.nextSetBit(0); i >= 0 && i < ready; i = wanted.nextSetBit(i + 1)) {
+                sendSignatureFrame(fileInfo, i, node);
+            }
+        });
+    }
+
+    // "DELTA <id> <tamanho>": o remetente vai enviar o delta em vez do arquivo
+    private static void handleDelta(String fullMsg, InetAddress addr, int port, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 3) return;
+        String id = tokens[1];
+        long deltaSize = Long.parseLong(tokens[2]);
+        FileInfo fileInfo = node.getReceiveState().files.get(new Key(addr, port, id));
+        if (fileInfo == null) return;
+        synchronized (fileInfo) {
+            if (fileInfo.deltaFile == null) {
+                // Chunks do arquivo inteiro já gravados: o DELTA está fora de ordem, não confirma
+                if (fileInfo.signatures == null || !fileInfo.received.isEmpty()) return;
+                try {
+                    fileInfo.switchToDelta(deltaSize);
+                } catch (IOException e) {
+                    Log.error(">>> [ERRO] Falha ao preparar o delta: " + e.getMessage());
+                    return;
+                }
+                Log.info(">>> [DELTA] ID=" + id + " recebendo " + deltaSize + " bytes de diferença para "
+                        + fileInfo.finalSize + " bytes");
+            }
         }
+        node.sendUdp("DELTAOK " + id, addr, port);
+    }
+
+    private static void handleAccept(String fullMsg, UdpNode node) {
+        String[] tokens = fullMsg.split(" ");
+        if (tokens.length < 2) return;
+        node.completeHandshake(tokens[1], TransferOptions.parse(tokens, 2));
     }
 
     private static void handleChunk(String fullMsg, InetAddress addr, int port, UdpNode node) {
@@ -105,50 +726,331 @@ public class MessageHandler {
         int seq = Integer.parseInt(tokens[2]);
         String base64 = tokens[3];
         byte[] chunkData = Base64.getDecoder().decode(base64);
+        storeChunk(new Key(addr, port, id), id, -1, seq, ByteBuffer.wrap(chunkData), addr, port, node);
+    }
 
-        if (node.getArquivosFinalizados().contains(id)) {
-            System.out.println(">>> [INFO] CHUNK ignorado pois transferência já finalizada: ID=" + id + " seq=" + seq);
+    // Payload lido direto do buffer (direto) de recepção; só o lookup da transferência é feito pelo ID numérico
+    private static void handleBinaryChunk(FrameCodec.Frame frame, InetAddress addr, int port, UdpNode node) {
+        Key key = new Key(addr, port, frame.transferId);
+        FileInfo fileInfo = node.getReceiveState().files.get(key);
+        // Broadcast de um envio em grupo do qual não participamos (ou que já terminou aqui): ignora
+        boolean group = (frame.flags & FrameCodec.FLAG_GROUP) != 0;
+        boolean swarm = (frame.flags & FrameCodec.FLAG_SWARM) != 0;
+        if (group && fileInfo == null) return;
+        String id = fileInfo != null ? fileInfo.id : UdpNode.messageId(frame.transferId);
+        ByteBuffer payload = frame.buffer;
+        int dataLength = frame.length;
+        if ((frame.flags & FrameCodec.FLAG_CRC32C) != 0) {
+            dataLength -= FrameCodec.CRC_SIZE;
+            if (dataLength < 0 || !crcMatches(payload, frame.payloadOffset, dataLength)) {
+                // Pede o reenvio na hora em vez de descobrir a corrupção só no hash do END.
+                // Com FEC o chunk conta como perdido: a paridade do grupo ainda pode reconstruí-lo.
+                // Em grupo também: vai no NAK da rodada. Num download por conteúdo o PULL expira.
+                node.getMetrics().crcErrors.increment();
+                if (CORRUPT_LOG.allow()) CORRUPT_LOG.log(">>> [ERRO] CRC32C inválido: ID=" + id + " seq=" + frame.seq);
+                if (!group && !swarm && (fileInfo == null || fileInfo.fecGroup == 0)) {
+                    sendFrame(FrameCodec.TYPE_NACK, frame.transferId, frame.seq, addr, port, node);
+                }
+                return;
+            }
+        }
+        if (swarm) {
+            payload.limit(frame.payloadOffset + dataLength).position(frame.payloadOffset);
+            node.getSwarm().onChunk(frame.transferId, frame.seq, payload, addr, port);
+            return;
+        }
+        if ((frame.flags & FrameCodec.FLAG_ACK) != 0) {
+            // ACK de um envio nosso para este mesmo nó, de carona no chunk
+            dataLength -= FrameCodec.ACK_SIZE;
+            if (dataLength < 0) return;
+            int ackAt = frame.payloadOffset + dataLength;
+            SendWindow window = windowFrom(payload.getLong(ackAt), addr, port, node);
+            if (window != null) {
+                window.onAck(payload.getInt(ackAt + 8));
+            }
+        }
+        payload.limit(frame.payloadOffset + dataLength).position(frame.payloadOffset);
+        if ((frame.flags & FrameCodec.FLAG_DEFLATE) != 0) {
+            ByteBuffer inflated = INFLATE_BUFFER.get();
+            inflated.clear();
+            try {
+                ChunkCompressor.unpack(payload, inflated);
+            } catch (DataFormatException e) {
+                node.getMetrics().crcErrors.increment();
+                if (CORRUPT_LOG.allow()) CORRUPT_LOG.log(">>> [ERRO] Chunk comprimido inválido: ID=" + id + " seq=" + frame.seq);
+                if (fileInfo == null || fileInfo.fecGroup == 0) {
+                    sendFrame(FrameCodec.TYPE_NACK, frame.transferId, frame.seq, addr, port, node);
+                }
+                return;
+            }
+            inflated.flip();
+            payload = inflated;
+        }
+        storeChunk(key, id, frame.transferId, frame.seq, payload, addr, port, node);
+    }
+
+    // Paridade FEC de um grupo: guardada até o grupo ter exatamente um chunk faltando
+    private static void handleParity(FrameCodec.Frame frame, InetAddress addr, int port, UdpNode node) {
+        FileInfo fileInfo = node.getReceiveState().files.get(new Key(addr, port, frame.transferId));
+        if (fileInfo == null) return;
+        ByteBuffer payload = frame.buffer;
+        int length = frame.length;
+        if ((frame.flags & FrameCodec.FLAG_CRC32C) != 0) {
+            length -= FrameCodec.CRC_SIZE;
+            // Paridade corrompida é só descartada: os chunks do grupo ainda têm o reenvio
+            if (length < 0 || !crcMatches(payload, frame.payloadOffset, length)) {
+                node.getMetrics().crcErrors.increment();
+                return;
+            }
+        }
+        synchronized (fileInfo) {
+            int first = frame.seq;
+            if (fileInfo.closed || fileInfo.fecGroup == 0 || length > fileInfo.chunkSize
+                    || first < 1 || first > fileInfo.totalChunks() || Fec.firstOf(first, fileInfo.fecGroup) != first) {
+                return;
+            }
+            byte[] data = new byte[fileInfo.chunkSize];
+            payload.limit(frame.payloadOffset + length).position(frame.payloadOffset);
+            payload.get(data, 0, length);
+            fileInfo.parity.put(first, data);
+            try {
+                recoverFromParity(fileInfo, first, frame.transferId, addr, port, node);
+            } catch (IOException e) {
+                Log.error(">>> [ERRO] Falha ao reconstruir chunk: " + e.getMessage());
+            }
+        }
+    }
+
+    // Com a paridade do grupo e exatamente um chunk faltando, reconstrói esse chunk com o XOR
+    // da paridade e dos outros chunks do grupo (relidos do armazenamento) e o grava como recebido
+    private static void recoverFromParity(FileInfo fileInfo, int first, long transferId,
+                                          InetAddress addr, int port, UdpNode node) throws IOException {
+        byte[] acc = fileInfo.parity.get(first);
+        if (acc == null) return;
+        int last = Fec.lastOf(first, fileInfo.fecGroup, fileInfo.totalChunks());
+        int missing = -1;
+        for (int seq = first; seq <= last; seq++) {
+            if (fileInfo.received.get(seq)) continue;
+            // Duas perdas ou mais: espera algum deles chegar por reenvio
+            if (missing > 0) return;
+            missing = seq;
+        }
+        fileInfo.parity.remove(first);
+        if (missing < 0) return;
+        if (fileInfo.fecBuf == null) {
+            fileInfo.fecBuf = ByteBuffer.allocate(fileInfo.chunkSize);
+        }
+        ByteBuffer buf = fileInfo.fecBuf;
+        for (int seq = first; seq <= last; seq++) {
+            if (seq == missing) continue;
+            long position = (seq - 1L) * fileInfo.chunkSize;
+            buf.clear().limit((int) Math.min(fileInfo.chunkSize, fileInfo.size - position));
+            fileInfo.storage.read(position, buf);
+            buf.flip();
+            Fec.xor(acc, buf);
+        }
+        int length = (int) Math.min(fileInfo.chunkSize, fileInfo.size - (missing - 1L) * fileInfo.chunkSize);
+        fileInfo.recovered++;
+        if (CHUNK_LOG.allow()) CHUNK_LOG.log(">>> [FEC] ID=" + fileInfo.id + " seq=" + missing + " reconstruído pela paridade");
+        writeChunk(fileInfo, fileInfo.id, transferId, missing, ByteBuffer.wrap(acc, 0, length), length, addr, port, node);
+    }
+
+    private static boolean crcMatches(ByteBuffer buf, int offset, int length) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        int limit = buf.limit();
+        buf.limit(offset + length).position(offset);
+        crc.update(buf);
+        buf.limit(limit);
+        return (int) crc.getValue() == buf.getInt(offset + length);
+    }
+
+    // transferId >= 0 indica chunk binário (confirmado com SACK); -1 indica CHUNK de texto (ACK simples)
+    private static void storeChunk(Key key, String id, long transferId, int seq, ByteBuffer payload,
+                                   InetAddress addr, int port, UdpNode node) {
+        int length = payload.remaining();
+        if (node.getReceiveState().finished.contains(key)) {
+            if (CHUNK_LOG.allow()) CHUNK_LOG.log(">>> [INFO] CHUNK ignorado pois transferência já finalizada: ID=" + id + " seq=" + seq);
             // Envia ACK mesmo assim para evitar retransmissões
-            node.sendUdp("ACK " + id, addr.getHostAddress(), port);
+            ackChunk(null, id, transferId, seq, addr, port, node);
             return;
         }
         
-        FileInfo fileInfo = receivingFiles.get(id);
+        FileInfo fileInfo = node.getReceiveState().files.get(key);
         if (fileInfo == null) {
-            System.out.println(">>> [ERRO] Recebido CHUNK para transferência desconhecida: " + id);
-            node.sendUdp("NACK " + id + " TRANSFERENCIA_NAO_INICIADA", addr.getHostAddress(), port);
+            if (CORRUPT_LOG.allow()) CORRUPT_LOG.log(">>> [ERRO] Recebido CHUNK para transferência desconhecida: " + id);
+            node.sendUdp("NACK " + id + " TRANSFERENCIA_NAO_INICIADA", addr, port);
             return;
         }
         
+        synchronized (fileInfo) {
+            if (fileInfo.closed) return;
+            if (transferId < 0 && fileInfo.chunkSize != LEGACY_CHUNK_SIZE) {
+                Log.info(">>> [INFO] ID=" + id + " remetente usa o protocolo de texto; chunk de "
+                        + LEGACY_CHUNK_SIZE + " bytes");
+                fileInfo.fallBackToText();
+            }
+            writeChunk(fileInfo, id, transferId, seq, payload, length, addr, port, node);
+        }
+    }
+
+    private static void writeChunk(FileInfo fileInfo, String id, long transferId, int seq, ByteBuffer payload,
+                                   int length, InetAddress addr, int port, UdpNode node) {
         // Verifica se este chunk já foi recebido (para evitar duplicatas)
-        if (fileInfo.receivedChunks.containsKey(seq) && fileInfo.receivedChunks.get(seq)) {
-            System.out.println(">>> [INFO] CHUNK duplicado ignorado: ID=" + id + " seq=" + seq);
+        if (seq > 0 && fileInfo.received.get(seq)) {
+            node.getMetrics().duplicates.increment();
+            if (CHUNK_LOG.allow()) CHUNK_LOG.log(">>> [INFO] CHUNK duplicado ignorado: ID=" + id + " seq=" + seq);
             // Confirma mesmo assim para que o remetente possa prosseguir
-            node.sendUdp("ACK " + id, addr.getHostAddress(), port);
+            ackChunk(fileInfo, id, transferId, seq, addr, port, node);
             return;
         }
         
         try {
             // Calcula a posição no arquivo baseado no número de sequência
-            long position = (seq - 1) * 1024L; // Assume chunks de 1KB
-            if (position >= fileInfo.size) {
-                System.out.println(">>> [ERRO] Posição de chunk inválida: " + position + " (tamanho do arquivo: " + fileInfo.size + ")");
+            long position = (seq - 1L) * fileInfo.chunkSize;
+            if (position < 0 || position + length > fileInfo.size) {
+                Log.error(">>> [ERRO] Posição de chunk inválida: " + position + " (tamanho do arquivo: " + fileInfo.size + ")");
                 return;
             }
             
+            // Chunk seguinte ao último que entrou no hash: atualiza o MD5 antes de gravar
+            if (fileInfo.md5 != null && seq == fileInfo.hashedUpTo + 1) {
+                int start = payload.position();
+                fileInfo.md5.update(payload);
+                payload.position(start);
+                fileInfo.hashedUpTo = seq;
+            }
+
             // Escreve os dados no arquivo na posição correta
-            fileInfo.file.seek(position);
-            fileInfo.file.write(chunkData);
+            fileInfo.storage.write(position, payload);
             
             // Marca este chunk como recebido
-            fileInfo.receivedChunks.put(seq, true);
+            fileInfo.received.set(seq);
+            fileInfo.transfer.addBytes(length);
+            fileInfo.highestSeq = Math.max(fileInfo.highestSeq, seq);
+            fileInfo.contiguous = fileInfo.received.nextClearBit(fileInfo.contiguous + 1) - 1;
+            catchUpHash(fileInfo);
+            if (fileInfo.version != null
+                    && System.currentTimeMillis() - fileInfo.lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                fileInfo.checkpoint();
+            }
             
-            node.sendUdp("ACK " + id, addr.getHostAddress(), port);
-            System.out.println(">>> [CHUNK] ID=" + id + " seq=" + seq + " tamBytes=" + chunkData.length + " armazenado");
+            if (transferId >= 0 && ACK_DELAY > 0 && seq == fileInfo.contiguous && seq == fileInfo.highestSeq
+                    && seq < fileInfo.totalChunks() && ++fileInfo.unacked < ACK_EVERY) {
+                delayAck(fileInfo, transferId, node);
+            } else {
+                ackChunk(fileInfo, id, transferId, seq, addr, port, node);
+            }
+            if (CHUNK_LOG.allow()) CHUNK_LOG.log(">>> [CHUNK] ID=" + id + " seq=" + seq + " tamBytes=" + length + " armazenado");
+            if (fileInfo.fecGroup > 0 && !fileInfo.parity.isEmpty()) {
+                recoverFromParity(fileInfo, Fec.firstOf(seq, fileInfo.fecGroup), transferId, addr, port, node);
+            }
         } catch (IOException e) {
-            System.out.println(">>> [ERRO] Falha ao armazenar chunk: " + e.getMessage());
-            node.sendUdp("NACK " + id + " FALHA_IO", addr.getHostAddress(), port);
+            Log.error(">>> [ERRO] Falha ao armazenar chunk: " + e.getMessage());
+            node.sendUdp("NACK " + id + " FALHA_IO", addr, port);
+        }
+    }
+
+    // Inclui no MD5 os chunks que tinham chegado fora de ordem e agora estão na sequência
+    private static void catchUpHash(FileInfo fileInfo) throws IOException {
+        while (fileInfo.md5 != null && fileInfo.hashedUpTo < fileInfo.contiguous) {
+            int seq = fileInfo.hashedUpTo + 1;
+            long position = (seq - 1L) * fileInfo.chunkSize;
+            int length = (int) Math.min(fileInfo.chunkSize, fileInfo.size - position);
+            if (fileInfo.hashBuf == null) {
+                fileInfo.hashBuf = ByteBuffer.allocateDirect(fileInfo.chunkSize);
+            }
+            ByteBuffer buf = fileInfo.hashBuf;
+            buf.clear().limit(length);
+            fileInfo.storage.read(position, buf);
+            buf.flip();
+            fileInfo.md5.update(buf);
+            fileInfo.hashedUpTo = seq;
+        }
+    }
+
+    // Chunks de envio em grupo não são confirmados: os buracos vão no NAK (handleGroupPoll).
+    // No protocolo de texto o ACK leva o seq ("msgN-seqM"): "ACK msgN" é a confirmação do END.
+    private static void ackChunk(FileInfo fileInfo, String id, long transferId, int seq,
+                                 InetAddress addr, int port, UdpNode node) {
+        if (fileInfo != null && fileInfo.group) return;
+        if (transferId < 0) {
+            node.sendUdp("ACK " + id + UdpNode.SEQ_SEPARATOR + seq, addr, port);
+        } else {
+            sendSack(fileInfo, transferId, new InetSocketAddress(addr, port), node);
+        }
+    }
+
+    // Arma o temporizador do ACK atrasado (só no primeiro chunk não confirmado) e o deixa
+    // disponível para ir de carona num quadro DATA que enviarmos ao remetente antes disso
+    private static void delayAck(FileInfo fileInfo, long transferId, UdpNode node) {
+        if (fileInfo.ackTimer == null) {
+            fileInfo.ackTimer = new TimerWheel.Timeout(() -> flushDelayedAck(fileInfo, transferId, node));
+        }
+        if (!fileInfo.ackTimer.isScheduled()) {
+            node.getTimerWheel().schedule(fileInfo.ackTimer, ACK_DELAY);
+            node.getReceiveState().delayedAcks.put(fileInfo.peer, fileInfo);
+        }
+    }
+
+    private static void flushDelayedAck(FileInfo fileInfo, long transferId, UdpNode node) {
+        node.getReceiveState().delayedAcks.remove(fileInfo.peer, fileInfo);
+        synchronized (fileInfo) {
+            if (fileInfo.unacked > 0 && !fileInfo.closed) {
+                sendSack(fileInfo, transferId, fileInfo.peer, node);
+            }
+        }
+    }
+
+    // Chamado por SendWindow ao montar um quadro DATA para 'dest': se há ACK atrasado para ele,
+    // grava transferId(8) + cumulativo(4) em dst a partir de 'offset' e o dá por enviado
+    public static boolean takeDelayedAck(UdpNode node, InetSocketAddress dest, ByteBuffer dst, int offset) {
+        FileInfo fileInfo = node.getReceiveState().delayedAcks.remove(dest);
+        if (fileInfo == null) return false;
+        synchronized (fileInfo) {
+            if (fileInfo.unacked == 0 || fileInfo.closed) return false;
+            fileInfo.unacked = 0;
+            fileInfo.ackTimer.cancel();
+            dst.putLong(offset, fileInfo.key.transferId);
+            dst.putInt(offset + 8, fileInfo.contiguous);
+            return true;
+        }
+    }
+
+    // SACK: seq = ACK cumulativo; payload = bitmap onde o bit i indica o seq (cumulativo + 2 + i).
+    // Sem FileInfo a transferência já terminou, então tudo é confirmado.
+    private static void sendSack(FileInfo fileInfo, long transferId, InetSocketAddress dest, UdpNode node) {
+        byte[] bitmap = SACK_BITMAP.get();
+        int cum = Integer.MAX_VALUE;
+        int bytes = 0;
+        if (fileInfo != null) {
+            // Este SACK cobre tudo o que estava esperando o ACK atrasado
+            fileInfo.unacked = 0;
+            if (fileInfo.ackTimer != null) {
+                fileInfo.ackTimer.cancel();
+            }
+            cum = fileInfo.contiguous;
+            int span = Math.min(fileInfo.highestSeq - cum - 1, MAX_SACK_BYTES * 8);
+            if (span > 0) {
+                bytes = (span + 7) / 8;
+                Arrays.fill(bitmap, 0, bytes, (byte) 0);
+                for (int i = 0; i < span; i++) {
+                    if (fileInfo.received.get(cum + 2 + i)) {
+                        bitmap[i >> 3] |= (byte) (1 << (i & 7));
+                    }
+                }
+            }
         }
+        ByteBuffer buf = SACK_BUFFER.get();
+        FrameCodec.encode(buf, FrameCodec.TYPE_SACK, (byte) 0, transferId, cum, bitmap, 0, bytes);
+        node.sendFrame(buf, dest);
+    }
+
+    // Quadro de controle sem payload (ex.: NACK de um chunk)
+    private static void sendFrame(byte type, long transferId, int seq, InetAddress addr, int port, UdpNode node) {
+        ByteBuffer buf = SACK_BUFFER.get();
+        FrameCodec.encode(buf, type, (byte) 0, transferId, seq, SACK_BITMAP.get(), 0, 0);
+        node.sendFrame(buf, new InetSocketAddress(addr, port));
     }
 
     private static void handleEnd(String fullMsg, InetAddress addr, int port, UdpNode node) {
@@ -156,83 +1058,167 @@ public class MessageHandler {
         if (tokens.length < 3) return;
         String id = tokens[1];
         String hashRecebido = tokens[2];
+        Key key = new Key(addr, port, id);
         
-        FileInfo fileInfo = receivingFiles.get(id);
+        FileInfo fileInfo = node.getReceiveState().files.get(key);
+        if (fileInfo == null && node.getReceiveState().finished.contains(key)) {
+            // END reenviado: o remetente ainda esperava o ACK de algum chunk quando o nosso chegou
+            Transfer done = node.getTransfers().getInbound(inboundId(id, addr, port));
+            if (done != null && done.getState() == Transfer.State.CONCLUIDA) {
+                node.sendUdp("ACK " + id, addr, port);
+            }
+            return;
+        }
         if (fileInfo == null) {
-            System.out.println(">>> [ERRO] Recebido END para transferência desconhecida: " + id);
-            node.sendUdp("NACK " + id + " TRANSFERENCIA_NAO_INICIADA", addr.getHostAddress(), port);
+            Log.error(">>> [ERRO] Recebido END para transferência desconhecida: " + id);
+            node.sendUdp("NACK " + id + " TRANSFERENCIA_NAO_INICIADA", addr, port);
             return;
         }
-        
+
+        // No protocolo de texto o END sai logo após o último chunk, sem esperar os ACKs: se algum
+        // chunk perdido ainda está em retransmissão, não confirma; o END é reenviado depois do RTO
+        int missing;
+        synchronized (fileInfo) {
+            missing = fileInfo.totalChunks() - fileInfo.received.cardinality();
+        }
+        if (missing > 0) {
+            Log.info(">>> [END] ID=" + id + " aguardando " + missing + " chunks antes de validar");
+            return;
+        }
+
         try {
-            fileInfo.file.close();
+            // Descarrega o que falta e faz o fsync final da transferência
+            fileInfo.close();
             
-            // Calcula o hash do arquivo recebido
-            File file = new File("received_" + fileInfo.fileName);
-            String hashCalculado = FileUtils.calculateMD5(file);
+            // Hash calculado durante a recepção; só relê o arquivo se faltou algum chunk na sequência.
+            // Com delta, o hash é o do arquivo montado a partir da cópia anterior.
+            File file = fileInfo.target;
+            String hashCalculado;
+            if (fileInfo.deltaFile != null) {
+                try {
+                    hashCalculado = DeltaSync.apply(fileInfo.basis, fileInfo.deltaBlock, fileInfo.deltaFile, file,
+                            fileInfo.finalSize);
+                } catch (IOException e) {
+                    Log.error(">>> [ERRO] Falha ao aplicar o delta: " + e.getMessage());
+                    hashCalculado = "-";
+                }
+            } else {
+                hashCalculado = fileInfo.md5 != null && fileInfo.hashedUpTo == fileInfo.totalChunks()
+                        ? FileUtils.toHex(fileInfo.md5.digest())
+                        : FileUtils.calculateMD5(file);
+            }
             
             boolean hashOk = hashCalculado.equalsIgnoreCase(hashRecebido);
             
+            fileInfo.transfer.setState(hashOk ? Transfer.State.CONCLUIDA : Transfer.State.FALHA);
             if (hashOk) {
-                node.sendUdp("ACK " + id, addr.getHostAddress(), port);
-                System.out.println(">>> [END] Arquivo ID=" + id + " nome=" + fileInfo.fileName + " validado com sucesso!");
-                System.out.println("    Hash recebido: " + hashRecebido);
-                System.out.println("    Hash calculado: " + hashCalculado);
+                node.sendUdp("ACK " + id, addr, port);
+                Log.info(">>> [END] Arquivo ID=" + id + " nome=" + fileInfo.fileName + " validado com sucesso!");
+                Log.info("    Hash recebido: " + hashRecebido);
+                Log.info("    Hash calculado: " + hashCalculado);
+                if (fileInfo.recovered > 0) {
+                    Log.info("    " + fileInfo.recovered + " chunks reconstruídos por FEC");
+                }
+                if (fileInfo.deltaFile != null) {
+                    Log.info("    Montado com " + fileInfo.size + " bytes de delta sobre a cópia anterior");
+                }
+                // Passa a ser uma fonte do conteúdo para downloads por hash (fetch)
+                node.getSwarm().addLocal(hashCalculado, fileInfo.fileName, file);
             } else {
-                node.sendUdp("NACK " + id + " HASH_INVALIDO", addr.getHostAddress(), port);
-                System.out.println(">>> [END] Arquivo ID=" + id + " corrompido. NACK enviado.");
-                System.out.println("    Hash recebido: " + hashRecebido);
-                System.out.println("    Hash calculado: " + hashCalculado);
+                node.sendUdp("NACK " + id + " HASH_INVALIDO", addr, port);
+                Log.error(">>> [END] Arquivo ID=" + id + " corrompido. NACK enviado.");
+                Log.info("    Hash recebido: " + hashRecebido);
+                Log.info("    Hash calculado: " + hashCalculado);
                 // Deleta o arquivo corrompido
                 file.delete();
             }
+            fileInfo.releaseBasis(hashOk);
+            // Concluída (ou descartada): o checkpoint não serve mais
+            TransferCheckpoint.delete(TransferCheckpoint.sidecarOf(file));
             
-            node.getArquivosFinalizados().add(id);
+            node.getReceiveState().finished.add(key);
             // Remove o arquivo da lista de transferências em andamento
-            receivingFiles.remove(id);
+            node.getReceiveState().files.remove(key);
             
         } catch (Exception e) {
-            System.out.println(">>> [ERRO] Falha ao processar fim da transferência: " + e.getMessage());
-            node.sendUdp("NACK " + id + " ERRO_PROCESSAMENTO", addr.getHostAddress(), port);
+            Log.error(">>> [ERRO] Falha ao processar fim da transferência: " + e.getMessage());
+            node.sendUdp("NACK " + id + " ERRO_PROCESSAMENTO", addr, port);
         }
     }
 
-    private static void handleAck(String fullMsg, UdpNode node) {
+    private static void handleAck(String fullMsg, InetAddress addr, int port, UdpNode node) {
         String[] tokens = fullMsg.split(" ", 2);
         if (tokens.length < 2) return;
         String id = tokens[1];
         
-        // Remove a mensagem pendente correspondente
-        PendingMessage pm = node.getPendingMessages().remove(id);
+        // Remove a mensagem pendente correspondente ("msgN" ou "msgN-seqM" → N, M)
+        long transferId = UdpNode.transferIdOf(id);
+        int seq = UdpNode.seqOf(id);
+        // "ACK msgN" só confirma o END depois de todos os chunks de texto: antes disso, liberar a
+        // transferência descartaria os reenvios dos chunks que o receptor ainda espera
+        if (seq == 0 && transferId >= 0 && node.getPendingMessages().hasChunks(transferId)) {
+            if (ACK_LOG.allow()) ACK_LOG.log(">>> [ACK] ID=" + id + " ignorado: chunks ainda sem confirmação");
+            return;
+        }
+        PendingMessage pm = transferId < 0 || seq < 0 ? null : node.acknowledge(transferId, seq);
         
         // Verifica se é um ACK para um END (finalização de arquivo)
-        if (pm != null && pm.getMessage().startsWith("END ")) {
-            // Extrai o ID base (sem o prefixo "END ")
-            String baseId = pm.getMessage().split(" ")[1];
+        if (pm != null && pm.isEnd()) {
+            // O END usa o ID base da transferência
+            String baseId = id;
             
             // Adiciona o ID à lista de arquivos finalizados
             node.getArquivosFinalizados().add(baseId);
             
             // Remove todas as mensagens pendentes relacionadas a este arquivo (chunks)
-            Iterator<String> it = node.getPendingMessages().keySet().iterator();
-            while (it.hasNext()) {
-                String key = it.next();
-                if (key.equals(baseId) || key.startsWith(baseId + "-seq")) {
-                    it.remove();
-                }
-            }
+            node.dropTransferPending(baseId);
+            node.getTransfers().finish(baseId, Transfer.State.CONCLUIDA);
             
-            System.out.println(">>> [ACK] Recebido para ID=" + id + " - Transferência de arquivo finalizada");
+            Log.info(">>> [ACK] Recebido para ID=" + id + " - Transferência de arquivo finalizada");
         } else if (pm != null) {
-            System.out.println(">>> [ACK] Recebido para ID=" + id);
+            // Um por chunk no protocolo de texto
+            if (ACK_LOG.allow()) ACK_LOG.log(">>> [ACK] Recebido para ID=" + id);
+        } else {
+            // END de envio em grupo: não passa pelas mensagens pendentes, cada receptor confirma o seu
+            GroupSender group = node.getGroupSender(UdpNode.transferIdOf(id));
+            if (group != null) {
+                group.onAck(new InetSocketAddress(addr, port));
+            }
         }
     }
 
-    private static void handleNack(String fullMsg) {
+    private static void handleNack(String fullMsg, InetAddress addr, int port, UdpNode node) {
         String[] tokens = fullMsg.split(" ", 3);
         if (tokens.length < 3) return;
         String id = tokens[1];
         String motivo = tokens[2];
-        System.out.println(">>> [NACK] Recebido para ID=" + id + " Motivo=" + motivo);
+        Log.info(">>> [NACK] Recebido para ID=" + id + " Motivo=" + motivo);
+
+        // Em grupo, o NACK de um receptor só o tira do grupo; o envio segue para os demais
+        GroupSender group = node.getGroupSender(UdpNode.transferIdOf(id));
+        if (group != null) {
+            group.onNack(new InetSocketAddress(addr, port), motivo);
+            return;
+        }
+
+        // Um NACK do destino durante o envio dos chunks interrompe a janela correspondente
+        SendWindow window = windowFrom(UdpNode.transferIdOf(id), addr, port, node);
+        if (window != null) {
+            window.abort(motivo);
+        }
+
+        Transfer transfer = node.getTransfers().getOutbound(id);
+        if (transfer != null && transfer.isTo(addr, port) && !transfer.isFinished()) {
+            // Envio recusado ou cancelado pelo receptor: para de retransmitir FILE, chunks e END
+            node.getTransfers().finish(id, UdpNode.CANCEL_REASON.equals(motivo)
+                    ? Transfer.State.CANCELADA : Transfer.State.FALHA);
+            node.dropTransferPending(id);
+        }
+
+        // O remetente cancelou: mantém o checkpoint para uma retomada (só a recepção dele com esse ID)
+        FileInfo fileInfo = node.getReceiveState().files.get(new Key(addr, port, id));
+        if (fileInfo != null && UdpNode.CANCEL_REASON.equals(motivo)) {
+            abandon(fileInfo, node);
+        }
     }
 }
@@ -0,0 +1,512 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Métricas do nó, sempre ligadas. Cada UdpNode tem as suas (getMetrics): com vários nós na mesma
+// JVM (simulações, testes), o "stats", o HTTP e o JMX de um nó não somam o tráfego dos outros.
+// Os contadores são LongAdder (células por thread, sem disputa entre os workers), os histogramas
+// usam um LongAdder por balde, e os valores instantâneos (filas, pendências, transferências) só
+// são lidos na coleta.
+// - pacotes e bytes de entrada e saída por tipo: quadros binários pelo tipo do cabeçalho, texto pelo
+//   comando (contados no worker de recepção e na thread do SendScheduler, sem criar Strings)
+// - retransmissões, chunks duplicados, CRC inválido, motivos de NACK, RTT
+// - profundidade das filas de recepção e envio, pendingMessages, vazão de cada transferência
+// Saídas: comando "stats", HTTP local no formato texto do Prometheus (-Dlabredes.metricsPort,
+// padrão 9464, 0 desliga) e JMX (labredes:type=Metrics,node=<nome>), desligados em stop().
+public final class Metrics {
+    private static final int PORT = Integer.getInteger("labredes.metricsPort", 9464);
+
+    // Índices 0..7: tipo do quadro binário; depois os comandos de texto e "OUTRO"
+    private static final int BINARY_TYPES = 8;
+    private static final String[] FRAME_NAMES = {"?", "DATA", "SACK", "NACK", "PARITY", "NAK", "SIG", "?"};
+    // Os mais frequentes primeiro: a classificação compara os prefixos em ordem
+    private static final String[] COMMANDS = {
+            "CHUNK", "ACK", "HEARTBEAT", "PING", "PONG", "PINGREQ", "PULL", "HAVE", "WHO", "GPOLL", "GACK",
+            "GFILE", "FILE", "OFFER", "ACCEPT", "RESUME", "END", "NACK", "TALK", "PMTU", "PMTUACK",
+            "SIGREQ", "DELTA", "DELTAOK"};
+    private static final byte[][] COMMAND_BYTES = new byte[COMMANDS.length][];
+    private static final int OTHER = BINARY_TYPES + COMMANDS.length;
+    private static final int TYPES = OTHER + 1;
+    private static final int TEXT_NACK = BINARY_TYPES + Arrays.asList(COMMANDS).indexOf("NACK");
+    // Motivos de NACK distintos guardados (o resto cai em "OUTRO"): o texto vem da rede
+    private static final int MAX_REASONS = 32;
+
+    private final LongAdder[] packetsIn = adders(TYPES);
+    private final LongAdder[] bytesIn = adders(TYPES);
+    private final LongAdder[] packetsOut = adders(TYPES);
+    private final LongAdder[] bytesOut = adders(TYPES);
+    private final Map<String, LongAdder> nacksIn = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> nacksOut = new ConcurrentHashMap<>();
+
+    public final LongAdder retxWindow = new LongAdder();
+    public final LongAdder retxText = new LongAdder();
+    public final LongAdder retxGroup = new LongAdder();
+    public final LongAdder duplicates = new LongAdder();
+    public final LongAdder crcErrors = new LongAdder();
+    public final Histogram rtt = new Histogram(15);
+
+    // Saídas abertas em start(), fechadas em stop()
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    private ObjectName beanName;
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            COMMAND_BYTES[i] = COMMANDS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    // Histograma em baldes de potências de 2 (1, 2, 4, ... 2^(n-1) e +Inf), em unidades inteiras
+    public static final class Histogram {
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(int bounds) {
+            buckets = adders(bounds + 1);
+        }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            int b = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets[Math.min(b, buckets.length - 1)].increment();
+            sum.add(value);
+        }
+
+        long count() {
+            long n = 0;
+            for (LongAdder b : buckets) {
+                n += b.sum();
+            }
+            return n;
+        }
+
+        // Limite superior do balde que contém o quantil q (-1 sem amostras)
+        long quantile(double q) {
+            long total = count();
+            if (total == 0) return -1;
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length - 1; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target) return 1L << i;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // ---- Registro (caminho dos pacotes) ----
+
+    // Chamado com o datagrama entre position e limit
+    public void onReceive(ByteBuffer buf) {
+        int type = typeOf(buf);
+        packetsIn[type].increment();
+        bytesIn[type].add(buf.remaining());
+        if (type == TEXT_NACK) {
+            countReason(nacksIn, buf);
+        }
+    }
+
+    public void onSend(ByteBuffer buf) {
+        int type = typeOf(buf);
+        packetsOut[type].increment();
+        bytesOut[type].add(buf.remaining());
+        if (type == TEXT_NACK) {
+            countReason(nacksOut, buf);
+        }
+    }
+
+    static int typeOf(ByteBuffer buf) {
+        int pos = buf.position();
+        if (FrameCodec.isBinary(buf)) {
+            return buf.remaining() > 2 ? buf.get(pos + 2) & (BINARY_TYPES - 1) : 0;
+        }
+        int len = buf.remaining();
+        for (int i = 0; i < COMMAND_BYTES.length; i++) {
+            byte[] c = COMMAND_BYTES[i];
+            if (len < c.length || (len > c.length && buf.get(pos + c.length) != ' ')) continue;
+            int k = 0;
+            while (k < c.length && buf.get(pos + k) == c[k]) k++;
+            if (k == c.length) return BINARY_TYPES + i;
+        }
+        return OTHER;
+    }
+
+    // "NACK <id> <motivo> [detalhes]": só os NACKs (raros) criam a String do motivo
+    private static void countReason(Map<String, LongAdder> reasons, ByteBuffer buf) {
+        String msg = StandardCharsets.UTF_8.decode(buf.duplicate()).toString();
+        String[] tokens = msg.trim().split(" ", 4);
+        // Só a primeira palavra do motivo: detalhes como "seq=N" multiplicariam as séries
+        String reason = tokens.length < 3 ? "?" : tokens[2];
+        if (!reasons.containsKey(reason) && reasons.size() >= MAX_REASONS) {
+            reason = "OUTRO";
+        }
+        reasons.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    private static String typeName(int type) {
+        return type < BINARY_TYPES ? FRAME_NAMES[type] : type < OTHER ? COMMANDS[type - BINARY_TYPES] : "OUTRO";
+    }
+
+    private static String protoOf(int type) {
+        return type < BINARY_TYPES ? "bin" : "texto";
+    }
+
+    // ---- Coleta ----
+
+    // Uma métrica com suas amostras (rótulos já formatados no estilo do Prometheus)
+    static final class Family {
+        final String name;
+        final String type;
+        final String help;
+        final List<String[]> samples = new ArrayList<>();   // {sufixo, rótulos, valor}
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        Family add(String labels, double value) {
+            return add("", labels, value);
+        }
+
+        Family add(String suffix, String labels, double value) {
+            samples.add(new String[] {suffix, labels, format(value)});
+            return this;
+        }
+    }
+
+    List<Family> collect(UdpNode node) {
+        List<Family> out = new ArrayList<>();
+        Family packets = new Family("labredes_packets_total", "counter", "Datagramas por sentido e tipo");
+        Family bytes = new Family("labredes_bytes_total", "counter", "Bytes de datagramas por sentido e tipo");
+        for (int t = 0; t < TYPES; t++) {
+            addTraffic(packets, bytes, "in", t, packetsIn[t].sum(), bytesIn[t].sum());
+            addTraffic(packets, bytes, "out", t, packetsOut[t].sum(), bytesOut[t].sum());
+        }
+        out.add(packets);
+        out.add(bytes);
+
+        out.add(new Family("labredes_retransmissions_total", "counter", "Retransmissões por protocolo")
+                .add(labels("proto", "bin"), retxWindow.sum())
+                .add(labels("proto", "texto"), retxText.sum())
+                .add(labels("proto", "grupo"), retxGroup.sum()));
+        out.add(new Family("labredes_duplicate_chunks_total", "counter", "Chunks recebidos em duplicata")
+                .add("", duplicates.sum()));
+        out.add(new Family("labredes_crc_errors_total", "counter", "Chunks descartados por CRC32C ou Deflate inválido")
+                .add("", crcErrors.sum()));
+        Family nacks = new Family("labredes_nacks_total", "counter", "NACKs de texto por sentido e motivo");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(nacksIn).entrySet()) {
+            nacks.add(labels("dir", "in", "reason", e.getKey()), e.getValue().sum());
+        }
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(nacksOut).entrySet()) {
+            nacks.add(labels("dir", "out", "reason", e.getKey()), e.getValue().sum());
+        }
+        out.add(nacks);
+
+        Family rttMs = new Family("labredes_rtt_ms", "histogram", "Amostras de RTT (ms)");
+        long cumulative = 0;
+        for (int i = 0; i < rtt.buckets.length; i++) {
+            cumulative += rtt.buckets[i].sum();
+            String le = i == rtt.buckets.length - 1 ? "+Inf" : String.valueOf(1L << i);
+            rttMs.add("_bucket", labels("le", le), cumulative);
+        }
+        rttMs.add("_sum", "", rtt.sum.sum());
+        rttMs.add("_count", "", cumulative);
+        out.add(rttMs);
+
+        ReceivePipeline pipeline = node.getPipeline();
+        if (pipeline != null) {
+            Family depth = new Family("labredes_rx_queue_depth", "gauge", "Pacotes na fila de cada worker de recepção");
+            for (int i = 0; i < pipeline.getWorkers(); i++) {
+                depth.add(labels("worker", String.valueOf(i)), pipeline.getQueueDepth(i));
+            }
+            out.add(depth);
+            out.add(new Family("labredes_rx_dropped_total", "counter", "Datagramas descartados na recepção")
+                    .add(labels("reason", "sem_buffer"), pipeline.getDroppedNoBuffer())
+                    .add(labels("reason", "fila_cheia"), pipeline.getDroppedQueueFull()));
+        }
+        SendScheduler sender = node.getSendScheduler();
+        if (sender != null) {
+            Family depth = new Family("labredes_tx_queue_depth", "gauge", "Datagramas na fila de envio por classe");
+            Family dropped = new Family("labredes_tx_dropped_total", "counter", "Datagramas descartados no envio");
+            for (int c = 0; c < 3; c++) {
+                String cls = SendScheduler.nameOf(c);
+                depth.add(labels("class", cls), sender.getQueueDepth(c));
+                dropped.add(labels("class", cls, "reason", "fila_cheia"), sender.getDroppedQueueFull(c));
+                dropped.add(labels("class", cls, "reason", "kernel"), sender.getDroppedKernel(c));
+            }
+            out.add(depth);
+            out.add(dropped);
+        }
+        out.add(new Family("labredes_pending_messages", "gauge", "Mensagens aguardando ACK (pendingMessages)")
+                .add("", node.getPendingMessages().size()));
+        out.add(new Family("labredes_devices", "gauge", "Dispositivos ativos").add("", node.getDevices().size()));
+
+        Family rate = new Family("labredes_transfer_rate_bytes", "gauge", "Vazão de cada transferência (bytes/s)");
+        Family done = new Family("labredes_transfer_bytes", "gauge", "Bytes transferidos de cada transferência");
+        for (Transfer t : node.getTransfers().list()) {
+            String l = labels("id", t.getId(), "dir", t.getDirection() == Transfer.Direction.ENVIO ? "envio" : "recepcao",
+                    "peer", t.getPeer(), "file", t.getFileName(), "state", t.getState().name());
+            rate.add(l, t.getRate());
+            done.add(l, t.getBytes());
+        }
+        out.add(rate);
+        out.add(done);
+        out.add(new Family("labredes_log_dropped_total", "counter", "Linhas de log descartadas com o buffer cheio")
+                .add("", Log.getDropped()));
+        return out;
+    }
+
+    private static void addTraffic(Family packets, Family bytes, String dir, int type, long n, long b) {
+        if (n == 0) return;
+        String l = labels("dir", dir, "proto", protoOf(type), "type", typeName(type));
+        packets.add(l, n);
+        bytes.add(l, b);
+    }
+
+    private static String labels(String... kv) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < kv.length; i += 2) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(kv[i]).append("=\"");
+            String v = kv[i + 1];
+            for (int k = 0; k < v.length(); k++) {
+                char c = v.charAt(k);
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String format(double v) {
+        return v == Math.rint(v) && !Double.isInfinite(v) ? String.valueOf((long) v) : String.valueOf(v);
+    }
+
+    // Formato texto 0.0.4 do Prometheus
+    String toPrometheus(UdpNode node) {
+        StringBuilder sb = new StringBuilder();
+        for (Family f : collect(node)) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (String[] s : f.samples) {
+                sb.append(f.name).append(s[0]);
+                if (!s[1].isEmpty()) sb.append('{').append(s[1]).append('}');
+                sb.append(' ').append(s[2]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // ---- Saídas ----
+
+    public void start(UdpNode node) {
+        if (PORT > 0) {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = toPrometheus(node).getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                });
+                httpExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "Metrics-HTTP");
+                    t.setDaemon(true);
+                    return t;
+                });
+                server.setExecutor(httpExecutor);
+                server.start();
+                this.server = server;
+                Log.info(">>> [INFO] Métricas em http://127.0.0.1:" + PORT + "/metrics");
+            } catch (IOException e) {
+                Log.warn("[WARN] Endpoint de métricas indisponível na porta " + PORT + ": " + e.getMessage());
+            }
+        }
+        try {
+            ObjectName name = new ObjectName("labredes:type=Metrics,node=" + ObjectName.quote(node.getDeviceName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(this, node), name);
+            beanName = name;
+        } catch (JMException e) {
+            Log.warn("[WARN] Métricas não registradas no JMX: " + e.getMessage());
+        }
+    }
+
+    // Nó fechado: libera a porta HTTP e o nome no JMX (um nó reaberto com o mesmo nome os registra de novo)
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdownNow();
+            server = null;
+        }
+        if (beanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(beanName);
+            } catch (JMException e) {
+                Log.warn("[WARN] Métricas não removidas do JMX: " + e.getMessage());
+            }
+            beanName = null;
+        }
+    }
+
+    // Console: "stats"
+    void print(UdpNode node) {
+        System.out.println("=== Métricas ===");
+        long[] in = totals(packetsIn, bytesIn);
+        long[] out = totals(packetsOut, bytesOut);
+        System.out.println("Pacotes: recebidos=" + in[0] + " (" + in[1] + " bytes) enviados=" + out[0] + " (" + out[1] + " bytes)");
+        for (int t = 0; t < TYPES; t++) {
+            long pi = packetsIn[t].sum();
+            long po = packetsOut[t].sum();
+            if (pi == 0 && po == 0) continue;
+            System.out.println(String.format("* %-5s %-9s entrada=%d (%d bytes) saída=%d (%d bytes)",
+                    protoOf(t), typeName(t), pi, bytesIn[t].sum(), po, bytesOut[t].sum()));
+        }
+        System.out.println("Retransmissões: binário=" + retxWindow.sum() + " texto=" + retxText.sum()
+                + " grupo=" + retxGroup.sum()
+                + " | chunks duplicados=" + duplicates.sum() + " | CRC inválido=" + crcErrors.sum());
+        System.out.println("NACKs recebidos: " + summary(nacksIn) + " | enviados: " + summary(nacksOut));
+        long n = rtt.count();
+        System.out.println(n == 0 ? "RTT: sem amostras" : String.format("RTT: %d amostras, média %.1f ms, p50<=%d ms, p99<=%s ms",
+                n, rtt.sum.sum() / (double) n, rtt.quantile(0.5),
+                rtt.quantile(0.99) == Long.MAX_VALUE ? "+Inf" : String.valueOf(rtt.quantile(0.99))));
+        ReceivePipeline pipeline = node.getPipeline();
+        if (pipeline != null) {
+            StringBuilder sb = new StringBuilder("Fila de recepção:");
+            for (int i = 0; i < pipeline.getWorkers(); i++) {
+                sb.append(' ').append(pipeline.getQueueDepth(i));
+            }
+            System.out.println(sb);
+        }
+        System.out.println("Pendências (pendingMessages): " + node.getPendingMessages().size());
+        for (Transfer t : node.getTransfers().list()) {
+            System.out.println(String.format("* %s [%s] %s %.2f MB/s %d bytes %s", t.getId(),
+                    t.getDirection() == Transfer.Direction.ENVIO ? "envio" : "recepção", t.getFileName(),
+                    t.getRate() / (1024 * 1024), t.getBytes(), t.getState()));
+        }
+        System.out.println(PORT > 0 ? "HTTP: http://127.0.0.1:" + PORT + "/metrics" : "HTTP: desligado");
+        System.out.println("================");
+    }
+
+    // Totais enviados por este nó (a NetworkSimulation soma os de todos os nós simulados)
+    public long getPacketsOut() {
+        return totals(packetsOut, bytesOut)[0];
+    }
+
+    public long getBytesOut() {
+        return totals(packetsOut, bytesOut)[1];
+    }
+
+    public long getRetransmissions() {
+        return retxWindow.sum() + retxText.sum() + retxGroup.sum();
+    }
+
+    private static long[] totals(LongAdder[] packets, LongAdder[] bytes) {
+        long p = 0;
+        long b = 0;
+        for (int t = 0; t < TYPES; t++) {
+            p += packets[t].sum();
+            b += bytes[t].sum();
+        }
+        return new long[] {p, b};
+    }
+
+    private static String summary(Map<String, LongAdder> reasons) {
+        if (reasons.isEmpty()) return "nenhum";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(reasons).entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(e.getKey()).append('=').append(e.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    // JMX: um atributo (somente leitura) por amostra, com o nome "métrica[sufixo]{rótulos}"
+    private static final class Bean implements DynamicMBean {
+        private final Metrics metrics;
+        private final UdpNode node;
+
+        Bean(Metrics metrics, UdpNode node) {
+            this.metrics = metrics;
+            this.node = node;
+        }
+
+        private Map<String, Double> snapshot() {
+            Map<String, Double> values = new LinkedHashMap<>();
+            for (Family f : metrics.collect(node)) {
+                for (String[] s : f.samples) {
+                    values.put(f.name + s[0] + (s[1].isEmpty() ? "" : "{" + s[1] + "}"), Double.valueOf(s[2]));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Double v = snapshot().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                Double v = values.get(a);
+                if (v != null) list.add(new Attribute(a, v));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Métricas são somente leitura: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attrs.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Métricas do nó", attrs.toArray(new MBeanAttributeInfo[0]),
+                    null, null, null);
+        }
+    }
+}
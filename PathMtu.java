@@ -0,0 +1,138 @@
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Descoberta do MTU do caminho até um dispositivo, para escolher o maior chunk que não fragmenta.
+// O teto é o MTU do enlace informado pelo transporte (no UDP, o da interface local que leva ao
+// destino), limitado a 1500 bytes, ou a 9000 com -Dlabredes.jumbo=true.
+// O Java não expõe de forma portável o bit DF, então a sondagem é de ponta a ponta: um datagrama
+// "PMTU <seq> <tamanho> <enchimento>" de cada tamanho candidato sai de uma vez, o destino responde
+// "PMTUACK <seq> <tamanho>" aos que chegaram inteiros e vale o maior confirmado. Isso detecta
+// caminhos que descartam quadros jumbo ou fragmentos. O resultado fica no DeviceInfo por CACHE_TTL.
+public class PathMtu {
+    private static final boolean JUMBO = Boolean.getBoolean("labredes.jumbo");
+    private static final int ETHERNET_MTU = 1500;
+    private static final int JUMBO_MTU = 9000;
+    // MTUs comuns: jumbo, FDDI, Ethernet, PPPoE, mínimo do IPv6
+    private static final int[] CANDIDATES = {9000, 4352, 1500, 1492, 1280};
+    private static final int UDP_HEADER = 8;
+    private static final int ATTEMPTS = 2;
+    private static final long CACHE_TTL = 10 * 60 * 1000;
+
+    // Uma sondagem em andamento: o maior tamanho confirmado até agora
+    private static class Round {
+        final int largest;
+        int best;
+
+        Round(int largest) {
+            this.largest = largest;
+        }
+    }
+
+    private final UdpNode node;
+    private final AtomicInteger seqGen = new AtomicInteger();
+    private final Map<Integer, Round> rounds = new ConcurrentHashMap<>();
+
+    public PathMtu(UdpNode node) {
+        this.node = node;
+    }
+
+    // Maior chunk de dados que cabe num quadro DATA sem fragmentar até o destino, ou 0 se a
+    // sondagem não teve resposta (nó antigo ou caminho ruim): vale então o chunk padrão
+    public int chunkSizeFor(DeviceInfo peer) {
+        int mtu = mtuOf(peer);
+        if (mtu <= 0) return 0;
+        int ipHeader = peer.getAddress().getAddress() instanceof Inet6Address ? 40 : 20;
+        int chunk = mtu - ipHeader - UDP_HEADER - FrameCodec.HEADER_SIZE - FrameCodec.ACK_SIZE - FrameCodec.CRC_SIZE;
+        return Math.min(chunk, TransferOptions.MAX_CHUNK);
+    }
+
+    public int mtuOf(DeviceInfo peer) {
+        long now = System.currentTimeMillis();
+        if (peer.getPathMtuAt() > 0 && now - peer.getPathMtuAt() < CACHE_TTL) {
+            return peer.getPathMtu();
+        }
+        int mtu = probe(peer);
+        peer.setPathMtu(mtu, now);
+        Log.info(">>> [PMTU] " + peer.getName() + ": "
+                + (mtu > 0 ? mtu + " bytes" : "sem resposta, usando o chunk padrão"));
+        return mtu;
+    }
+
+    private int probe(DeviceInfo peer) {
+        int limit = Math.min(node.getTransport().mtu(peer.getAddress()), JUMBO ? JUMBO_MTU : ETHERNET_MTU);
+        List<Integer> sizes = new ArrayList<>();
+        for (int candidate : CANDIDATES) {
+            if (candidate <= limit && !sizes.contains(candidate)) sizes.add(candidate);
+        }
+        if (sizes.isEmpty() || sizes.get(0) < limit) {
+            sizes.add(0, limit);
+        }
+        int ipHeader = peer.getAddress().getAddress() instanceof Inet6Address ? 40 : 20;
+        Round round = new Round(sizes.get(0) - ipHeader - UDP_HEADER);
+        List<Integer> seqs = new ArrayList<>();
+        try {
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                for (int mtu : sizes) {
+                    int seq = seqGen.incrementAndGet();
+                    rounds.put(seq, round);
+                    seqs.add(seq);
+                    node.sendUdp(padded(seq, mtu - ipHeader - UDP_HEADER), peer.getAddress());
+                }
+                long deadline = System.currentTimeMillis() + peer.getRto();
+                synchronized (round) {
+                    long wait;
+                    while (round.best < round.largest && (wait = deadline - System.currentTimeMillis()) > 0) {
+                        round.wait(wait);
+                    }
+                    if (round.best > 0) break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int seq : seqs) {
+                rounds.remove(seq);
+            }
+        }
+        synchronized (round) {
+            return round.best > 0 ? round.best + ipHeader + UDP_HEADER : 0;
+        }
+    }
+
+    // "PMTU <seq> <tamanho> xxx...": o tamanho é o do datagrama UDP inteiro
+    private static String padded(int seq, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        sb.append("PMTU ").append(seq).append(' ').append(size).append(' ');
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    // Lado do destino: confirma só se o datagrama chegou com o tamanho anunciado
+    public void handleProbe(String msg, InetAddress addr, int port) {
+        String[] tokens = msg.split(" ", 4);
+        if (tokens.length < 3) return;
+        if (msg.length() == Integer.parseInt(tokens[2])) {
+            node.sendUdp("PMTUACK " + tokens[1] + " " + tokens[2], addr, port);
+        }
+    }
+
+    public void handleAck(String msg) {
+        String[] tokens = msg.split(" ");
+        if (tokens.length < 3) return;
+        Round round = rounds.get(Integer.parseInt(tokens[1]));
+        if (round == null) return;
+        int size = Integer.parseInt(tokens[2]);
+        synchronized (round) {
+            round.best = Math.max(round.best, size);
+            round.notifyAll();
+        }
+    }
+}
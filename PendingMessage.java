@@ -1,25 +1,75 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 public class PendingMessage {
-    private final String id;       
+    // Chave na PendingTable: o N de "msgN" e o seq do chunk (0 para a mensagem inteira)
+    private final long transferId;
+    private final int seq;
     private final String message;  
-    private final String destIp;
-    private final int destPort;
+    // Chunks do protocolo de texto guardam só a referência (arquivo, seq) e remontam a mensagem ao reenviar
+    private final ChunkSource source;
+    private final DeviceInfo peer;
+    private final long firstSent;
     private long lastSent;         
+    private int retries;
+    private TimerWheel.Timeout timeout;
 
-    public PendingMessage(String id, String message, String destIp, int destPort) {
-        this.id = id;
+    public PendingMessage(long transferId, String message, DeviceInfo peer) {
+        this.transferId = transferId;
+        this.seq = 0;
         this.message = message;
-        this.destIp = destIp;
-        this.destPort = destPort;
-        this.lastSent = System.currentTimeMillis();
+        this.source = null;
+        this.peer = peer;
+        this.firstSent = System.currentTimeMillis();
+        this.lastSent = firstSent;
+    }
+
+    public PendingMessage(long transferId, ChunkSource source, int seq, DeviceInfo peer) {
+        this.transferId = transferId;
+        this.seq = seq;
+        this.message = null;
+        this.source = source;
+        this.peer = peer;
+        this.firstSent = System.currentTimeMillis();
+        this.lastSent = firstSent;
+    }
+
+    public long getTransferId() { return transferId; }
+    public int getSeq() { return seq; }
+
+    // "msgN" ou "msgN-seqM", como no fio (só para logs)
+    public String getId() {
+        return seq == 0 ? UdpNode.messageId(transferId) : UdpNode.messageId(transferId) + UdpNode.SEQ_SEPARATOR + seq;
     }
 
-    public String getId() { return id; }
-    public String getMessage() { return message; }
-    public String getDestIp() { return destIp; }
-    public int getDestPort() { return destPort; }
+    // Confirmação do END encerra a transferência (ver MessageHandler.handleAck)
+    public boolean isEnd() {
+        return message != null && message.startsWith("END ");
+    }
+
+    public String getMessage() {
+        if (source == null) {
+            return message;
+        }
+        try {
+            return source.textChunk(UdpNode.messageId(transferId), seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public DeviceInfo getPeer() { return peer; }
+    public String getDestIp() { return peer.getIp(); }
+    public int getDestPort() { return peer.getPort(); }
+    public long getFirstSent() { return firstSent; }
     public long getLastSent() { return lastSent; }
+    public int getRetries() { return retries; }
+
+    public TimerWheel.Timeout getTimeout() { return timeout; }
+    public void setTimeout(TimerWheel.Timeout timeout) { this.timeout = timeout; }
 
     public void updateLastSent() {
         lastSent = System.currentTimeMillis();
+        retries++;
     }
 }
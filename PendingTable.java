@@ -0,0 +1,215 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Mensagens aguardando ACK, pela transferência (o N de "msgN") e pelo seq: seq 0 é a própria
+// mensagem (TALK, FILE e depois o END, que a substitui) e seq > 0 são os chunks do protocolo de texto.
+// Cada transferência tem um slot com a mensagem e um array de chunks indexado pelo seq, então o ACK
+// de um chunk não monta nem compara strings, e o END confirmado libera a transferência inteira sem
+// varrer as pendências das outras. Os slots ficam em tabelas de endereçamento aberto com chaves long
+// (sondagem linear, remoção por deslocamento), divididas em faixas com monitores próprios para os
+// workers de recepção e a roda de temporização não disputarem um único lock.
+public class PendingTable {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_CHUNKS = 64;
+
+    private static final class Slot {
+        PendingMessage message;
+        // Criado no primeiro chunk; o slot de uma transferência com chunks só sai em removeAll
+        PendingMessage[] chunks;
+    }
+
+    private static final class Stripe {
+        long[] keys = new long[INITIAL_CAPACITY];
+        Slot[] slots = new Slot[INITIAL_CAPACITY];
+        int used;
+
+        int indexOf(long key) {
+            int mask = slots.length - 1;
+            for (int i = hash(key) & mask; slots[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) return i;
+            }
+            return -1;
+        }
+
+        Slot get(long key) {
+            int i = indexOf(key);
+            return i < 0 ? null : slots[i];
+        }
+
+        Slot getOrCreate(long key) {
+            int i = indexOf(key);
+            if (i >= 0) return slots[i];
+            if ((used + 1) * 2 > slots.length) grow();
+            Slot slot = new Slot();
+            insert(key, slot);
+            used++;
+            return slot;
+        }
+
+        private void insert(long key, Slot slot) {
+            int mask = slots.length - 1;
+            int i = hash(key) & mask;
+            while (slots[i] != null) i = (i + 1) & mask;
+            keys[i] = key;
+            slots[i] = slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Slot[] oldSlots = slots;
+            keys = new long[oldKeys.length * 2];
+            slots = new Slot[oldSlots.length * 2];
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] != null) insert(oldKeys[i], oldSlots[i]);
+            }
+        }
+
+        // Remoção sem marcas: puxa para trás as entradas seguintes que ficariam inalcançáveis
+        void delete(long key) {
+            int i = indexOf(key);
+            if (i < 0) return;
+            int mask = slots.length - 1;
+            slots[i] = null;
+            used--;
+            for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                // j pode ocupar a vaga i se a posição ideal dele não estiver entre (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    slots[i] = slots[j];
+                    slots[j] = null;
+                    i = j;
+                }
+            }
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger size = new AtomicInteger();
+
+    public PendingTable() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Stripe stripeOf(long transferId) {
+        return stripes[(hash(transferId) >>> 28) & (STRIPES - 1)];
+    }
+
+    // Registra a mensagem no lugar de uma anterior com o mesmo (transferência, seq), que é retornada
+    public PendingMessage put(PendingMessage pm) {
+        long transferId = pm.getTransferId();
+        int seq = pm.getSeq();
+        Stripe stripe = stripeOf(transferId);
+        PendingMessage previous;
+        synchronized (stripe) {
+            Slot slot = stripe.getOrCreate(transferId);
+            if (seq == 0) {
+                previous = slot.message;
+                slot.message = pm;
+            } else {
+                if (slot.chunks == null || seq >= slot.chunks.length) {
+                    PendingMessage[] chunks = new PendingMessage[Math.max(seq + 1,
+                            slot.chunks == null ? INITIAL_CHUNKS : slot.chunks.length * 2)];
+                    if (slot.chunks != null) {
+                        System.arraycopy(slot.chunks, 0, chunks, 0, slot.chunks.length);
+                    }
+                    slot.chunks = chunks;
+                }
+                previous = slot.chunks[seq];
+                slot.chunks[seq] = pm;
+            }
+        }
+        if (previous == null) size.incrementAndGet();
+        return previous;
+    }
+
+    public PendingMessage get(long transferId, int seq) {
+        Stripe stripe = stripeOf(transferId);
+        synchronized (stripe) {
+            Slot slot = stripe.get(transferId);
+            return slot == null ? null : at(slot, seq);
+        }
+    }
+
+    // Remove (transferência, seq) se ainda for 'expected' (null remove o que houver); retorna o removido
+    public PendingMessage remove(long transferId, int seq, PendingMessage expected) {
+        Stripe stripe = stripeOf(transferId);
+        PendingMessage removed;
+        synchronized (stripe) {
+            Slot slot = stripe.get(transferId);
+            if (slot == null) return null;
+            removed = at(slot, seq);
+            if (removed == null || (expected != null && removed != expected)) return null;
+            if (seq == 0) {
+                slot.message = null;
+            } else {
+                slot.chunks[seq] = null;
+            }
+            if (slot.message == null && slot.chunks == null) {
+                stripe.delete(transferId);
+            }
+        }
+        size.decrementAndGet();
+        return removed;
+    }
+
+    public PendingMessage remove(long transferId, int seq) {
+        return remove(transferId, seq, null);
+    }
+
+    // Libera de uma vez todas as pendências da transferência; 'released' recebe cada uma, fora do lock
+    public int removeAll(long transferId, Consumer<PendingMessage> released) {
+        Stripe stripe = stripeOf(transferId);
+        Slot slot;
+        synchronized (stripe) {
+            slot = stripe.get(transferId);
+            if (slot == null) return 0;
+            stripe.delete(transferId);
+        }
+        int n = 0;
+        if (slot.message != null) {
+            released.accept(slot.message);
+            n++;
+        }
+        if (slot.chunks != null) {
+            for (PendingMessage pm : slot.chunks) {
+                if (pm != null) {
+                    released.accept(pm);
+                    n++;
+                }
+            }
+        }
+        size.addAndGet(-n);
+        return n;
+    }
+
+    // Se algum chunk de texto da transferência ainda aguarda ACK
+    public boolean hasChunks(long transferId) {
+        Stripe stripe = stripeOf(transferId);
+        synchronized (stripe) {
+            Slot slot = stripe.get(transferId);
+            if (slot == null || slot.chunks == null) return false;
+            for (PendingMessage pm : slot.chunks) {
+                if (pm != null) return true;
+            }
+            return false;
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private static PendingMessage at(Slot slot, int seq) {
+        if (seq == 0) return slot.message;
+        return slot.chunks != null && seq > 0 && seq < slot.chunks.length ? slot.chunks[seq] : null;
+    }
+}
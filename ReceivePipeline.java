@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Estágio de recepção: uma thread drena o transporte (socket UDP ou rede emulada) para buffers diretos
+// pré-alocados e distribui os pacotes entre workers. O worker é escolhido pelo ID da
+// transferência, então os pacotes de uma mesma transferência são processados em ordem,
+// enquanto transferências e dispositivos diferentes são tratados em paralelo.
+public class ReceivePipeline {
+    // Cobre quadros jumbo (MTU 9000) com folga
+    public static final int MAX_DATAGRAM = 9216;
+    private static final Log.Limiter INVALID_LOG = new Log.Limiter(Log.Level.AVISO, 5);
+
+    private static class Packet {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        InetSocketAddress from;
+    }
+
+    private final Transport transport;
+    private final UdpNode node;
+    private final ArrayBlockingQueue<Packet> freePackets;
+    private final ArrayBlockingQueue<Packet>[] queues;
+    private final AtomicLongArray processed;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder droppedNoBuffer = new LongAdder();
+    private final LongAdder droppedQueueFull = new LongAdder();
+    private volatile boolean closed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ReceivePipeline(Transport transport, UdpNode node, int workers, int buffers, int queueCapacity) {
+        this.transport = transport;
+        this.node = node;
+        this.freePackets = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            freePackets.add(new Packet());
+        }
+        this.queues = new ArrayBlockingQueue[workers];
+        for (int i = 0; i < workers; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queueCapacity);
+        }
+        this.processed = new AtomicLongArray(workers);
+    }
+
+    public void start() {
+        Thread receiver = new Thread(this::receiveLoop, "ListenThread");
+        receiver.start();
+        for (int i = 0; i < queues.length; i++) {
+            final int index = i;
+            Thread worker = new Thread(() -> workerLoop(index), "HandlerWorker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void receiveLoop() {
+        // Destino dos datagramas quando não há buffer livre: são lidos e descartados
+        // para não deixar o buffer do kernel encher
+        ByteBuffer discard = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                transport.await();
+                while (true) {
+                    Packet p = freePackets.poll();
+                    ByteBuffer target = p != null ? p.buf : discard;
+                    target.clear();
+                    InetSocketAddress from = transport.receive(target);
+                    if (from == null) {
+                        if (p != null) freePackets.offer(p);
+                        break;
+                    }
+                    received.increment();
+                    if (p == null) {
+                        droppedNoBuffer.increment();
+                        continue;
+                    }
+                    target.flip();
+                    p.from = from;
+                    if (!queues[shardOf(target, p.from)].offer(p)) {
+                        droppedQueueFull.increment();
+                        p.from = null;
+                        freePackets.offer(p);
+                    }
+                }
+            } catch (IOException e) {
+                if (closed) break;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Encerra a thread de leitura (os workers são daemon e ficam parados na fila)
+    public void close() {
+        closed = true;
+        transport.wakeup();
+    }
+
+    private void workerLoop(int index) {
+        FrameCodec.Frame frame = new FrameCodec.Frame();
+        byte[] text = new byte[MAX_DATAGRAM];
+        ArrayBlockingQueue<Packet> queue = queues[index];
+        while (true) {
+            Packet p;
+            try {
+                p = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                dispatch(p, frame, text);
+            } catch (RuntimeException e) {
+                // Uma mensagem malformada não pode derrubar o worker
+                e.printStackTrace();
+            } finally {
+                p.from = null;
+                freePackets.offer(p);
+                processed.incrementAndGet(index);
+            }
+        }
+    }
+
+    private void dispatch(Packet p, FrameCodec.Frame frame, byte[] text) {
+        ByteBuffer buf = p.buf;
+        node.getMetrics().onReceive(buf);
+        if (FrameCodec.isBinary(buf)) {
+            if (FrameCodec.decode(buf, frame)) {
+                MessageHandler.handleFrame(frame, p.from.getAddress(), p.from.getPort(), node);
+            } else {
+                if (INVALID_LOG.allow()) INVALID_LOG.log("[WARN] Quadro binário inválido de " + p.from.getAddress().getHostAddress());
+            }
+            return;
+        }
+        int len = buf.remaining();
+        buf.get(text, 0, len);
+        String msg = new String(text, 0, len, StandardCharsets.UTF_8);
+        MessageHandler.handleMessage(msg, p.from.getAddress(), p.from.getPort(), node);
+    }
+
+    // Quadros binários usam o transferId do cabeçalho; mensagens de texto usam o ID "msgN"
+    // do segundo campo (FILE, OFFER, CHUNK, END, ACK...), ou o remetente quando não há ID
+    private int shardOf(ByteBuffer buf, InetSocketAddress from) {
+        long key;
+        if (FrameCodec.isBinary(buf)) {
+            key = buf.getLong(buf.position() + 4);
+        } else {
+            key = textTransferId(buf);
+            if (key < 0) {
+                key = from.hashCode();
+            }
+        }
+        return Math.floorMod(Long.hashCode(key), queues.length);
+    }
+
+    // Extrai N de "<COMANDO> msgN ..." direto dos bytes, sem criar Strings
+    private static long textTransferId(ByteBuffer buf) {
+        int i = buf.position();
+        int end = buf.limit();
+        while (i < end && buf.get(i) != ' ') i++;
+        i++;
+        if (i + 3 >= end || buf.get(i) != 'm' || buf.get(i + 1) != 's' || buf.get(i + 2) != 'g') {
+            return -1;
+        }
+        i += 3;
+        long value = 0;
+        int digits = 0;
+        while (i < end && digits < 18) {
+            byte b = buf.get(i);
+            if (b < '0' || b > '9') break;
+            value = value * 10 + (b - '0');
+            digits++;
+            i++;
+        }
+        return digits > 0 ? value : -1;
+    }
+
+    public int getWorkers() { return queues.length; }
+    public int getQueueDepth(int worker) { return queues[worker].size(); }
+    public long getProcessed(int worker) { return processed.get(worker); }
+    public int getFreeBuffers() { return freePackets.size(); }
+    public long getReceived() { return received.sum(); }
+    public long getDroppedNoBuffer() { return droppedNoBuffer.sum(); }
+    public long getDroppedQueueFull() { return droppedQueueFull.sum(); }
+
+    public int getTotalQueueDepth() {
+        int total = 0;
+        for (ArrayBlockingQueue<Packet> q : queues) {
+            total += q.size();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Armazenamento do arquivo sendo recebido.
+// - MAPPED: janelas MappedByteBuffer sobre o FileChannel; cada chunk vira uma cópia de memória,
+//   sem syscall por chunk.
+// - BUFFERED: junta chunks adjacentes em um buffer e grava em blocos grandes e sequenciais.
+// Nos dois modos o arquivo é pré-alocado na abertura (sem truncar o que já existe, para permitir
+// retomar a recepção) e só recebe fsync nos checkpoints e no close (END).
+public abstract class ReceiveStorage implements Closeable {
+    public enum Mode { MAPPED, BUFFERED }
+
+    // Modo padrão (-Dlabredes.storage=mapped|buffered); sem a propriedade, arquivos a partir
+    // de MAPPED_THRESHOLD usam MAPPED
+    private static final String MODE_PROPERTY = System.getProperty("labredes.storage");
+    private static final long MAPPED_THRESHOLD = 1024 * 1024;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final int COALESCE_BUFFER = 1024 * 1024;
+
+    protected final RandomAccessFile file;
+    protected final FileChannel channel;
+    protected final long size;
+
+    protected ReceiveStorage(File target, long size) throws IOException {
+        this.file = new RandomAccessFile(target, "rw");
+        this.channel = file.getChannel();
+        this.size = size;
+        // Reserva o tamanho final de uma vez (o Java não expõe fallocate; setLength faz ftruncate)
+        file.setLength(size);
+    }
+
+    public static ReceiveStorage open(File target, long size) throws IOException {
+        Mode mode;
+        if (MODE_PROPERTY != null) {
+            mode = Mode.valueOf(MODE_PROPERTY.toUpperCase());
+        } else {
+            mode = size >= MAPPED_THRESHOLD ? Mode.MAPPED : Mode.BUFFERED;
+        }
+        if (mode == Mode.MAPPED && size > 0) {
+            return new Mapped(target, size);
+        }
+        return new Buffered(target, size);
+    }
+
+    public long getSize() { return size; }
+
+    // Grava os bytes restantes de src a partir de 'position' no arquivo
+    public abstract void write(long position, ByteBuffer src) throws IOException;
+
+    // Lê de volta dados já gravados (para o hash de chunks que chegaram fora de ordem)
+    public abstract void read(long position, ByteBuffer dst) throws IOException;
+
+    // Descarrega o que estiver pendente e sincroniza com o disco
+    protected abstract void flush() throws IOException;
+
+    // Garante em disco tudo o que já foi escrito (antes de gravar um checkpoint)
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static class Mapped extends ReceiveStorage {
+        private final MappedByteBuffer[] windows;
+
+        Mapped(File target, long size) throws IOException {
+            super(target, size);
+            this.windows = new MappedByteBuffer[(int) ((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+        }
+
+        @Override
+        public void write(long position, ByteBuffer src) throws IOException {
+            int srcLimit = src.limit();
+            while (src.hasRemaining()) {
+                int index = (int) (position / MAP_WINDOW);
+                MappedByteBuffer window = window(index);
+                int offset = (int) (position - index * MAP_WINDOW);
+                int n = Math.min(src.remaining(), window.capacity() - offset);
+                // Um chunk pode cruzar o limite entre duas janelas
+                src.limit(src.position() + n);
+                window.position(offset);
+                window.put(src);
+                src.limit(srcLimit);
+                position += n;
+            }
+        }
+
+        @Override
+        public void read(long position, ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                int index = (int) (position / MAP_WINDOW);
+                MappedByteBuffer window = window(index);
+                int offset = (int) (position - index * MAP_WINDOW);
+                int n = Math.min(dst.remaining(), window.capacity() - offset);
+                window.limit(offset + n).position(offset);
+                dst.put(window);
+                window.limit(window.capacity());
+                position += n;
+            }
+        }
+
+        // Janelas são mapeadas sob demanda, na primeira escrita que cai nelas
+        private MappedByteBuffer window(int index) throws IOException {
+            MappedByteBuffer window = windows[index];
+            if (window == null) {
+                long start = index * MAP_WINDOW;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(MAP_WINDOW, size - start));
+                windows[index] = window;
+            }
+            return window;
+        }
+
+        @Override
+        protected void flush() {
+            for (MappedByteBuffer window : windows) {
+                if (window != null) {
+                    window.force();
+                }
+            }
+        }
+    }
+
+    private static class Buffered extends ReceiveStorage {
+        private final ByteBuffer pending = ByteBuffer.allocateDirect(COALESCE_BUFFER);
+        private long pendingStart = -1;
+
+        Buffered(File target, long size) throws IOException {
+            super(target, size);
+        }
+
+        @Override
+        public void write(long position, ByteBuffer src) throws IOException {
+            // Chunk contíguo ao bloco pendente: só acumula
+            boolean adjacent = pendingStart >= 0 && position == pendingStart + pending.position();
+            if (!adjacent || src.remaining() > pending.remaining()) {
+                flush();
+            }
+            if (src.remaining() > pending.capacity()) {
+                writeFully(position, src);
+                return;
+            }
+            if (pendingStart < 0) {
+                pendingStart = position;
+            }
+            pending.put(src);
+        }
+
+        @Override
+        public void read(long position, ByteBuffer dst) throws IOException {
+            // Só descarrega se a leitura alcança o bloco ainda não gravado
+            if (pendingStart >= 0 && position + dst.remaining() > pendingStart
+                    && position < pendingStart + pending.position()) {
+                flush();
+            }
+            while (dst.hasRemaining()) {
+                int r = channel.read(dst, position);
+                if (r < 0) throw new EOFException();
+                position += r;
+            }
+        }
+
+        @Override
+        protected void flush() throws IOException {
+            if (pendingStart < 0) return;
+            pending.flip();
+            writeFully(pendingStart, pending);
+            pending.clear();
+            pendingStart = -1;
+        }
+
+        private void writeFully(long position, ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+    }
+}
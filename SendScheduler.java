@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Estágio de envio: todo datagrama passa por uma de três filas e uma única thread as esvazia
+// no transporte, em prioridade estrita: controle (HEARTBEAT, ACK, SACK, handshake, FILE/END),
+// depois conversa (TALK), depois dados (chunks). Para que uma classe não fique parada enquanto
+// as de cima têm tráfego, uma classe com pacotes esperando é atendida depois de
+// STARVATION_LIMIT envios seguidos de classes mais prioritárias.
+// A fila de dados é limitada e bloqueia quem produz chunks, então um arquivo grande nunca
+// acumula mais que BULK_CAPACITY pacotes na frente de um ACK ou de uma mensagem.
+public class SendScheduler {
+    public static final int CONTROL = 0;
+    public static final int INTERACTIVE = 1;
+    public static final int BULK = 2;
+    private static final String[] NAMES = {"controle", "conversa", "dados"};
+
+    private static final int[] CAPACITY = {512, 128, 256};
+    private static final int STARVATION_LIMIT = 32;
+    // Tempo máximo que um produtor de dados espera por espaço na fila antes de descartar
+    private static final long BULK_WAIT_NANOS = 100_000_000;
+    private static final int SEND_RETRIES = 100;
+    // DSCP por classe no campo TOS: CS6 (controle de rede), EF (interativo), CS1 (menor esforço).
+    // Desligável com -Dlabredes.dscp=false; se o sistema recusar, é desativado na primeira falha.
+    private static final int[] TOS = {0xC0, 0xB8, 0x20};
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private static class Packet {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(ReceivePipeline.MAX_DATAGRAM);
+        InetSocketAddress dest;
+        long enqueuedAt;
+    }
+
+    private final Transport transport;
+    private final Metrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition bulkNotFull = lock.newCondition();
+    private final ArrayDeque<Packet>[] queues;
+    private final ArrayDeque<Packet>[] free;
+    // Pacotes criados sob demanda até CAPACITY: um nó ocioso (ou um dos muitos de uma simulação em
+    // memória) não reserva os buffers diretos de todas as filas cheias
+    private final int[] allocated = new int[3];
+    private final int[] skipped = new int[3];
+    private boolean dscp = !"false".equals(System.getProperty("labredes.dscp"));
+    private int currentTos = -1;
+
+    // Métricas por classe: tempo da entrada na fila até o envio, em histograma log2 de microssegundos
+    private final LongAdder[] sent = new LongAdder[3];
+    private final LongAdder[] droppedQueueFull = new LongAdder[3];
+    private final LongAdder[] droppedKernel = new LongAdder[3];
+    private final AtomicLong[] waitSumNanos = new AtomicLong[3];
+    private final AtomicLong[] waitMaxNanos = new AtomicLong[3];
+    private final AtomicLongArray histogram = new AtomicLongArray(3 * HISTOGRAM_BUCKETS);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SendScheduler(Transport transport, Metrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+        this.queues = new ArrayDeque[3];
+        this.free = new ArrayDeque[3];
+        for (int c = 0; c < 3; c++) {
+            queues[c] = new ArrayDeque<>(CAPACITY[c]);
+            free[c] = new ArrayDeque<>(CAPACITY[c]);
+            sent[c] = new LongAdder();
+            droppedQueueFull[c] = new LongAdder();
+            droppedKernel[c] = new LongAdder();
+            waitSumNanos[c] = new AtomicLong();
+            waitMaxNanos[c] = new AtomicLong();
+        }
+    }
+
+    public void start() {
+        Thread t = new Thread(this::sendLoop, "SendThread");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Copia os bytes restantes de src para a fila da classe do datagrama; src pode ser reutilizado em seguida
+    public void send(ByteBuffer src, InetSocketAddress dest) {
+        if (!enqueue(src, dest, BULK_WAIT_NANOS)) {
+            droppedQueueFull[classify(src)].increment();
+        }
+    }
+
+    // Como send, mas sem esperar espaço na fila de dados: retorna false sem enfileirar e o chamador
+    // tenta de novo mais tarde. Para a roda de temporização e os workers de recepção, que não podem
+    // ficar parados atrás de uma transferência congestionada.
+    public boolean trySend(ByteBuffer src, InetSocketAddress dest) {
+        return enqueue(src, dest, 0);
+    }
+
+    private boolean enqueue(ByteBuffer src, InetSocketAddress dest, long bulkWaitNanos) {
+        int cls = classify(src);
+        Packet p;
+        lock.lock();
+        try {
+            p = free[cls].poll();
+            if (p == null && allocated[cls] < CAPACITY[cls]) {
+                p = new Packet();
+                allocated[cls]++;
+            }
+            if (p == null && cls == BULK) {
+                long nanos = bulkWaitNanos;
+                while ((p = free[cls].poll()) == null && nanos > 0) {
+                    nanos = bulkNotFull.awaitNanos(nanos);
+                }
+            }
+            if (p == null) {
+                return false;
+            }
+            p.buf.clear();
+            p.buf.put(src);
+            p.buf.flip();
+            p.dest = dest;
+            p.enqueuedAt = System.nanoTime();
+            queues[cls].add(p);
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Quadros DATA, PARITY e SIG, CHUNKs de texto e GPOLL são dados; TALK é conversa; o resto é controle.
+    // A paridade e o GPOLL seguem na mesma fila dos chunks para não chegarem antes deles.
+    static int classify(ByteBuffer buf) {
+        int pos = buf.position();
+        if (FrameCodec.isBinary(buf)) {
+            byte type = buf.get(pos + 2);
+            return type == FrameCodec.TYPE_DATA || type == FrameCodec.TYPE_PARITY
+                    || type == FrameCodec.TYPE_SIG ? BULK : CONTROL;
+        }
+        if (startsWith(buf, pos, "CHUNK ") || startsWith(buf, pos, "GPOLL ")) return BULK;
+        if (startsWith(buf, pos, "TALK ")) return INTERACTIVE;
+        return CONTROL;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int pos, String prefix) {
+        if (buf.limit() - pos < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf.get(pos + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void sendLoop() {
+        Packet done = null;
+        int doneClass = 0;
+        while (true) {
+            Packet p;
+            int cls;
+            lock.lock();
+            try {
+                if (done != null) {
+                    free[doneClass].add(done);
+                    if (doneClass == BULK) bulkNotFull.signal();
+                }
+                while ((cls = pickClass()) < 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                p = queues[cls].poll();
+                skipped[cls] = 0;
+                for (int c = cls + 1; c < 3; c++) {
+                    if (!queues[c].isEmpty()) skipped[c]++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            transmit(p, cls);
+            done = p;
+            doneClass = cls;
+        }
+    }
+
+    // Classe mais prioritária com pacotes, a não ser que uma abaixo dela já tenha esperado demais
+    private int pickClass() {
+        int best = -1;
+        for (int c = 0; c < 3; c++) {
+            if (queues[c].isEmpty()) continue;
+            if (best < 0) {
+                best = c;
+            } else if (skipped[c] >= STARVATION_LIMIT) {
+                return c;
+            }
+        }
+        return best;
+    }
+
+    private void transmit(Packet p, int cls) {
+        try {
+            setTos(cls);
+            int start = p.buf.position();
+            // O envio não bloqueia: com o buffer de envio do kernel cheio, send() retorna false
+            for (int attempt = 0; !transport.send(p.buf, p.dest); attempt++) {
+                if (attempt == SEND_RETRIES) {
+                    droppedKernel[cls].increment();
+                    return;
+                }
+                LockSupport.parkNanos(50_000);
+            }
+            p.buf.position(start);
+            metrics.onSend(p.buf);
+            long wait = System.nanoTime() - p.enqueuedAt;
+            sent[cls].increment();
+            waitSumNanos[cls].addAndGet(wait);
+            waitMaxNanos[cls].accumulateAndGet(wait, Math::max);
+            long micros = Math.max(1, wait / 1000);
+            int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            histogram.incrementAndGet(cls * HISTOGRAM_BUCKETS + bucket);
+        } catch (ClosedChannelException e) {
+            // nó fechado (UdpNode.close) com pacotes ainda na fila: descartados
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            p.dest = null;
+        }
+    }
+
+    private void setTos(int cls) {
+        if (!dscp || currentTos == TOS[cls]) return;
+        try {
+            transport.setTrafficClass(TOS[cls]);
+            currentTos = TOS[cls];
+        } catch (IOException | UnsupportedOperationException e) {
+            dscp = false;
+        }
+    }
+
+    public static String nameOf(int cls) { return NAMES[cls]; }
+
+    public int getQueueDepth(int cls) {
+        lock.lock();
+        try {
+            return queues[cls].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSent(int cls) { return sent[cls].sum(); }
+    public long getDroppedQueueFull(int cls) { return droppedQueueFull[cls].sum(); }
+    public long getDroppedKernel(int cls) { return droppedKernel[cls].sum(); }
+
+    public long getDroppedKernel() {
+        return droppedKernel[CONTROL].sum() + droppedKernel[INTERACTIVE].sum() + droppedKernel[BULK].sum();
+    }
+
+    public double getAvgWaitMs(int cls) {
+        long n = sent[cls].sum();
+        return n == 0 ? 0 : waitSumNanos[cls].get() / (double) n / 1e6;
+    }
+
+    public double getMaxWaitMs(int cls) {
+        return waitMaxNanos[cls].get() / 1e6;
+    }
+
+    // Limite superior do balde do histograma que contém o percentil q
+    public double getWaitPercentileMs(int cls, double q) {
+        long total = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            total += histogram.get(cls * HISTOGRAM_BUCKETS + i);
+        }
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            seen += histogram.get(cls * HISTOGRAM_BUCKETS + i);
+            if (seen >= target) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return getMaxWaitMs(cls);
+    }
+}
@@ -0,0 +1,573 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Remetente com janela deslizante para o protocolo binário.
+// Mantém no máximo 'windowSize' chunks em voo; o receptor responde com quadros SACK
+// (ACK cumulativo + bitmap dos chunks recebidos acima dele) e só os buracos são reenviados:
+// pelo RTO do destino (agendado na roda de temporização) ou, mais cedo, quando
+// FAST_RETX_THRESHOLD SACKs seguidos reportam o mesmo buraco.
+// O estado por slot é só metadado (seq, envio, tentativas); o payload é relido do arquivo
+// em um buffer do pool a cada envio, então a memória é limitada pela janela.
+// Numa transferência retomada, os chunks que o receptor já tem começam confirmados e nunca são enviados.
+// Os chunks novos são enviados pelo escalonador do TransferManager (sendNew), que intercala as
+// janelas ativas e aplica os limites de taxa; a thread de controle só espera em await().
+// Se o destino também está nos enviando um arquivo, o ACK atrasado dessa recepção vai de carona
+// no próximo quadro DATA (FLAG_ACK), poupando um datagrama de volta.
+// Com compressão negociada, os próximos PREFETCH chunks são lidos e comprimidos à frente no pool do
+// ChunkCompressor e sendNew só envia os que já estão prontos, em ordem. Depois de INCOMPRESSIBLE_RUN
+// chunks seguidos que não encolheram, os SKIP_CHUNKS seguintes vão crus sem tentar.
+// Com FEC, cada grupo de chunks novos é seguido do seu quadro PARITY, e um buraco só conta para o
+// reenvio rápido depois que o receptor confirma algo além do grupo (e portanto já teve a paridade).
+// Os quadros são montados sob o monitor da janela e enfileirados no SendScheduler depois de soltá-lo
+// (ver flush): a fila de dados cheia nunca segura o monitor, e com ele a roda de temporização e o
+// worker de recepção que tratam os SACKs.
+public class SendWindow {
+    private static final int FAST_RETX_THRESHOLD = 3;
+    private static final int MAX_RETRIES = 20;
+    private static final int PREFETCH = 32;
+    private static final int INCOMPRESSIBLE_RUN = 8;
+    private static final int SKIP_CHUNKS = 256;
+    // Um evento por chunk: só em DEBUG e limitado por segundo
+    private static final Log.Limiter CHUNK_LOG = new Log.Limiter(Log.Level.DEBUG, 20);
+    private static final Log.Limiter RETX_LOG = new Log.Limiter(Log.Level.DEBUG, 20);
+    // Quadros montados numa chamada, à espera de flush; um por thread (escalonador, workers, roda)
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> OUTBOX = ThreadLocal.withInitial(ArrayDeque::new);
+
+    // Chunk novo lido (e talvez comprimido) à frente por um worker do ChunkCompressor
+    private static class Packed {
+        final int seq;
+        final boolean tryDeflate;
+        ByteBuffer buf;
+        int length;
+        boolean deflated;
+        boolean ready;
+        String error;
+
+        Packed(int seq, boolean tryDeflate) {
+            this.seq = seq;
+            this.tryDeflate = tryDeflate;
+        }
+    }
+
+    private final UdpNode node;
+    private final TimerWheel timerWheel;
+    private final String id;
+    private final long transferId;
+    private final DeviceInfo peer;
+    private final int windowSize;
+    private final int totalChunks;
+    private final ChunkSource source;
+    private final BufferPool pool;
+    private final boolean useCrc;
+    private final boolean piggyback;
+    private final boolean compress;
+    private final int fecGroup;
+    private final CRC32C crc = new CRC32C();
+
+    // Estado dos chunks em voo, indexado por seq % windowSize
+    private final int[] slotSeq;
+    private final TimerWheel.Timeout[] timeouts;
+    private final long[] sentAt;
+    private final int[] retries;
+    private final int[] holeReports;
+    private final BitSet acked = new BitSet();
+
+    private int base = 1;       // menor seq ainda não confirmado
+    private int nextSeq = 1;    // próximo seq a ser enviado pela primeira vez
+    private String abortReason;
+    private long retransmissions;
+    private int resumed;
+    private volatile long ackedBytes;
+
+    // Compressão: chunks em preparação a partir de nextSeq, na ordem de envio
+    private final ArrayDeque<Packed> packed = new ArrayDeque<>();
+    private int packedUpTo;
+    private int incompressible;
+    private int skipUntil;
+    private boolean closed;
+    private volatile Thread waiter;
+    private long rawBytes;
+    private long wireBytes;
+    private volatile int frameSize;
+    // Quadros que não couberam na fila de dados, prontos (com o ACK de carona que já levam),
+    // enviados no próximo tique da roda
+    private final ArrayDeque<ByteBuffer> deferred = new ArrayDeque<>();
+    private final TimerWheel.Timeout retryDeferred = new TimerWheel.Timeout(this::resendDeferred);
+
+    // FEC: XOR do grupo, relido do arquivo quando o último chunk do grupo sai
+    private byte[] parity;
+    private ByteBuffer parityRead;
+    private long parityFrames;
+
+    public SendWindow(UdpNode node, TimerWheel timerWheel, String id, ChunkSource source, BufferPool pool,
+                      DeviceInfo peer, int windowSize, boolean useCrc, boolean piggyback, boolean compress,
+                      int fecGroup, BitSet have) {
+        this.node = node;
+        this.timerWheel = timerWheel;
+        this.id = id;
+        this.transferId = UdpNode.transferIdOf(id);
+        this.peer = peer;
+        this.windowSize = windowSize;
+        this.source = source;
+        this.pool = pool;
+        this.useCrc = useCrc;
+        this.piggyback = piggyback;
+        this.compress = compress;
+        this.fecGroup = fecGroup;
+        this.totalChunks = source.getTotalChunks();
+        this.slotSeq = new int[windowSize];
+        this.timeouts = new TimerWheel.Timeout[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            final int slot = i;
+            timeouts[i] = new TimerWheel.Timeout(() -> onTimeout(slot));
+        }
+        this.sentAt = new long[windowSize];
+        this.retries = new int[windowSize];
+        this.holeReports = new int[windowSize];
+        if (have != null) {
+            acked.or(have);
+            acked.clear(0);
+            if (acked.length() > totalChunks + 1) {
+                acked.clear(totalChunks + 1, acked.length());
+            }
+            base = acked.nextClearBit(1);
+            nextSeq = base;
+            resumed = acked.cardinality();
+            long bytes = 0;
+            for (int seq = acked.nextSetBit(1); seq >= 0; seq = acked.nextSetBit(seq + 1)) {
+                bytes += source.lengthOf(seq);
+            }
+            ackedBytes = bytes;
+        }
+        this.frameSize = FrameCodec.HEADER_SIZE + source.getChunkSize() + (useCrc ? FrameCodec.CRC_SIZE : 0);
+    }
+
+    public long getTransferId() { return transferId; }
+    public int getTotalChunks() { return totalChunks; }
+    public long getRetransmissions() { return retransmissions; }
+    public int getResumed() { return resumed; }
+    public long getAckedBytes() { return ackedBytes; }
+    public DeviceInfo getPeer() { return peer; }
+    public synchronized long getRawBytes() { return rawBytes; }
+    public synchronized long getWireBytes() { return wireBytes; }
+    public synchronized long getParityFrames() { return parityFrames; }
+
+    // Bytes de um quadro de dados, para o controle de taxa: o quadro completo ou, com compressão,
+    // a média móvel dos quadros enviados
+    public int getFrameSize() {
+        return frameSize;
+    }
+    public String getAbortReason() { return abortReason; }
+
+    // Bloqueia até todos os chunks serem confirmados (true) ou a transferência ser abortada (false).
+    // Espera com park fora do monitor: a thread de controle pode ser virtual (ver Threads), e um
+    // wait() dentro do synchronized prenderia a thread portadora durante toda a transferência.
+    public boolean await() throws InterruptedException {
+        waiter = Thread.currentThread();
+        try {
+            while (!finished()) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        } finally {
+            synchronized (this) {
+                waiter = null;
+                for (TimerWheel.Timeout t : timeouts) {
+                    t.cancel();
+                }
+                retryDeferred.cancel();
+                for (ByteBuffer buf : deferred) {
+                    pool.release(buf);
+                }
+                deferred.clear();
+                // Buffers ainda em preparação são devolvidos pelo próprio worker ao terminar
+                closed = true;
+                for (Packed p : packed) {
+                    if (p.ready) pool.release(p.buf);
+                }
+                packed.clear();
+            }
+        }
+        return abortReason == null;
+    }
+
+    private synchronized boolean finished() {
+        return base > totalChunks || abortReason != null;
+    }
+
+    // Acorda a thread em await() para reavaliar o fim da transferência
+    private void wake() {
+        Thread t = waiter;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    // Processa um quadro SACK: seq = ACK cumulativo, payload = bitmap dos seqs cum+2, cum+3, ...
+    public void onSack(FrameCodec.Frame frame) {
+        onAck(frame.seq, frame.buffer, frame.payloadOffset, frame.length);
+    }
+
+    // ACK cumulativo de carona num quadro DATA, sem bitmap
+    public void onAck(int cumulative) {
+        onAck(cumulative, null, 0, 0);
+    }
+
+    private void onAck(int cumulative, ByteBuffer bitmap, int offset, int length) {
+        ArrayDeque<ByteBuffer> out = OUTBOX.get();
+        boolean advanced = collectAck(cumulative, bitmap, offset, length, out);
+        flush(out, false);
+        if (advanced) {
+            node.getTransfers().signal();
+        }
+    }
+
+    // Marca os confirmados e monta os reenvios rápidos; retorna true se a base da janela andou
+    private synchronized boolean collectAck(int cumulative, ByteBuffer bitmap, int offset, int length,
+                                            ArrayDeque<ByteBuffer> out) {
+        long now = System.currentTimeMillis();
+        int cum = Math.min(cumulative, nextSeq - 1);
+        int rttSeq = -1;
+        for (int seq = base; seq <= cum; seq++) {
+            if (markAcked(seq)) rttSeq = seq;
+        }
+        int highest = cum;
+        int bits = length * 8;
+        for (int i = 0; i < bits; i++) {
+            byte b = bitmap.get(offset + (i >> 3));
+            if (((b >> (i & 7)) & 1) == 0) continue;
+            int seq = cum + 2 + i;
+            if (seq >= nextSeq) break;
+            if (markAcked(seq)) rttSeq = seq;
+            highest = seq;
+        }
+        int oldBase = base;
+        base = acked.nextClearBit(base);
+
+        // Uma amostra de RTT por SACK, do chunk mais recente confirmado que nunca foi reenviado
+        if (rttSeq > 0) {
+            long rtt = now - sentAt[rttSeq % windowSize];
+            node.getMetrics().rtt.record(rtt);
+            peer.onRttSample(rtt);
+        }
+
+        // Buracos abaixo do maior seq confirmado: reenvio rápido sem esperar o timeout
+        for (int seq = base; seq < highest; seq++) {
+            if (acked.get(seq)) continue;
+            // A paridade do grupo pode ainda reconstruir o chunk no receptor
+            if (fecGroup > 0 && highest <= Fec.lastOf(seq, fecGroup, totalChunks)) continue;
+            int slot = seq % windowSize;
+            if (++holeReports[slot] == FAST_RETX_THRESHOLD) {
+                retransmit(seq, now, out);
+                // Só volta a ser reenviado por timeout, evitando rajadas de SACKs repetidos
+                holeReports[slot] = Integer.MIN_VALUE;
+            }
+        }
+        wake();
+        return base != oldBase;
+    }
+
+    // O receptor detectou CRC32C inválido: reenvia o chunk na hora
+    public void onNack(int seq) {
+        ArrayDeque<ByteBuffer> out = OUTBOX.get();
+        synchronized (this) {
+            if (seq < base || seq >= nextSeq || acked.get(seq)) return;
+            retransmit(seq, System.currentTimeMillis(), out);
+            wake();
+        }
+        flush(out, false);
+    }
+
+    public synchronized void abort(String reason) {
+        if (abortReason == null) {
+            abortReason = reason;
+        }
+        wake();
+    }
+
+    // Chunks novos que cabem na janela agora (com compressão, só os já preparados)
+    public synchronized int sendable() {
+        if (abortReason != null) return 0;
+        int free = Math.max(0, Math.min(totalChunks + 1, base + windowSize) - nextSeq);
+        if (!compress || free == 0) return free;
+        prefetch();
+        int ready = 0;
+        for (Packed p : packed) {
+            if (!p.ready || ready == free) break;
+            ready++;
+        }
+        return ready;
+    }
+
+    // Agenda a preparação dos próximos chunks novos
+    private void prefetch() {
+        int seq = Math.max(packedUpTo + 1, nextSeq);
+        while (packed.size() < PREFETCH && seq <= totalChunks && abortReason == null) {
+            if (!acked.get(seq)) {
+                Packed p = new Packed(seq, seq > skipUntil);
+                packed.addLast(p);
+                ChunkCompressor.submit(() -> pack(p));
+            }
+            packedUpTo = seq++;
+        }
+    }
+
+    // Executado no pool do ChunkCompressor
+    private void pack(Packed p) {
+        ByteBuffer buf = pool.acquire();
+        boolean deflated = false;
+        String error = null;
+        try {
+            buf.position(FrameCodec.HEADER_SIZE);
+            deflated = ChunkCompressor.pack(source, p.seq, buf, p.tryDeflate);
+        } catch (IOException e) {
+            error = "FALHA_LEITURA " + e.getMessage();
+        }
+        synchronized (this) {
+            if (closed) {
+                pool.release(buf);
+                return;
+            }
+            p.buf = buf;
+            p.length = buf.position() - FrameCodec.HEADER_SIZE;
+            p.deflated = deflated;
+            p.error = error;
+            p.ready = true;
+            if (p.tryDeflate) {
+                incompressible = deflated ? 0 : incompressible + 1;
+                if (incompressible >= INCOMPRESSIBLE_RUN) {
+                    incompressible = 0;
+                    skipUntil = p.seq + SKIP_CHUNKS;
+                }
+            }
+        }
+        node.getTransfers().signal();
+    }
+
+    // Envia até 'max' chunks novos; retorna quantos foram enviados. Chamado pelo escalonador do
+    // TransferManager, que espera espaço na fila de dados: é isso que segura o ritmo dos chunks novos.
+    public int sendNew(int max) {
+        ArrayDeque<ByteBuffer> out = OUTBOX.get();
+        int sent = collectNew(max, out);
+        flush(out, true);
+        return sent;
+    }
+
+    private synchronized int collectNew(int max, ArrayDeque<ByteBuffer> out) {
+        int sent = 0;
+        while (sent < max && nextSeq <= totalChunks && nextSeq < base + windowSize && abortReason == null) {
+            if (acked.get(nextSeq)) {
+                nextSeq++;
+                continue;
+            }
+            int slot = nextSeq % windowSize;
+            int wire;
+            if (compress) {
+                while (!packed.isEmpty() && packed.peekFirst().seq < nextSeq) {
+                    pool.release(packed.pollFirst().buf);
+                }
+                Packed p = packed.peekFirst();
+                if (p == null || p.seq != nextSeq || !p.ready) break;
+                packed.pollFirst();
+                if (p.error != null) {
+                    pool.release(p.buf);
+                    abortReason = p.error;
+                    break;
+                }
+                wire = complete(nextSeq, p.buf, p.length, p.deflated);
+                out.add(p.buf);
+                int frame = FrameCodec.HEADER_SIZE + wire + (useCrc ? FrameCodec.CRC_SIZE : 0);
+                frameSize = (frameSize * 7 + frame) / 8;
+            } else {
+                wire = frame(nextSeq, out);
+            }
+            rawBytes += source.lengthOf(nextSeq);
+            wireBytes += wire;
+            slotSeq[slot] = nextSeq;
+            retries[slot] = 0;
+            holeReports[slot] = 0;
+            sentAt[slot] = System.currentTimeMillis();
+            timerWheel.schedule(timeouts[slot], peer.getRto());
+            if (CHUNK_LOG.allow()) {
+                CHUNK_LOG.log("... enviado CHUNK seq=" + nextSeq + " (" + source.lengthOf(nextSeq) + " bytes"
+                        + (wire < source.lengthOf(nextSeq) ? ", " + wire + " comprimido" : "") + ")");
+            }
+            if (fecGroup > 0 && nextSeq == Fec.lastOf(nextSeq, fecGroup, totalChunks)) {
+                parity(Fec.firstOf(nextSeq, fecGroup), nextSeq, out);
+            }
+            nextSeq++;
+            sent++;
+        }
+        if (abortReason != null) {
+            wake();
+        }
+        return sent;
+    }
+
+    // Marca o seq como confirmado; retorna true se ele serve como amostra de RTT (regra de Karn)
+    private boolean markAcked(int seq) {
+        if (acked.get(seq)) return false;
+        acked.set(seq);
+        ackedBytes += source.lengthOf(seq);
+        int slot = seq % windowSize;
+        timeouts[slot].cancel();
+        return retries[slot] == 0;
+    }
+
+    // Chamado pela roda de temporização quando o RTO do chunk no slot expira
+    private void onTimeout(int slot) {
+        ArrayDeque<ByteBuffer> out = OUTBOX.get();
+        synchronized (this) {
+            int seq = slotSeq[slot];
+            if (abortReason != null || seq < base || acked.get(seq)) return;
+            long now = System.currentTimeMillis();
+            peer.backoff(now);
+            holeReports[slot] = 0;
+            retransmit(seq, now, out);
+            wake();
+        }
+        flush(out, false);
+    }
+
+    // Enfileira os quadros montados, já fora do monitor, e devolve os buffers ao pool. Sem 'block'
+    // (roda de temporização, workers de recepção) um quadro que não cabe na fila de dados não espera:
+    // fica guardado como está e sai no próximo tique (resendDeferred), já contado como reenviado.
+    // Não é remontado: o ACK atrasado que foi de carona nele já saiu de delayedAcks.
+    private void flush(ArrayDeque<ByteBuffer> out, boolean block) {
+        ByteBuffer buf;
+        while ((buf = out.poll()) != null) {
+            if (block) {
+                node.sendFrame(buf, peer.getAddress());
+            } else if (!node.trySendFrame(buf, peer.getAddress())) {
+                defer(buf);
+                continue;
+            }
+            pool.release(buf);
+        }
+    }
+
+    private synchronized void defer(ByteBuffer buf) {
+        if (closed || abortReason != null) {
+            pool.release(buf);
+            return;
+        }
+        deferred.add(buf);
+        if (!retryDeferred.isScheduled()) {
+            timerWheel.schedule(retryDeferred, 0);
+        }
+    }
+
+    // Chunks confirmados enquanto esperavam não saem mais; paridades saem de qualquer forma
+    private void resendDeferred() {
+        ArrayDeque<ByteBuffer> out = OUTBOX.get();
+        synchronized (this) {
+            ByteBuffer buf;
+            while ((buf = deferred.poll()) != null) {
+                int seq = FrameCodec.seqOf(buf);
+                boolean stale = buf.get(2) == FrameCodec.TYPE_DATA && (seq < base || acked.get(seq));
+                if (closed || abortReason != null || stale) {
+                    pool.release(buf);
+                } else {
+                    out.add(buf);
+                }
+            }
+        }
+        flush(out, false);
+    }
+
+    private void retransmit(int seq, long now, ArrayDeque<ByteBuffer> out) {
+        int slot = seq % windowSize;
+        if (++retries[slot] > MAX_RETRIES) {
+            abortReason = "LIMITE_RETRANSMISSOES seq=" + seq;
+            return;
+        }
+        node.getMetrics().retxWindow.increment();
+        if (RETX_LOG.allow()) RETX_LOG.log("[RETX] Reenviando ID=" + id + "-seq" + seq);
+        node.getTransfers().charge(peer, getFrameSize());
+        frame(seq, out);
+        sentAt[slot] = now;
+        timerWheel.schedule(timeouts[slot], peer.getRto());
+        retransmissions++;
+    }
+
+    // Relê o chunk do arquivo direto após o cabeçalho (comprimindo-o nesta thread, se negociado)
+    // e põe o quadro em 'out'; retorna o tamanho dos dados enviados
+    private int frame(int seq, ArrayDeque<ByteBuffer> out) {
+        ByteBuffer buf = pool.acquire();
+        try {
+            buf.position(FrameCodec.HEADER_SIZE);
+            boolean deflated = ChunkCompressor.pack(source, seq, buf, compress);
+            int wire = complete(seq, buf, buf.position() - FrameCodec.HEADER_SIZE, deflated);
+            out.add(buf);
+            return wire;
+        } catch (IOException e) {
+            pool.release(buf);
+            abortReason = "FALHA_LEITURA " + e.getMessage();
+            return 0;
+        }
+    }
+
+    // XOR dos dados originais do grupo first..last, enviado logo após o último chunk dele
+    private void parity(int first, int last, ArrayDeque<ByteBuffer> out) {
+        if (last == first) return;
+        int length = source.lengthOf(first);
+        if (parity == null) {
+            parity = new byte[source.getChunkSize()];
+            parityRead = ByteBuffer.allocate(source.getChunkSize());
+        }
+        Arrays.fill(parity, 0, length, (byte) 0);
+        ByteBuffer buf = pool.acquire();
+        try {
+            for (int seq = first; seq <= last; seq++) {
+                parityRead.clear();
+                source.read(seq, parityRead);
+                parityRead.flip();
+                Fec.xor(parity, parityRead);
+            }
+            buf.position(FrameCodec.HEADER_SIZE);
+            buf.put(parity, 0, length);
+            byte flags = 0;
+            if (useCrc) {
+                buf.limit(FrameCodec.HEADER_SIZE + length).position(FrameCodec.HEADER_SIZE);
+                crc.reset();
+                crc.update(buf);
+                buf.limit(buf.capacity());
+                buf.putInt(FrameCodec.HEADER_SIZE + length, (int) crc.getValue());
+                length += FrameCodec.CRC_SIZE;
+                flags |= FrameCodec.FLAG_CRC32C;
+            }
+            FrameCodec.encodeHeader(buf, FrameCodec.TYPE_PARITY, flags, transferId, first, length);
+            node.getTransfers().charge(peer, FrameCodec.HEADER_SIZE + length);
+            out.add(buf);
+            parityFrames++;
+        } catch (IOException e) {
+            pool.release(buf);
+            abortReason = "FALHA_LEITURA " + e.getMessage();
+        }
+    }
+
+    // Completa o quadro cujos dados já estão em buf após o cabeçalho; retorna o tamanho dos dados
+    private int complete(int seq, ByteBuffer buf, int length, boolean deflated) {
+        int dataLength = length;
+        byte flags = deflated ? FrameCodec.FLAG_DEFLATE : 0;
+        buf.limit(buf.capacity());
+        if (piggyback && MessageHandler.takeDelayedAck(node, peer.getAddress(), buf, FrameCodec.HEADER_SIZE + length)) {
+            length += FrameCodec.ACK_SIZE;
+            flags |= FrameCodec.FLAG_ACK;
+        }
+        if (useCrc) {
+            buf.limit(FrameCodec.HEADER_SIZE + length).position(FrameCodec.HEADER_SIZE);
+            crc.reset();
+            crc.update(buf);
+            buf.limit(buf.capacity());
+            buf.putInt(FrameCodec.HEADER_SIZE + length, (int) crc.getValue());
+            length += FrameCodec.CRC_SIZE;
+            flags |= FrameCodec.FLAG_CRC32C;
+        }
+        FrameCodec.encodeHeader(buf, FrameCodec.TYPE_DATA, flags, transferId, seq, length);
+        return dataLength;
+    }
+}
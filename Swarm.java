@@ -0,0 +1,724 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+// Download de arquivos endereçados pelo conteúdo (MD5 do arquivo, o mesmo conferido no END),
+// puxando faixas disjuntas de chunks de várias fontes ao mesmo tempo.
+// Protocolo (texto, exceto os chunks):
+//   WHO <hash>                                  quem tem o conteúdo? (para cada dispositivo conhecido)
+//   HAVE <hash> <nome> <tamanho> <chunk> <faixas>   resposta; "0 *" = arquivo completo (qualquer chunk),
+//                                               senão as faixas "1-500,800-900" de um download em curso
+//   PULL <hash> <chunk> <primeiro> <quantidade> pedido de uma faixa; volta em quadros DATA com FLAG_SWARM
+// O receptor mantém alguns PULLs em voo por fonte (como uma janela): cada faixa concluída aumenta
+// em um a profundidade da fonte e uma perda a divide por dois. Fontes mais rápidas concluem faixas
+// antes e recebem a próxima faixa livre, então o trabalho se desloca naturalmente para elas.
+// Cada fonte serve seus PULLs em ordem, então um chunk que chega dela dá por perdidos os chunks
+// anteriores que ela ainda devia; esses voltam ao conjunto livre e podem ir para outra fonte.
+// No fim, fontes ociosas repetem os chunks ainda em voo em outras (modo final) para que a fonte
+// mais lenta não segure a conclusão.
+// Quem tem o conteúdo: arquivos received_* do diretório (indexados na partida), recepções
+// concluídas, arquivos adicionados com "share" e os próprios downloads em andamento.
+public class Swarm {
+    private static final int CHUNK = Math.min(Integer.getInteger("labredes.swarmChunk", UdpNode.CHUNK_SIZE),
+                                              TransferOptions.MAX_CHUNK);
+    private static final int BLOCK = 32;            // chunks por PULL
+    private static final int INITIAL_DEPTH = 2;     // PULLs em voo por fonte no início
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_TIMEOUTS = 5;      // timeouts seguidos até a fonte ser descartada
+    private static final long WHO_INTERVAL = 2000;  // nova consulta durante o download (fontes novas)
+    private static final int WHO_ATTEMPTS = 3;      // consultas sem resposta até desistir
+    private static final long DEFAULT_RTO = 1000;
+    private static final int MAX_RANGES = 64;       // faixas anunciadas no HAVE de um download em curso
+    private static final String PREFIX = "received_";
+    private static final ThreadLocal<ByteBuffer> FRAME =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(ReceivePipeline.MAX_DATAGRAM));
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    // Conteúdo que este nó pode servir: um arquivo completo ou um download em andamento
+    private static class Local {
+        final String name;
+        final long size;
+        final File file;
+        final long modified;
+        final Download partial;
+
+        Local(String name, File file) {
+            this.name = name;
+            this.size = file.length();
+            this.file = file;
+            this.modified = file.lastModified();
+            this.partial = null;
+        }
+
+        Local(Download partial) {
+            this.name = partial.name;
+            this.size = partial.size;
+            this.file = null;
+            this.modified = 0;
+            this.partial = partial;
+        }
+
+        // O arquivo mudou desde a indexação (ex.: outra recepção com o mesmo nome)
+        boolean stale() {
+            return file != null && (file.length() != size || file.lastModified() != modified);
+        }
+    }
+
+    private static class Request {
+        final int first;
+        final int count;
+        final BitSet pending = new BitSet();
+        final long sentAt;
+
+        Request(int first, int count, long sentAt) {
+            this.first = first;
+            this.count = count;
+            this.sentAt = sentAt;
+            pending.set(first, first + count);
+        }
+    }
+
+    private static class Source {
+        final InetSocketAddress addr;
+        final String name;
+        boolean all;                       // arquivo completo
+        BitSet have = new BitSet();        // download em curso: chunks anunciados
+        final List<Request> inflight = new ArrayList<>();
+        int depth = INITIAL_DEPTH;
+        int timeouts;
+        boolean dropped;
+        long bytes;                        // bytes novos recebidos desta fonte
+        long lastBytes;
+        double rate;                       // bytes/s, suavizado
+
+        Source(InetSocketAddress addr, String name) {
+            this.addr = addr;
+            this.name = name;
+        }
+
+        boolean has(int seq) {
+            return all || have.get(seq);
+        }
+    }
+
+    private class Download {
+        final String hash;
+        final long transferId;
+        String name;
+        long size = -1;
+        int total;
+        File target;
+        ReceiveStorage storage;
+        Transfer transfer;
+        final BitSet received = new BitSet();
+        // Recebidos ou em voo em algum PULL: o que não está aqui ainda pode ser pedido
+        final BitSet claimed = new BitSet();
+        // Chunks já repetidos no modo final (no máximo uma cópia extra de cada)
+        final BitSet duplicated = new BitSet();
+        final Map<InetSocketAddress, Source> sources = new LinkedHashMap<>();
+        long duplicates;
+        long lost;
+        boolean cancelled;
+        // Saiu do laço de run(): chunks que ainda chegarem são descartados e a cópia parcial não é
+        // mais servida, enquanto o hash do arquivo inteiro é calculado fora do monitor
+        boolean finishing;
+        final long startedAt = System.currentTimeMillis();
+
+        Download(String hash) {
+            this.hash = hash;
+            this.transferId = transferIdOf(hash);
+        }
+
+        boolean complete() {
+            return size >= 0 && received.cardinality() == total;
+        }
+    }
+
+    private final UdpNode node;
+    private final Map<String, Local> local = new ConcurrentHashMap<>();
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
+    // PULLs recebidos, em fila por quem pediu: servidos em ordem, um de cada vez por destino,
+    // para que a perda de uma faixa se revele quando a seguinte chega
+    private final Map<InetSocketAddress, Deque<String[]>> pulls = new HashMap<>();
+    private long served;
+
+    public Swarm(UdpNode node) {
+        this.node = node;
+    }
+
+    // O transferId dos quadros vem dos primeiros 64 bits do hash, com o bit de sinal ligado para
+    // não colidir com os IDs "msgN" das transferências comuns
+    public static long transferIdOf(String hash) {
+        return Long.parseUnsignedLong(hash.substring(0, 16), 16) | Long.MIN_VALUE;
+    }
+
+    private static boolean isHash(String s) {
+        return s.length() == 32 && s.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    // Indexa em segundo plano os received_* do diretório do nó (menos os que têm checkpoint,
+    // que são recepções interrompidas, e as cópias anteriores e deltas de DeltaSync)
+    public void start() {
+        node.getTransfers().submit(() -> {
+            File[] files = node.getDirectory().listFiles((dir, n) -> n.startsWith(PREFIX) && !n.endsWith(".part")
+                    && !n.endsWith(".basis") && !n.endsWith(".delta"));
+            if (files == null) return;
+            int n = 0;
+            for (File f : files) {
+                if (!f.isFile() || TransferCheckpoint.sidecarOf(f).exists()) continue;
+                try {
+                    addLocal(FileUtils.calculateMD5(f), f.getName().substring(PREFIX.length()), f);
+                    n++;
+                } catch (Exception e) {
+                    Log.error(">>> [ERRO] Falha ao indexar " + f.getName() + ": " + e.getMessage());
+                }
+            }
+            if (n > 0) {
+                Log.info(">>> [ENXAME] " + n + " arquivos recebidos indexados por conteúdo");
+            }
+        });
+    }
+
+    public void addLocal(String hash, String name, File file) {
+        local.put(hash.toLowerCase(), new Local(name, file));
+    }
+
+    // Console: "share <caminho>". O MD5 de um arquivo grande é calculado fora do console
+    public void share(String path) {
+        File f = new File(path);
+        if (!f.isFile()) {
+            System.out.println("[ERRO] Arquivo não encontrado: " + path);
+            return;
+        }
+        node.getTransfers().submit(() -> {
+            try {
+                String hash = FileUtils.calculateMD5(f);
+                addLocal(hash, f.getName(), f);
+                System.out.println(">>> [ENXAME] Compartilhando " + f.getName() + " como " + hash);
+            } catch (Exception e) {
+                System.out.println("[ERRO] Falha ao calcular o hash: " + e.getMessage());
+            }
+        });
+    }
+
+    // Console: "swarm"
+    public void print() {
+        System.out.println("=== Conteúdo ===");
+        for (Map.Entry<String, Local> e : local.entrySet()) {
+            Local l = e.getValue();
+            String state = "completo";
+            if (l.partial != null) {
+                synchronized (l.partial) {
+                    state = String.format("%.1f%%", l.partial.received.cardinality() * 100.0 / Math.max(1, l.partial.total));
+                }
+            }
+            System.out.println("* " + e.getKey() + " " + l.name + " " + l.size + " bytes (" + state + ")");
+        }
+        for (Download d : downloads.values()) {
+            synchronized (d) {
+                System.out.println("# download " + d.hash + " " + (d.name != null ? d.name : "?") + ":");
+                for (Source s : d.sources.values()) {
+                    System.out.println(String.format("    %s %s em voo=%d/%d %.2f MB/s %d bytes%s",
+                            s.name, s.all ? "completo" : "parcial", s.inflight.size(), s.depth,
+                            s.rate / (1024 * 1024), s.bytes, s.dropped ? " (descartada)" : ""));
+                }
+            }
+        }
+        synchronized (pulls) {
+            System.out.println("Servidos: " + served + " bytes");
+        }
+        System.out.println("================");
+    }
+
+    public boolean cancel(String id) {
+        Download d = isHash(id) ? downloads.get(transferIdOf(id)) : null;
+        if (d == null) return false;
+        synchronized (d) {
+            d.cancelled = true;
+            d.notifyAll();
+        }
+        return true;
+    }
+
+    // ---- Lado de quem serve ----
+
+    // "WHO <hash>"
+    public void onWho(String msg, InetAddress addr, int port) {
+        String[] tokens = msg.split(" ");
+        if (tokens.length < 2) return;
+        String hash = tokens[1].toLowerCase();
+        Local l = local.get(hash);
+        if (l == null) return;
+        if (l.stale()) {
+            local.remove(hash, l);
+            return;
+        }
+        String have;
+        if (l.partial == null) {
+            have = "0 *";
+        } else {
+            String ranges;
+            synchronized (l.partial) {
+                ranges = rangesOf(l.partial.received);
+            }
+            if (ranges.isEmpty()) return;
+            have = CHUNK + " " + ranges;
+        }
+        node.sendUdp("HAVE " + hash + " " + l.name + " " + l.size + " " + have, addr, port);
+    }
+
+    // "PULL <hash> <chunk> <primeiro> <quantidade>": entra na fila de quem pediu
+    public void onPull(String msg, InetAddress addr, int port) {
+        String[] tokens = msg.split(" ");
+        if (tokens.length < 5) return;
+        InetSocketAddress dest = new InetSocketAddress(addr, port);
+        synchronized (pulls) {
+            Deque<String[]> queue = pulls.get(dest);
+            if (queue != null) {
+                queue.add(tokens);
+                return;
+            }
+            queue = new ArrayDeque<>();
+            queue.add(tokens);
+            pulls.put(dest, queue);
+        }
+        node.getTransfers().submit(() -> drain(dest, node.peerLabel(addr, port)));
+    }
+
+    private void drain(InetSocketAddress dest, String label) {
+        Map<Integer, ChunkSource> sources = new HashMap<>();
+        try {
+            while (true) {
+                String[] tokens;
+                synchronized (pulls) {
+                    Deque<String[]> queue = pulls.get(dest);
+                    tokens = queue.poll();
+                    if (tokens == null) {
+                        pulls.remove(dest);
+                        return;
+                    }
+                }
+                try {
+                    serve(tokens, dest, label, sources);
+                } catch (IOException | RuntimeException e) {
+                    Log.error(">>> [ERRO] Falha ao servir " + String.join(" ", tokens) + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            for (ChunkSource s : sources.values()) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void serve(String[] tokens, InetSocketAddress dest, String label, Map<Integer, ChunkSource> sources)
+            throws IOException {
+        String hash = tokens[1].toLowerCase();
+        int chunk = Integer.parseInt(tokens[2]);
+        int first = Integer.parseInt(tokens[3]);
+        int count = Math.min(Integer.parseInt(tokens[4]), BLOCK * 4);
+        Local l = local.get(hash);
+        if (l == null || l.stale() || chunk <= 0 || chunk > TransferOptions.MAX_CHUNK || first < 1) return;
+        if (l.partial != null && chunk != CHUNK) return;
+        long transferId = transferIdOf(hash);
+        int total = (int) ((l.size + chunk - 1) / chunk);
+        ChunkSource source = null;
+        if (l.partial == null) {
+            source = sources.get(chunk);
+            if (source == null) {
+                source = new ChunkSource(l.file, chunk);
+                sources.put(chunk, source);
+            }
+        }
+        ByteBuffer frame = FRAME.get();
+        CRC32C crc = CRC.get();
+        for (int seq = first; seq < first + count && seq <= total; seq++) {
+            int length = (int) Math.min(chunk, l.size - (seq - 1L) * chunk);
+            frame.clear().position(FrameCodec.HEADER_SIZE).limit(FrameCodec.HEADER_SIZE + length);
+            if (source != null) {
+                source.read(seq, frame);
+            } else {
+                Download d = l.partial;
+                synchronized (d) {
+                    if (!d.received.get(seq) || d.storage == null || d.finishing) continue;
+                    d.storage.read((seq - 1L) * chunk, frame);
+                }
+            }
+            frame.limit(FrameCodec.HEADER_SIZE + length).position(FrameCodec.HEADER_SIZE);
+            crc.reset();
+            crc.update(frame);
+            frame.limit(frame.capacity());
+            frame.putInt(FrameCodec.HEADER_SIZE + length, (int) crc.getValue());
+            FrameCodec.encodeHeader(frame, FrameCodec.TYPE_DATA, (byte) (FrameCodec.FLAG_CRC32C | FrameCodec.FLAG_SWARM),
+                    transferId, seq, length + FrameCodec.CRC_SIZE);
+            node.getTransfers().pace(label, frame.remaining());
+            node.sendFrame(frame, dest);
+            synchronized (pulls) {
+                served += length;
+            }
+        }
+    }
+
+    // Faixas "a-b,c-d" dos bits ligados, no máximo MAX_RANGES (o resto fica para o próximo WHO)
+    private static String rangesOf(BitSet bits) {
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (int a = bits.nextSetBit(1); a >= 0 && n < MAX_RANGES; n++) {
+            int b = bits.nextClearBit(a) - 1;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(a).append('-').append(b);
+            a = bits.nextSetBit(b + 1);
+        }
+        return sb.toString();
+    }
+
+    private static BitSet parseRanges(String ranges) {
+        BitSet bits = new BitSet();
+        for (String r : ranges.split(",")) {
+            int dash = r.indexOf('-');
+            if (dash < 0) continue;
+            bits.set(Integer.parseInt(r.substring(0, dash)), Integer.parseInt(r.substring(dash + 1)) + 1);
+        }
+        return bits;
+    }
+
+    // ---- Lado de quem baixa ----
+
+    // Console: "fetch <hash>"
+    public void fetch(String hash) {
+        hash = hash.toLowerCase();
+        if (!isHash(hash)) {
+            System.out.println("[ERRO] Hash inválido (esperado o MD5 em hexadecimal): " + hash);
+            return;
+        }
+        Local l = local.get(hash);
+        if (l != null && l.partial == null && !l.stale()) {
+            System.out.println(">>> [ENXAME] Conteúdo já disponível localmente: " + l.file.getName());
+            return;
+        }
+        Download d = new Download(hash);
+        if (downloads.putIfAbsent(d.transferId, d) != null) {
+            System.out.println("[ERRO] Download de " + hash + " já em andamento");
+            return;
+        }
+        node.getTransfers().submit(() -> {
+            try {
+                run(d);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                downloads.remove(d.transferId);
+                Local own = local.get(d.hash);
+                if (own != null && own.partial == d) {
+                    local.remove(d.hash, own);
+                }
+            }
+        });
+    }
+
+    // "HAVE <hash> <nome> <tamanho> <chunk> <faixas>"
+    public void onHave(String msg, InetAddress addr, int port) {
+        String[] tokens = msg.split(" ");
+        if (tokens.length < 6) return;
+        Download d = downloads.get(transferIdOf(tokens[1].toLowerCase()));
+        if (d == null) return;
+        long size = Long.parseLong(tokens[3]);
+        int chunk = Integer.parseInt(tokens[4]);
+        InetSocketAddress from = new InetSocketAddress(addr, port);
+        synchronized (d) {
+            if (d.size < 0) {
+                d.name = tokens[2];
+                d.size = size;
+                d.total = (int) ((size + CHUNK - 1) / CHUNK);
+            }
+            // Tamanho diferente ou chunks indexados de outro jeito: não serve para este download
+            if (size != d.size || (chunk != 0 && chunk != CHUNK)) return;
+            Source s = d.sources.get(from);
+            if (s == null) {
+                s = new Source(from, node.peerLabel(addr, port));
+                d.sources.put(from, s);
+                Log.info(">>> [ENXAME] " + d.hash + " fonte " + s.name
+                        + (chunk == 0 ? " (completa)" : " (parcial)"));
+            }
+            s.all = chunk == 0;
+            if (!s.all) {
+                s.have = parseRanges(tokens[5]);
+            }
+            s.dropped = false;
+            s.timeouts = 0;
+            d.notifyAll();
+        }
+    }
+
+    // Quadro DATA com FLAG_SWARM, já com o CRC conferido; payload entre position e limit
+    public void onChunk(long transferId, int seq, ByteBuffer payload, InetAddress addr, int port) {
+        Download d = downloads.get(transferId);
+        if (d == null) return;
+        synchronized (d) {
+            if (d.storage == null || d.cancelled || d.finishing || seq < 1 || seq > d.total) return;
+            int length = payload.remaining();
+            long position = (seq - 1L) * CHUNK;
+            if (length != Math.min(CHUNK, d.size - position)) return;
+            Source from = d.sources.get(new InetSocketAddress(addr, port));
+            if (from != null) {
+                advance(d, from, seq);
+            }
+            if (d.received.get(seq)) {
+                d.duplicates++;
+            } else {
+                try {
+                    d.storage.write(position, payload);
+                } catch (IOException e) {
+                    Log.error(">>> [ERRO] Falha ao gravar chunk: " + e.getMessage());
+                    d.claimed.clear(seq);
+                    return;
+                }
+                d.received.set(seq);
+                d.claimed.set(seq);
+                d.transfer.addBytes(length);
+                if (from != null) from.bytes += length;
+            }
+            d.notifyAll();
+        }
+    }
+
+    // Chunk 'seq' chegou da fonte s. Ela serve os PULLs em ordem: o que ela ainda devia antes dele
+    // (pedidos anteriores e chunks anteriores do mesmo pedido) se perdeu e volta a ficar livre.
+    private void advance(Download d, Source s, int seq) {
+        int k = 0;
+        while (k < s.inflight.size() && !s.inflight.get(k).pending.get(seq)) k++;
+        if (k == s.inflight.size()) return;
+        Request current = s.inflight.get(k);
+        boolean loss = false;
+        for (int i = 0; i < k; i++) {
+            loss |= release(d, s.inflight.remove(0));
+        }
+        current.pending.clear(seq);
+        for (int lost = current.pending.nextSetBit(current.first); lost >= 0 && lost < seq;
+             lost = current.pending.nextSetBit(lost + 1)) {
+            current.pending.clear(lost);
+            loss |= release(d, lost);
+        }
+        if (loss) {
+            s.depth = Math.max(1, s.depth / 2);
+        }
+        if (current.pending.isEmpty()) {
+            s.inflight.remove(current);
+            if (!loss && s.depth < MAX_DEPTH) s.depth++;
+        }
+        s.timeouts = 0;
+    }
+
+    // Retorna true se algum chunk pendente do pedido ainda não tinha chegado (de nenhuma fonte)
+    private boolean release(Download d, Request r) {
+        boolean loss = false;
+        for (int seq = r.pending.nextSetBit(0); seq >= 0; seq = r.pending.nextSetBit(seq + 1)) {
+            loss |= release(d, seq);
+        }
+        return loss;
+    }
+
+    private boolean release(Download d, int seq) {
+        if (d.received.get(seq)) return false;
+        d.claimed.clear(seq);
+        d.lost++;
+        return true;
+    }
+
+    private void run(Download d) throws InterruptedException {
+        long lastWho = 0;
+        int whoAttempts = 0;
+        long lastSample = System.currentTimeMillis();
+        synchronized (d) {
+            while (!d.cancelled && !d.complete()) {
+                long now = System.currentTimeMillis();
+                if (now - lastWho >= WHO_INTERVAL) {
+                    // Sem fonte ativa depois de algumas consultas: desiste
+                    if (hasLiveSource(d)) whoAttempts = 0;
+                    else if (whoAttempts == WHO_ATTEMPTS) break;
+                    who(d.hash);
+                    whoAttempts++;
+                    lastWho = now;
+                }
+                if (d.size >= 0 && d.storage == null && !open(d)) break;
+                if (d.storage != null) {
+                    if (now - lastSample >= 500) {
+                        for (Source s : d.sources.values()) {
+                            double instant = (s.bytes - s.lastBytes) * 1000.0 / (now - lastSample);
+                            s.rate = s.rate == 0 ? instant : 0.5 * s.rate + 0.5 * instant;
+                            s.lastBytes = s.bytes;
+                        }
+                        lastSample = now;
+                    }
+                    expire(d, now);
+                    assign(d, now);
+                }
+                d.wait(d.storage == null ? WHO_INTERVAL / 4 : 10);
+            }
+        }
+        finish(d);
+    }
+
+    private static boolean hasLiveSource(Download d) {
+        for (Source s : d.sources.values()) {
+            if (!s.dropped) return true;
+        }
+        return false;
+    }
+
+    private void who(String hash) {
+        for (DeviceInfo info : node.getDevices().values()) {
+            if (!info.isSuspect()) {
+                node.sendUdp("WHO " + hash, info.getAddress());
+            }
+        }
+    }
+
+    // Primeiro HAVE: o tamanho é conhecido, abre o destino e passa a servir o que já chegou
+    private boolean open(Download d) {
+        try {
+            d.target = new File(node.getDirectory(), PREFIX + d.name);
+            d.storage = ReceiveStorage.open(d.target, d.size);
+        } catch (IOException e) {
+            Log.error(">>> [ERRO] Falha ao inicializar arquivo: " + e.getMessage());
+            return false;
+        }
+        d.transfer = node.getTransfers().registerInbound(d.hash, "enxame", d.name, d.size);
+        local.putIfAbsent(d.hash, new Local(d));
+        Log.info(">>> [ENXAME] Baixando " + d.name + " (" + d.size + " bytes, " + d.total
+                + " chunks de " + CHUNK + ")");
+        return true;
+    }
+
+    // PULLs sem resposta completa dentro do prazo: os chunks pendentes voltam a ficar livres.
+    // O prazo cobre o RTO da fonte e o tempo de servir os pedidos que estão à frente na fila dela.
+    private void expire(Download d, long now) {
+        for (Source s : d.sources.values()) {
+            if (s.inflight.isEmpty()) continue;
+            long rto = rtoOf(s);
+            long queued = s.rate > 0 ? (long) (s.inflight.size() * (double) BLOCK * CHUNK * 1000 / s.rate) : rto;
+            Request oldest = s.inflight.get(0);
+            if (now - oldest.sentAt < 2 * rto + queued) continue;
+            for (Request r : s.inflight) {
+                release(d, r);
+            }
+            s.inflight.clear();
+            s.depth = 1;
+            if (++s.timeouts >= MAX_TIMEOUTS && !s.dropped) {
+                s.dropped = true;
+                Log.info(">>> [ENXAME] " + d.hash + " fonte " + s.name + " sem resposta; descartada");
+            }
+        }
+    }
+
+    private long rtoOf(Source s) {
+        for (DeviceInfo info : node.getDevices().values()) {
+            if (info.getAddress().equals(s.addr)) return info.getRto();
+        }
+        return DEFAULT_RTO;
+    }
+
+    // Completa a profundidade de cada fonte com faixas livres que ela tem
+    private void assign(Download d, long now) {
+        for (Source s : d.sources.values()) {
+            while (!s.dropped && s.inflight.size() < s.depth) {
+                Request r = nextBlock(d, s, now);
+                if (r == null && s.inflight.isEmpty()) r = endgameBlock(d, s, now);
+                if (r == null) break;
+                s.inflight.add(r);
+                node.sendUdp("PULL " + d.hash + " " + CHUNK + " " + r.first + " " + r.count, s.addr);
+            }
+        }
+    }
+
+    private Request nextBlock(Download d, Source s, long now) {
+        int seq = d.claimed.nextClearBit(1);
+        while (seq <= d.total && !s.has(seq)) {
+            int next = s.have.nextSetBit(seq);
+            if (next < 0) return null;
+            seq = d.claimed.nextClearBit(next);
+        }
+        if (seq > d.total) return null;
+        int count = 1;
+        while (count < BLOCK && seq + count <= d.total && !d.claimed.get(seq + count) && s.has(seq + count)) {
+            count++;
+        }
+        d.claimed.set(seq, seq + count);
+        return new Request(seq, count, now);
+    }
+
+    // Modo final: tudo já foi pedido; repete numa fonte ociosa uma faixa ainda pendente em outra
+    private Request endgameBlock(Download d, Source s, long now) {
+        if (d.claimed.nextClearBit(1) <= d.total) return null;
+        for (int seq = d.received.nextClearBit(1); seq <= d.total; seq = d.received.nextClearBit(seq + 1)) {
+            if (d.duplicated.get(seq) || !s.has(seq)) continue;
+            int count = 1;
+            while (count < BLOCK && seq + count <= d.total && !d.received.get(seq + count)
+                    && !d.duplicated.get(seq + count) && s.has(seq + count)) {
+                count++;
+            }
+            d.duplicated.set(seq, seq + count);
+            return new Request(seq, count, now);
+        }
+        return null;
+    }
+
+    // Confere o conteúdo pelo hash pedido: é o que identifica o arquivo
+    // O fechamento é feito sob o monitor; o hash, que relê o arquivo inteiro, fora dele: onChunk,
+    // onHave e o serviço da cópia parcial não esperam por ele nos workers de recepção
+    private void finish(Download d) {
+        StringBuilder share = new StringBuilder();
+        int sources;
+        synchronized (d) {
+            d.finishing = true;
+            if (d.storage == null) {
+                if (d.size < 0) {
+                    Log.info(">>> [ENXAME] " + d.hash + (d.cancelled ? " cancelado" : ": nenhuma fonte encontrada"));
+                }
+                return;
+            }
+            try {
+                d.storage.close();
+            } catch (IOException e) {
+                Log.error(">>> [ERRO] Falha ao fechar arquivo: " + e.getMessage());
+            }
+            if (d.cancelled || !d.complete()) {
+                d.transfer.setState(d.cancelled ? Transfer.State.CANCELADA : Transfer.State.FALHA);
+                Log.info(">>> [ENXAME] " + d.hash + (d.cancelled ? " cancelado" : " interrompido") + " com "
+                        + d.received.cardinality() + " de " + d.total + " chunks");
+                return;
+            }
+            for (Source s : d.sources.values()) {
+                if (share.length() > 0) share.append(", ");
+                share.append(String.format("%s %.0f%%", s.name, s.bytes * 100.0 / Math.max(1, d.size)));
+            }
+            sources = d.sources.size();
+        }
+        String hash;
+        try {
+            hash = FileUtils.calculateMD5(d.target);
+        } catch (Exception e) {
+            hash = "";
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - d.startedAt);
+        if (!hash.equalsIgnoreCase(d.hash)) {
+            d.transfer.setState(Transfer.State.FALHA);
+            Log.info(">>> [ENXAME] " + d.name + " corrompido: hash calculado " + hash);
+            d.target.delete();
+            return;
+        }
+        d.transfer.setState(Transfer.State.CONCLUIDA);
+        local.put(d.hash, new Local(d.name, d.target));
+        Log.info(String.format(">>> [ENXAME] %s validado com sucesso! %.2f MB/s de %d fontes (%s); "
+                        + "%d chunks pedidos de novo, %d duplicados",
+                d.name, d.size * 1000.0 / elapsed / (1024 * 1024), sources, share, d.lost, d.duplicates));
+    }
+}
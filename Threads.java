@@ -0,0 +1,82 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads para tarefas que passam a maior parte do tempo bloqueadas (controle das transferências,
+// disparos do agendador): virtuais no JDK 21+, para milhares de envios simultâneos não precisarem de
+// milhares de threads do sistema. O código compila para o Java 17, então a API é obtida por reflexão;
+// sem ela (ou com -Dlabredes.virtualThreads=false) usa threads de plataforma daemon.
+// As threads de I/O (ListenThread, SendThread, workers) continuam de plataforma: bloqueiam em
+// monitores e no Selector, o que prende a thread portadora de uma thread virtual.
+public final class Threads {
+    private static final boolean ENABLED = !"false".equals(System.getProperty("labredes.virtualThreads"));
+    // Thread.ofVirtual() e Executors.newThreadPerTaskExecutor(ThreadFactory), se existirem
+    private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+    private static final Method PER_TASK = method(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+    private static final boolean VIRTUAL = virtualFactory("") != null;
+
+    private Threads() {
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... params) {
+        try {
+            return type.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    // Thread.ofVirtual().name(prefixo, 0).factory(); null se indisponível (ex.: preview no JDK 19/20)
+    private static ThreadFactory virtualFactory(String prefix) {
+        if (!ENABLED || OF_VIRTUAL == null) return null;
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Threads de plataforma daemon, também para pools de trabalho de CPU (ex.: ChunkCompressor)
+    public static ThreadFactory platformFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static ThreadFactory factory(String prefix) {
+        ThreadFactory virtual = virtualFactory(prefix);
+        return virtual != null ? virtual : platformFactory(prefix);
+    }
+
+    // Uma thread nova por tarefa (virtual) ou um pool em cache de threads de plataforma
+    public static ExecutorService perTask(String prefix) {
+        ThreadFactory virtual = virtualFactory(prefix);
+        if (virtual != null && PER_TASK != null) {
+            try {
+                return (ExecutorService) PER_TASK.invoke(null, virtual);
+            } catch (ReflectiveOperationException e) {
+                // segue com o pool de plataforma
+            }
+        }
+        return Executors.newCachedThreadPool(platformFactory(prefix));
+    }
+
+    // Agendador cujas threads são virtuais quando possível: o tique da roda de temporização e os
+    // heartbeats de centenas de nós numa JVM não ocupam centenas de threads do sistema
+    public static ScheduledExecutorService scheduler(String prefix, int threads) {
+        return Executors.newScheduledThreadPool(threads, factory(prefix));
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Roda de temporização hierárquica para as retransmissões.
+// Quatro níveis de 64 posições; com tick de 10 ms o nível 0 cobre 640 ms, o nível 1 ~41 s,
+// o nível 2 ~44 min e o nível 3 ~47 h. Agendar e cancelar são O(1) e cada tick só toca
+// as entradas que vencem nele (mais as que descem de nível a cada volta completa).
+public class TimerWheel {
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+
+    // Entrada agendável. Pode ser reutilizada: agendar de novo remove o agendamento anterior.
+    public static class Timeout {
+        private final Runnable task;
+        private TimerWheel wheel;
+        private long deadline;      // em ticks
+        private Timeout prev;
+        private Timeout next;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return prev != null;
+        }
+
+        public void cancel() {
+            TimerWheel w = wheel;
+            if (w != null) {
+                w.cancel(this);
+            }
+        }
+    }
+
+    private final long tickMs;
+    private final long startMs;
+    private final Timeout[] buckets = new Timeout[LEVELS * SLOTS];   // sentinelas de listas circulares
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long tickMs) {
+        this.tickMs = tickMs;
+        this.startMs = System.nanoTime() / 1_000_000;
+        for (int i = 0; i < buckets.length; i++) {
+            Timeout sentinel = new Timeout(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            buckets[i] = sentinel;
+        }
+    }
+
+    public synchronized void schedule(Timeout t, long delayMs) {
+        if (t.isScheduled()) {
+            unlink(t);
+        }
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        t.wheel = this;
+        t.deadline = currentTick + ticks;
+        insert(t);
+        size++;
+    }
+
+    public synchronized void cancel(Timeout t) {
+        if (t.isScheduled()) {
+            unlink(t);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Avança até o instante atual e executa as tarefas vencidas fora do lock
+    public void advance() {
+        List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = (System.nanoTime() / 1_000_000 - startMs) / tickMs;
+            while (currentTick < target) {
+                tick(expired);
+            }
+        }
+        for (Timeout t : expired) {
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void tick(List<Timeout> expired) {
+        currentTick++;
+        // A cada volta de um nível, a posição correspondente do nível acima desce
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) break;
+            cascade(level);
+        }
+        Timeout head = buckets[(int) (currentTick & MASK)];
+        while (head.next != head) {
+            Timeout t = head.next;
+            unlink(t);
+            expired.add(t);
+        }
+    }
+
+    private void cascade(int level) {
+        int index = (int) ((currentTick >>> (BITS * level)) & MASK);
+        Timeout head = buckets[level * SLOTS + index];
+        while (head.next != head) {
+            Timeout t = head.next;
+            unlink(t);
+            insert(t);
+            size++;
+        }
+    }
+
+    private void insert(Timeout t) {
+        long delta = t.deadline - currentTick;
+        if (delta < 0) {
+            // Atrasada (só ocorre ao descer de nível): vence na posição que está sendo processada
+            t.deadline = currentTick;
+            delta = 0;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        int index = (int) ((t.deadline >>> (BITS * level)) & MASK);
+        Timeout head = buckets[level * SLOTS + index];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    private void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        size--;
+    }
+}
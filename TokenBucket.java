@@ -0,0 +1,70 @@
+// Balde de tokens em bytes por segundo. Taxa <= 0 significa sem limite.
+// delayFor() só consulta; consume() retira os tokens e pode deixar o saldo negativo
+// (usado pelas retransmissões, que não podem esperar, mas atrasam os próximos envios);
+// refund() devolve o que foi retirado para chunks que acabaram não saindo.
+public class TokenBucket {
+    private final long rate;
+    private final double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        // Rajada de 50 ms de taxa, com um mínimo que cabe alguns quadros jumbo
+        this.burst = Math.max(rate / 20.0, 64 * 1024);
+        this.tokens = burst;
+    }
+
+    public boolean isUnlimited() {
+        return rate <= 0;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    // Nanossegundos até haver tokens para 'bytes' (0 = pode enviar agora)
+    public synchronized long delayFor(int bytes) {
+        if (isUnlimited()) return 0;
+        refill();
+        if (tokens >= bytes) return 0;
+        return (long) ((bytes - tokens) * 1e9 / rate);
+    }
+
+    public synchronized void consume(int bytes) {
+        if (isUnlimited()) return;
+        refill();
+        tokens -= bytes;
+    }
+
+    // Devolve tokens retirados para envios que não aconteceram (até o limite da rajada)
+    public synchronized void refund(int bytes) {
+        if (isUnlimited()) return;
+        refill();
+        tokens = Math.min(burst, tokens + bytes);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / 1e9);
+        lastRefill = now;
+    }
+
+    // Aceita sufixos k, m e g (ex.: "512k", "20m"); vazio ou "0" desliga o limite
+    public static long parseRate(String value) {
+        if (value == null || value.isEmpty()) return 0;
+        String v = value.trim().toLowerCase();
+        long mult = 1;
+        char last = v.charAt(v.length() - 1);
+        if (last == 'k' || last == 'm' || last == 'g') {
+            mult = last == 'k' ? 1024L : last == 'm' ? 1024L * 1024 : 1024L * 1024 * 1024;
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return (long) (Double.parseDouble(v) * mult);
+        } catch (NumberFormatException e) {
+            Log.warn("[WARN] Taxa inválida ignorada: " + value);
+            return 0;
+        }
+    }
+}
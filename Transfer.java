@@ -0,0 +1,107 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+// Estado de uma transferência de arquivo (envio ou recepção), para listagem e controle pelo console
+public class Transfer {
+    public enum Direction { ENVIO, RECEPCAO }
+    public enum State { NEGOCIANDO, ATIVA, PAUSADA, FINALIZANDO, CONCLUIDA, FALHA, CANCELADA }
+
+    private final String id;
+    private final Direction direction;
+    private final String peer;
+    // Endereço do destino de um envio unicast; null em envios em grupo e recepções
+    private final InetSocketAddress address;
+    private final String fileName;
+    private final long size;
+    private final long startedAt = System.currentTimeMillis();
+    private final LongAdder bytes = new LongAdder();
+
+    // Envios binários: o progresso vem dos chunks confirmados pela janela
+    private volatile SendWindow window;
+    private volatile State state = State.NEGOCIANDO;
+    private volatile long finishedAt;
+
+    // Vazão instantânea, suavizada entre amostras de TransferManager
+    private long lastBytes = -1;
+    private long lastSampleAt;
+    private volatile double rate;
+
+    public Transfer(String id, Direction direction, String peer, String fileName, long size) {
+        this(id, direction, peer, null, fileName, size);
+    }
+
+    public Transfer(String id, Direction direction, String peer, InetSocketAddress address, String fileName, long size) {
+        this.id = id;
+        this.direction = direction;
+        this.peer = peer;
+        this.address = address;
+        this.fileName = fileName;
+        this.size = size;
+    }
+
+    public String getId() { return id; }
+    public Direction getDirection() { return direction; }
+    public String getPeer() { return peer; }
+    public String getFileName() { return fileName; }
+    public long getSize() { return size; }
+    public State getState() { return state; }
+    public long getFinishedAt() { return finishedAt; }
+    public SendWindow getWindow() { return window; }
+
+    // Se a mensagem de addr:port é do destino deste envio
+    public boolean isTo(InetAddress addr, int port) {
+        return address != null && address.getPort() == port && address.getAddress().equals(addr);
+    }
+
+    public boolean isFinished() {
+        return state == State.CONCLUIDA || state == State.FALHA || state == State.CANCELADA;
+    }
+
+    public long getBytes() {
+        SendWindow w = window;
+        return w != null ? w.getAckedBytes() : bytes.sum();
+    }
+
+    public void addBytes(long n) {
+        bytes.add(n);
+    }
+
+    synchronized void setWindow(SendWindow window) {
+        this.window = window;
+        // O progresso passa a vir da janela; recomeça a amostragem para não contar os chunks retomados
+        lastBytes = -1;
+    }
+
+    // Transições terminais não são desfeitas (ex.: um ACK atrasado após o cancelamento)
+    public synchronized boolean setState(State next) {
+        if (isFinished()) return false;
+        state = next;
+        if (isFinished()) {
+            finishedAt = System.currentTimeMillis();
+            rate = 0;
+        }
+        return true;
+    }
+
+    synchronized void sample(long now) {
+        long current = getBytes();
+        if (lastBytes >= 0 && now > lastSampleAt) {
+            double instant = (current - lastBytes) * 1000.0 / (now - lastSampleAt);
+            rate = rate == 0 ? instant : 0.5 * rate + 0.5 * instant;
+        }
+        lastBytes = current;
+        lastSampleAt = now;
+    }
+
+    // Em andamento: vazão recente; encerrada: média da transferência inteira
+    public double getRate() {
+        if (!isFinished()) return rate;
+        long elapsed = Math.max(1, finishedAt - startedAt);
+        return getBytes() * 1000.0 / elapsed;
+    }
+
+    public double getProgress() {
+        return size == 0 ? 100.0 : Math.min(100.0, getBytes() * 100.0 / size);
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+// Checkpoint de uma recepção em andamento, gravado ao lado do arquivo ("received_<nome>.part").
+// Guarda o mapa de chunks recebidos e a identificação do arquivo de origem; quando o mesmo arquivo
+// é enviado de novo (após reinício de um dos nós ou queda do enlace), o receptor responde ao OFFER
+// com RESUME e o remetente só envia os chunks que faltam.
+public class TransferCheckpoint {
+    private static final int MAGIC = 0x4C525031;   // "LRP1"
+
+    public final String fileName;
+    public final long size;
+    public final int chunkSize;
+    public final String version;    // identifica o conteúdo de origem (enviado pelo remetente no OFFER)
+    public final BitSet received;
+
+    public TransferCheckpoint(String fileName, long size, int chunkSize, String version, BitSet received) {
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.version = version;
+        this.received = received;
+    }
+
+    public static File sidecarOf(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    public boolean matches(String fileName, long size, int chunkSize, String version) {
+        return this.fileName.equals(fileName) && this.size == size
+                && this.chunkSize == chunkSize && this.version.equals(version);
+    }
+
+    // Grava em um arquivo temporário e renomeia, para nunca deixar um checkpoint pela metade
+    public void save(File sidecar) throws IOException {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        byte[] bitmap = received.toByteArray();
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(fileName);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.writeUTF(version);
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), sidecar.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Retorna null se não há checkpoint ou se ele está ilegível
+    public static TransferCheckpoint load(File sidecar) {
+        if (!sidecar.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC) return null;
+            String fileName = in.readUTF();
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            String version = in.readUTF();
+            byte[] bitmap = new byte[in.readInt()];
+            in.readFully(bitmap);
+            return new TransferCheckpoint(fileName, size, chunkSize, version, BitSet.valueOf(bitmap));
+        } catch (IOException | RuntimeException e) {
+            Log.warn("[WARN] Checkpoint inválido ignorado: " + sidecar.getName());
+            return null;
+        }
+    }
+
+    public static void delete(File sidecar) {
+        sidecar.delete();
+    }
+}
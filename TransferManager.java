@@ -0,0 +1,288 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Gerencia as transferências de arquivo em andamento, de envio e de recepção.
+// Cada envio tem uma thread de controle (FILE, handshake, espera e END). Os chunks novos de todas
+// as janelas, porém, saem de uma única thread de escalonamento, em round-robin com um quantum fixo
+// por transferência. Antes de cada chunk o escalonador retira tokens do balde do destino e do balde
+// global (-Dlabredes.peerRate, -Dlabredes.rate), limitando a vazão de dados para que um arquivo
+// grande não sature a interface nem atrase heartbeats e ACKs. Retransmissões não esperam tokens,
+// mas os consomem.
+public class TransferManager {
+    private static final int QUANTUM = 16;                   // chunks por transferência a cada volta
+    private static final long IDLE_PARK_NANOS = 10_000_000;  // sem sinal, reavalia a cada 10 ms
+    private static final long SAMPLE_INTERVAL = 1000;
+    // Linhas de progresso das transferências ativas a cada N ms (-Dlabredes.progress=N, 0 = desliga)
+    private static final long PROGRESS_INTERVAL = Long.getLong("labredes.progress", 2000);
+    private static final long RETAIN_FINISHED = 5 * 60 * 1000;
+
+    private final UdpNode node;
+    private final long peerRate = TokenBucket.parseRate(System.getProperty("labredes.peerRate"));
+    private final TokenBucket global = new TokenBucket(TokenBucket.parseRate(System.getProperty("labredes.rate")));
+    private final Map<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+
+    // Envios, pelo ID que este nó deu a eles ("msgN")
+    private final Map<String, Transfer> outbound = new ConcurrentHashMap<>();
+    // Recepções, pelo ID do remetente mais o endereço dele ("msgN@ip:porta"; ver MessageHandler.inboundId)
+    // ou pelo hash num download por conteúdo: cada nó numera os seus envios a partir de msg1
+    private final Map<String, Transfer> inbound = new ConcurrentHashMap<>();
+    // Envios binários com janela ativa, na ordem do round-robin
+    private final List<Transfer> active = new CopyOnWriteArrayList<>();
+    // Uma thread de controle por envio; virtual quando disponível (ver Threads)
+    private final ExecutorService control = Threads.perTask("Transfer-");
+    private volatile Thread schedulerThread;
+    private int cursor;
+
+    public TransferManager(UdpNode node) {
+        this.node = node;
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        Thread t = new Thread(this::scheduleLoop, "TransferScheduler");
+        t.setDaemon(true);
+        schedulerThread = t;
+        t.start();
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        if (PROGRESS_INTERVAL > 0) {
+            scheduler.scheduleAtFixedRate(this::reportProgress, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Executa uma tarefa de controle (a thread de um envio, assinaturas do delta) fora dos workers
+    public void submit(Runnable task) {
+        control.execute(task);
+    }
+
+    public Transfer registerOutbound(String id, DeviceInfo peer, String fileName, long size) {
+        Transfer t = new Transfer(id, Transfer.Direction.ENVIO, peer.getName(), peer.getAddress(), fileName, size);
+        outbound.put(id, t);
+        return t;
+    }
+
+    // Envio em grupo: o destino é um rótulo ("todos (3)") em vez de um dispositivo
+    public Transfer registerOutbound(String id, String peerLabel, String fileName, long size) {
+        Transfer t = new Transfer(id, Transfer.Direction.ENVIO, peerLabel, fileName, size);
+        outbound.put(id, t);
+        return t;
+    }
+
+    public Transfer registerInbound(String id, String peer, String fileName, long size) {
+        Transfer t = new Transfer(id, Transfer.Direction.RECEPCAO, peer, fileName, size);
+        t.setState(Transfer.State.ATIVA);
+        inbound.put(id, t);
+        return t;
+    }
+
+    public Transfer getOutbound(String id) {
+        return outbound.get(id);
+    }
+
+    public Transfer getInbound(String id) {
+        return inbound.get(id);
+    }
+
+    public Collection<Transfer> list() {
+        List<Transfer> all = new ArrayList<>(outbound.values());
+        all.addAll(inbound.values());
+        return all;
+    }
+
+    public void activate(Transfer t, SendWindow window) {
+        t.setWindow(window);
+        t.setState(Transfer.State.ATIVA);
+        active.add(t);
+        signal();
+    }
+
+    public void deactivate(Transfer t) {
+        active.remove(t);
+    }
+
+    // Encerra um envio deste nó
+    public void finish(String id, Transfer.State state) {
+        Transfer t = outbound.get(id);
+        if (t != null) {
+            t.setState(state);
+            active.remove(t);
+        }
+    }
+
+    public boolean pause(String id) {
+        Transfer t = outbound.get(id);
+        return t != null && t.getState() == Transfer.State.ATIVA && t.setState(Transfer.State.PAUSADA);
+    }
+
+    public boolean resume(String id) {
+        Transfer t = outbound.get(id);
+        if (t == null || t.getState() != Transfer.State.PAUSADA || !t.setState(Transfer.State.ATIVA)) {
+            return false;
+        }
+        signal();
+        return true;
+    }
+
+    // Envio: aborta a janela (a thread de controle avisa o receptor). Recepção: descarta a recepção
+    // (o checkpoint fica para uma retomada) e avisa o remetente.
+    public boolean cancel(String id) {
+        Transfer in = inbound.get(id);
+        if (in != null && !in.isFinished()) {
+            return node.getSwarm().cancel(id) || MessageHandler.cancelReceive(in, node);
+        }
+        Transfer t = outbound.get(id);
+        if (t == null || t.isFinished()) return false;
+        t.setState(Transfer.State.CANCELADA);
+        active.remove(t);
+        SendWindow w = t.getWindow();
+        if (w != null) {
+            w.abort(UdpNode.CANCEL_REASON);
+        }
+        return true;
+    }
+
+    // Acorda o escalonador (espaço livre em alguma janela ou transferência retomada)
+    public void signal() {
+        Thread t = schedulerThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Retransmissões: consomem tokens sem esperar
+    public void charge(DeviceInfo peer, int bytes) {
+        global.consume(bytes);
+        bucketOf(peer).consume(bytes);
+    }
+
+    // Protocolo de texto: a própria thread de controle espera a vez e os tokens.
+    // Retorna false se a transferência foi cancelada.
+    public boolean awaitTurn(Transfer t, DeviceInfo peer, int bytes) {
+        return awaitTurn(t, bucketOf(peer), bytes);
+    }
+
+    // Variante com um balde próprio (envio em grupo) no lugar do balde do destino
+    public boolean awaitTurn(Transfer t, TokenBucket bucket, int bytes) {
+        while (true) {
+            if (t.isFinished()) return false;
+            if (t.getState() == Transfer.State.PAUSADA) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            long delay = Math.max(global.delayFor(bytes), bucket.delayFor(bytes));
+            if (delay == 0) {
+                global.consume(bytes);
+                bucket.consume(bytes);
+                return true;
+            }
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    // Chunks servidos a um download por conteúdo: esperam os tokens do destino e globais,
+    // sem transferência associada (ver Swarm)
+    public void pace(String peer, int bytes) {
+        TokenBucket bucket = peerBuckets.computeIfAbsent(peer, k -> new TokenBucket(peerRate));
+        while (true) {
+            long delay = Math.max(global.delayFor(bytes), bucket.delayFor(bytes));
+            if (delay == 0) {
+                global.consume(bytes);
+                bucket.consume(bytes);
+                return;
+            }
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    private TokenBucket bucketOf(DeviceInfo peer) {
+        return peerBuckets.computeIfAbsent(peer.getName(), k -> new TokenBucket(peerRate));
+    }
+
+    private void scheduleLoop() {
+        while (true) {
+            boolean sent = false;
+            long wait = IDLE_PARK_NANOS;
+            List<Transfer> snapshot = new ArrayList<>(active);
+            int n = snapshot.size();
+            for (int i = 0; i < n; i++) {
+                Transfer t = snapshot.get((cursor + i) % n);
+                SendWindow w = t.getWindow();
+                if (w == null || t.getState() != Transfer.State.ATIVA) continue;
+                int want = Math.min(QUANTUM, w.sendable());
+                if (want == 0) continue;
+
+                // Quantos chunks do quantum os baldes do destino e global permitem agora
+                TokenBucket bucket = bucketOf(w.getPeer());
+                int frame = w.getFrameSize();
+                int allowed = 0;
+                while (allowed < want) {
+                    long delay = Math.max(global.delayFor(frame), bucket.delayFor(frame));
+                    if (delay > 0) {
+                        wait = Math.min(wait, delay);
+                        break;
+                    }
+                    global.consume(frame);
+                    bucket.consume(frame);
+                    allowed++;
+                }
+                if (allowed == 0) continue;
+                // sendNew pode enviar menos (chunk comprimido ainda não pronto, janela cheia, envio
+                // abortado): os tokens dos chunks que não saíram voltam aos baldes
+                int done = w.sendNew(allowed);
+                if (done < allowed) {
+                    int unused = (allowed - done) * frame;
+                    global.refund(unused);
+                    bucket.refund(unused);
+                }
+                if (done > 0) {
+                    sent = true;
+                }
+            }
+            cursor = n == 0 ? 0 : (cursor + 1) % n;
+            if (!sent) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    // Uma linha por transferência com dados em andamento: progresso, vazão e tempo restante.
+    // Substitui o log por chunk, que fica em DEBUG.
+    private void reportProgress() {
+        if (!Log.enabled(Log.Level.INFO)) return;
+        for (Transfer t : list()) {
+            long bytes = t.getBytes();
+            if (t.getState() != Transfer.State.ATIVA || bytes == 0) continue;
+            double rate = t.getRate();
+            String eta = rate > 0 ? formatDuration((long) ((t.getSize() - bytes) / rate)) : "?";
+            Log.info(String.format(">>> [PROGRESSO] %s [%s] %s %s %.1f%% %.2f MB/s ETA %s",
+                    t.getId(), t.getDirection() == Transfer.Direction.ENVIO ? "envio" : "recepção",
+                    t.getPeer(), t.getFileName(), t.getProgress(), rate / (1024 * 1024), eta));
+        }
+    }
+
+    private static String formatDuration(long seconds) {
+        seconds = Math.max(0, seconds);
+        return seconds >= 3600
+                ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+                : String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    private void sample() {
+        long now = System.currentTimeMillis();
+        sample(outbound, now);
+        sample(inbound, now);
+    }
+
+    private static void sample(Map<String, Transfer> transfers, long now) {
+        Iterator<Transfer> it = transfers.values().iterator();
+        while (it.hasNext()) {
+            Transfer t = it.next();
+            if (t.isFinished()) {
+                if (now - t.getFinishedAt() > RETAIN_FINISHED) {
+                    it.remove();
+                }
+            } else {
+                t.sample(now);
+            }
+        }
+    }
+}
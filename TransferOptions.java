@@ -0,0 +1,184 @@
+import java.util.BitSet;
+
+// Opções negociadas no handshake de FILE.
+// O remetente envia "OFFER <id> chave=valor ..." logo após o FILE; um receptor que entende
+// a extensão responde "ACCEPT <id> chave=valor ..." com o que aceitou. Nós antigos ignoram
+// o OFFER (mensagem desconhecida) e a transferência segue no protocolo de texto.
+// Com "resume=<versão>" no OFFER, um receptor que tem checkpoint do mesmo arquivo responde
+// "RESUME <id> ... have=<faixas>" com os chunks que já possui.
+// Com "ack=1" os dois lados aceitam ACKs cumulativos de carona nos quadros DATA (FLAG_ACK).
+// "chunk=<bytes>" é o tamanho de chunk proposto pelo remetente (pelo MTU do caminho); o receptor
+// responde com o menor entre ele e o que seu buffer de recepção comporta. Sem a chave, 1 KB.
+// "fec=<K>" pede uma paridade XOR a cada K chunks (Fec); o receptor a aceita se K é válido.
+// "zip=deflate" pede compressão por chunk (ChunkCompressor); o receptor a aceita se conhece o codec.
+// "delta=1" diz que o remetente sabe enviar só a diferença (DeltaSync); um receptor que tem uma cópia
+// anterior responde "delta=<bloco> basis=<tamanho da cópia>" e envia as assinaturas dos blocos.
+public class TransferOptions {
+    // Limite do texto de "have" para caber em um datagrama; faixas além dele são reenviadas
+    private static final int MAX_HAVE_CHARS = 4000;
+    // Maior chunk que cabe num datagrama de recepção junto com cabeçalho, ACK de carona e CRC
+    public static final int MAX_CHUNK = ReceivePipeline.MAX_DATAGRAM - FrameCodec.HEADER_SIZE
+            - FrameCodec.ACK_SIZE - FrameCodec.CRC_SIZE;
+
+    public boolean binary;
+    public boolean crc;     // CRC32C por chunk
+    public boolean ack;     // ACK de carona nos quadros DATA
+    public int chunk;       // tamanho de chunk do protocolo binário (0 = padrão)
+    public String zip;      // codec de compressão por chunk (null = sem compressão)
+    public int fec;         // chunks por grupo de paridade XOR (0 = sem FEC)
+    public int delta;       // OFFER: 1 = sabe enviar delta; ACCEPT: bloco das assinaturas (0 = sem delta)
+    public long basis;      // tamanho da cópia anterior no receptor (só no ACCEPT com delta)
+    public String resume;   // versão do arquivo de origem (só no OFFER)
+    public BitSet have;     // chunks que o receptor já tem (só no RESUME)
+
+    // Opções que este nó oferece como remetente
+    public static TransferOptions local() {
+        TransferOptions o = new TransferOptions();
+        o.binary = true;
+        o.crc = true;
+        o.ack = true;
+        o.chunk = MAX_CHUNK;
+        o.zip = ChunkCompressor.ENABLED ? ChunkCompressor.CODEC : null;
+        o.fec = Fec.GROUP;
+        o.delta = DeltaSync.ENABLED ? 1 : 0;
+        return o;
+    }
+
+    // Interseção entre o que o remetente ofereceu e o que este nó suporta
+    public TransferOptions accept(TransferOptions supported) {
+        TransferOptions o = new TransferOptions();
+        o.binary = binary && supported.binary;
+        o.crc = o.binary && crc && supported.crc;
+        o.ack = o.binary && ack && supported.ack;
+        o.chunk = o.binary && chunk > 0 && supported.chunk > 0 ? Math.min(chunk, supported.chunk) : 0;
+        // Descomprimir não depende de configuração: basta conhecer o codec
+        o.zip = o.binary && ChunkCompressor.CODEC.equals(zip) ? zip : null;
+        o.fec = o.binary && fec > 1 && fec <= Fec.MAX_GROUP ? fec : 0;
+        return o;
+    }
+
+    public static TransferOptions parse(String[] tokens, int start) {
+        TransferOptions o = new TransferOptions();
+        for (int i = start; i < tokens.length; i++) {
+            int eq = tokens[i].indexOf('=');
+            if (eq <= 0) continue;
+            String key = tokens[i].substring(0, eq);
+            String value = tokens[i].substring(eq + 1);
+            switch (key) {
+                case "bin":
+                    o.binary = String.valueOf(FrameCodec.VERSION).equals(value);
+                    break;
+                case "crc":
+                    o.crc = "1".equals(value);
+                    break;
+                case "ack":
+                    o.ack = "1".equals(value);
+                    break;
+                case "chunk":
+                    try {
+                        o.chunk = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        o.chunk = 0;
+                    }
+                    break;
+                case "zip":
+                    o.zip = value;
+                    break;
+                case "fec":
+                    try {
+                        o.fec = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        o.fec = 0;
+                    }
+                    break;
+                case "delta":
+                    try {
+                        o.delta = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        o.delta = 0;
+                    }
+                    break;
+                case "basis":
+                    try {
+                        o.basis = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        o.basis = 0;
+                    }
+                    break;
+                case "resume":
+                    o.resume = value;
+                    break;
+                case "have":
+                    o.have = parseRanges(value);
+                    break;
+                default:
+                    // Chaves desconhecidas são ignoradas para manter compatibilidade
+                    break;
+            }
+        }
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("bin=").append(binary ? FrameCodec.VERSION : 0).append(" crc=").append(crc ? 1 : 0);
+        if (ack) {
+            sb.append(" ack=1");
+        }
+        if (chunk > 0) {
+            sb.append(" chunk=").append(chunk);
+        }
+        if (zip != null) {
+            sb.append(" zip=").append(zip);
+        }
+        if (fec > 0) {
+            sb.append(" fec=").append(fec);
+        }
+        if (delta > 0) {
+            sb.append(" delta=").append(delta);
+        }
+        if (basis > 0) {
+            sb.append(" basis=").append(basis);
+        }
+        if (resume != null) {
+            sb.append(" resume=").append(resume);
+        }
+        if (have != null) {
+            sb.append(" have=");
+            formatRanges(have, sb);
+        }
+        return sb.toString();
+    }
+
+    // "1-100,150,200-300"
+    static void formatRanges(BitSet bits, StringBuilder sb) {
+        int limit = sb.length() + MAX_HAVE_CHARS;
+        boolean first = true;
+        for (int start = bits.nextSetBit(0); start >= 0 && sb.length() < limit; ) {
+            int end = bits.nextClearBit(start) - 1;
+            if (!first) sb.append(',');
+            sb.append(start);
+            if (end > start) sb.append('-').append(end);
+            first = false;
+            start = bits.nextSetBit(end + 1);
+        }
+    }
+
+    static BitSet parseRanges(String value) {
+        BitSet bits = new BitSet();
+        for (String range : value.split(",")) {
+            try {
+                int dash = range.indexOf('-');
+                int start = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                int end = dash < 0 ? start : Integer.parseInt(range.substring(dash + 1));
+                if (start >= 0 && end >= start) {
+                    bits.set(start, end + 1);
+                }
+            } catch (NumberFormatException e) {
+                // faixa malformada: o chunk simplesmente é reenviado
+            }
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// Envio e recepção de datagramas de um nó. UdpTransport usa o socket UDP de verdade;
+// MemoryNetwork.Endpoint entrega os datagramas em memória, com os atrasos e perdas configurados na
+// rede emulada, para rodar muitos nós na mesma JVM. O SendScheduler é o único que envia e a thread
+// de leitura do ReceivePipeline a única que recebe.
+public interface Transport extends Closeable {
+    // Endereço deste nó e destino dos broadcasts (HEARTBEAT, envio em grupo)
+    InetSocketAddress getLocalAddress();
+
+    InetSocketAddress getBroadcastAddress();
+
+    // Envia o datagrama entre position e limit de buf; false se não coube agora (buffer de envio
+    // cheio), caso em que buf fica intacto para uma nova tentativa
+    boolean send(ByteBuffer buf, InetSocketAddress dest) throws IOException;
+
+    // Copia o próximo datagrama para dst e retorna o remetente, ou null se não há nenhum
+    InetSocketAddress receive(ByteBuffer dst) throws IOException;
+
+    // Bloqueia até haver datagrama para receive(), até wakeup() ou até o transporte ser fechado
+    void await() throws IOException;
+
+    void wakeup();
+
+    // Campo TOS (DSCP) dos próximos envios; UnsupportedOperationException se não houver suporte
+    void setTrafficClass(int tos) throws IOException;
+
+    // MTU do enlace pelo qual o destino é alcançado
+    int mtu(InetSocketAddress dest);
+}
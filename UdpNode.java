@@ -1,138 +1,272 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UdpNode {
-    private static final int PORT = 9876;
-    private static final String DEST_IP = "192.168.118.255";
-
     private static final long HEARTBEAT_INTERVAL = 5000;
     private static final long DEVICE_TIMEOUT     = 10000;
-    private static final long CLEANUP_INTERVAL   = 2000;
-    private static final long RESEND_INTERVAL    = 2000;
+    // Pertinência por gossip (SWIM) em vez de heartbeats em broadcast (-Dlabredes.membership=gossip)
+    private static final boolean GOSSIP          = "gossip".equals(System.getProperty("labredes.membership"));
+    // Resolução dos temporizadores (-Dlabredes.timerTick=ms): na NetworkSimulation, centenas de nós
+    // com tique de 10 ms ocupariam a CPU só girando as rodas
+    private static final long TIMER_TICK         = Long.getLong("labredes.timerTick", 10);
+    private static final long HANDSHAKE_TIMEOUT  = 1500;
+    private static final int  HANDSHAKE_ATTEMPTS = 3;
+    // Espera por assinaturas do delta sem nenhum quadro novo antes de pedir as que faltam (SIGREQ),
+    // e quantas esperas seguidas sem progresso fazem o envio desistir do delta
+    private static final long SIG_TIMEOUT        = 1000;
+    private static final int  SIG_ATTEMPTS       = 4;
+    // Retransmissões e chunks do protocolo de texto: um evento por pacote, só em DEBUG e limitado
+    private static final Log.Limiter RETX_LOG    = new Log.Limiter(Log.Level.DEBUG, 20);
+    private static final Log.Limiter CHUNK_LOG   = new Log.Limiter(Log.Level.DEBUG, 20);
+    // Chunk do protocolo de texto e do binário quando o destino não negocia outro tamanho
+    static final int          CHUNK_SIZE         = 1024;
+    // Chunks em voo por transferência binária (-Dlabredes.window=N)
+    private static final int  WINDOW_SIZE        = Integer.getInteger("labredes.window", 256);
+    // Workers de tratamento e buffers de recepção (-Dlabredes.workers=N, -Dlabredes.rxBuffers=N)
+    private static final int  RX_WORKERS         = Integer.getInteger("labredes.workers",
+                                                       Runtime.getRuntime().availableProcessors());
+    private static final int  RX_BUFFERS         = Integer.getInteger("labredes.rxBuffers", 2048);
+    private static final int  RX_QUEUE_CAPACITY  = 1024;
+    // Motivo do NACK trocado quando um dos lados cancela uma transferência
+    public static final String CANCEL_REASON     = "CANCELADO";
 
     private final String deviceName;
-    private DatagramSocket socket;
+    // Socket UDP (padrão) ou ponto de uma rede emulada em memória (MemoryNetwork)
+    private Transport transport;
+    // Onde ficam os received_* deste nó
+    private final File directory;
+    private ReceivePipeline pipeline;
+    private SendScheduler sender;
     private ScheduledExecutorService scheduler;
-
-    private final Map<String, DeviceInfo> activeDevices = new HashMap<>();
-    private final Map<String, PendingMessage> pendingMessages = new ConcurrentHashMap<>();
-    private static long messageCounter = 0;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private InetSocketAddress broadcastAddress;
+
+    // Mensagens aguardando ACK, pelo ID numérico da transferência e seq (ver PendingTable)
+    private final PendingTable pendingMessages = new PendingTable();
+    // Retransmissões agendadas pelo RTO de cada dispositivo e prazos de expiração dos dispositivos
+    private final TimerWheel timerWheel = new TimerWheel(TIMER_TICK);
+    private Membership membership;
+    private final DeviceRegistry devices;
+    // IDs dos envios deste nó, a partir de msg1 como em qualquer nó: o receptor distingue as
+    // transferências pelo remetente e ID (ver MessageHandler.Key)
+    private final AtomicLong messageCounter = new AtomicLong();
+    // Contadores deste nó (stats, HTTP e JMX)
+    private final Metrics metrics = new Metrics();
+
+    // Handshakes de FILE aguardando ACCEPT, por ID de transferência
+    private final Map<String, CompletableFuture<TransferOptions>> pendingHandshakes = new ConcurrentHashMap<>();
+    // Janelas de envio ativas, pelo ID numérico da transferência
+    private final Map<Long, SendWindow> sendWindows = new ConcurrentHashMap<>();
+    // Envios em grupo (sendfile-all) em andamento, pelo ID numérico da transferência
+    private final Map<Long, GroupSender> groupSenders = new ConcurrentHashMap<>();
+    // Assinaturas (SIG) recebidas para envios que ofereceram delta, pelo ID numérico da transferência
+    private final Map<Long, DeltaSync.Signatures> signatures = new ConcurrentHashMap<>();
+    // Arquivos abertos de transferências no protocolo de texto, até o END ser confirmado
+    private final Map<String, ChunkSource> legacySources = new ConcurrentHashMap<>();
+    // Buffers para montar quadros lidos do arquivo (um por thread enviando), do maior chunk negociável
+    private final BufferPool sendBuffers = new BufferPool(64, ReceivePipeline.MAX_DATAGRAM);
+    // MTU do caminho até cada destino, para escolher o tamanho de chunk
+    private final PathMtu pathMtu = new PathMtu(this);
+    // Transferências em andamento, escalonamento dos envios e limites de taxa
+    private final TransferManager transfers = new TransferManager(this);
+    // Conteúdo servido e baixado pelo hash, de várias fontes ao mesmo tempo
+    private final Swarm swarm = new Swarm(this);
 
     private final Set<String> arquivosFinalizados = ConcurrentHashMap.newKeySet();
+    // Recepções em andamento (ver MessageHandler)
+    private final MessageHandler.ReceiveState receiveState = new MessageHandler.ReceiveState();
 
     public Set<String> getArquivosFinalizados() {
         return arquivosFinalizados;
     }
 
     public UdpNode(String deviceName) {
-        this.deviceName = deviceName;
+        this(deviceName, null, new File("."));
     }
 
-    public void start() throws IOException {
-        socket = new DatagramSocket(PORT);
-        socket.setBroadcast(true);
-        scheduler = Executors.newScheduledThreadPool(4);
-
-        Thread listenerThread = new Thread(this::listenLoop, "ListenThread");
-        listenerThread.start();
-
-        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
-        scheduler.scheduleAtFixedRate(this::cleanupInactiveDevices, 0, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
-        scheduler.scheduleAtFixedRate(this::resendPendingMessages, 0, RESEND_INTERVAL, TimeUnit.MILLISECONDS);
+    // Nó sobre um transporte já aberto (null abre o socket UDP em open()) e com diretório próprio,
+    // para rodar vários nós na mesma JVM
+    public UdpNode(String deviceName, Transport transport, File directory) {
+        this.deviceName = deviceName;
+        this.transport = transport;
+        this.directory = directory;
+        if (GOSSIP) {
+            // No gossip só suspeitos expiram; quem decide a suspeita é a sondagem do Membership
+            devices = new DeviceRegistry(timerWheel, d -> membership.deadline(d), d -> membership.onExpired(d));
+            membership = new Membership(this, devices, timerWheel, deviceName);
+        } else {
+            devices = new DeviceRegistry(timerWheel, d -> d.getLastHeartbeat() + DEVICE_TIMEOUT,
+                    d -> Log.info(">>> [INFO] Dispositivo inativo removido: " + d.getName()));
+            membership = null;
+        }
+    }
 
-        sendHeartbeat();
+    public void start() throws IOException, InterruptedException {
+        open();
         consoleLoop();
+        // Sem console (entrada encerrada, ex.: container sem -i): as threads do nó podem ser virtuais
+        // (daemon), então a thread principal segura a JVM até o nó ser fechado
+        Log.info(">>> [INFO] Console encerrado; o nó continua ativo");
+        closed.await();
     }
 
-    private void listenLoop() {
-        byte[] buf = new byte[8192];
-        while (true) {
-            try {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
+    // Abre o transporte e inicia as threads do nó, sem o console (benchmarks e simulações usam o nó assim)
+    public void open() throws IOException {
+        if (transport == null) {
+            transport = UdpTransport.open();
+        }
+        broadcastAddress = transport.getBroadcastAddress();
+        scheduler = Threads.scheduler("Agendador-", 4);
 
-                String received = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-                InetAddress senderAddress = packet.getAddress();
-                int senderPort = packet.getPort();
+        sender = new SendScheduler(transport, metrics);
+        sender.start();
 
-                MessageHandler.handleMessage(received, senderAddress, senderPort, this);
+        pipeline = new ReceivePipeline(transport, this, RX_WORKERS, RX_BUFFERS, RX_QUEUE_CAPACITY);
+        pipeline.start();
+        metrics.start(this);
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        scheduler.scheduleAtFixedRate(timerWheel::advance, TIMER_TICK, TIMER_TICK, TimeUnit.MILLISECONDS);
+        transfers.start(scheduler);
+        swarm.start();
+
+        if (membership != null) {
+            membership.start(scheduler);
+        } else {
+            scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         }
     }
 
-    private void sendHeartbeat() {
+    // Encerra um nó aberto com open()
+    public void close() throws IOException {
+        closed.countDown();
+        metrics.stop();
+        scheduler.shutdownNow();
+        pipeline.close();
+        transport.close();
+    }
+
+    void sendHeartbeat() {
         String message = "HEARTBEAT " + deviceName;
-        sendUdp(message, DEST_IP, PORT);
+        sendUdp(message, broadcastAddress);
     }
 
-    private synchronized void cleanupInactiveDevices() {
-        long now = System.currentTimeMillis();
-        Iterator<Map.Entry<String, DeviceInfo>> it = activeDevices.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, DeviceInfo> entry = it.next();
-            DeviceInfo info = entry.getValue();
-            if ((now - info.getLastHeartbeat()) > DEVICE_TIMEOUT) {
-                System.out.println(">>> [INFO] Dispositivo inativo removido: " + info.getName());
-                it.remove();
-            }
+    // HEARTBEAT recebido: no modo gossip serve só para descobrir vizinhos do mesmo segmento
+    public void onHeartbeat(String name, InetAddress addr, int port) {
+        if (membership != null) {
+            membership.onHeartbeat(name, addr.getHostAddress(), port);
+            return;
+        }
+        DeviceInfo added = devices.touch(name, addr.getHostAddress(), port, System.currentTimeMillis());
+        if (added != null) {
+            Log.info(">>> [INFO] Novo dispositivo encontrado: " + name
+                    + " (" + addr.getHostAddress() + ":" + port + ")");
         }
     }
 
-    private void resendPendingMessages() {
+    public PathMtu getPathMtu() {
+        return pathMtu;
+    }
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    // Registra a mensagem como pendente, envia e agenda a retransmissão pelo RTO do destino
+    private void sendReliable(PendingMessage pm) {
+        PendingMessage previous = pendingMessages.put(pm);
+        if (previous != null && previous.getTimeout() != null) {
+            previous.getTimeout().cancel();
+        }
+        pm.setTimeout(new TimerWheel.Timeout(() -> onPendingTimeout(pm)));
+        sendUdp(pm.getMessage(), pm.getPeer().getAddress());
+        timerWheel.schedule(pm.getTimeout(), pm.getPeer().getRto());
+    }
+
+    // Chamado pela roda de temporização apenas para a mensagem cujo RTO expirou
+    private void onPendingTimeout(PendingMessage pm) {
+        long transferId = pm.getTransferId();
+        if (pendingMessages.get(transferId, pm.getSeq()) != pm) {
+            return;  // já confirmada ou substituída
+        }
+
+        // Chunks (ou mensagens) de um arquivo já finalizado não precisam mais ser reenviados
+        if (arquivosFinalizados.contains(messageId(transferId))) {
+            pendingMessages.remove(transferId, pm.getSeq(), pm);
+            return;
+        }
+
         long now = System.currentTimeMillis();
-        Iterator<Map.Entry<String, PendingMessage>> it = pendingMessages.entrySet().iterator();
-        
-        while (it.hasNext()) {
-            Map.Entry<String, PendingMessage> entry = it.next();
-            String messageId = entry.getKey();
-            PendingMessage pm = entry.getValue();
-            
-            // Verifica se este é um chunk de um arquivo já finalizado
-            if (messageId.contains("-seq")) {
-                String baseId = messageId.substring(0, messageId.indexOf("-seq"));
-                if (arquivosFinalizados.contains(baseId)) {
-                    it.remove();  // Remove chunks de arquivos já finalizados
-                    continue;
-                }
-            }
-            
-            // Se o arquivo base está finalizado, remove a mensagem
-            if (arquivosFinalizados.contains(messageId)) {
-                it.remove();
-                continue;
-            }
-            
-            // Reenvia mensagens pendentes que não foram confirmadas após 3 segundos
-            if ((now - pm.getLastSent()) > 3000) {
-                System.out.println("[RETX] Reenviando ID=" + pm.getId());
-                sendUdp(pm.getMessage(), pm.getDestIp(), pm.getDestPort());
-                pm.updateLastSent();
-            }
+        metrics.retxText.increment();
+        if (RETX_LOG.allow()) RETX_LOG.log("[RETX] Reenviando ID=" + pm.getId());
+        sendUdp(pm.getMessage(), pm.getPeer().getAddress());
+        pm.updateLastSent();
+        pm.getPeer().backoff(now);
+        timerWheel.schedule(pm.getTimeout(), pm.getPeer().getRto());
+    }
+
+    // Remove a mensagem pendente confirmada pelo ACK e alimenta o estimador de RTT do destino
+    public PendingMessage acknowledge(long transferId, int seq) {
+        PendingMessage pm = removePending(transferId, seq);
+        // Regra de Karn: mensagens retransmitidas não geram amostra de RTT
+        if (pm != null && pm.getRetries() == 0) {
+            long rtt = System.currentTimeMillis() - pm.getFirstSent();
+            metrics.rtt.record(rtt);
+            pm.getPeer().onRttSample(rtt);
         }
+        return pm;
     }
 
-    public void sendUdp(String msg, String destIp, int destPort) {
-        try {
-            byte[] data = msg.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket packet = new DatagramPacket(data, data.length,
-                                                       InetAddress.getByName(destIp), destPort);
-            socket.send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public PendingMessage removePending(long transferId, int seq) {
+        PendingMessage pm = pendingMessages.remove(transferId, seq);
+        cancelTimeout(pm);
+        return pm;
+    }
+
+    private static void cancelTimeout(PendingMessage pm) {
+        if (pm != null && pm.getTimeout() != null) {
+            pm.getTimeout().cancel();
         }
     }
 
+    // Resposta ao remetente de um pacote recebido: o endereço já vem resolvido do socket
+    public void sendUdp(String msg, InetAddress addr, int port) {
+        sendUdp(msg, new InetSocketAddress(addr, port));
+    }
+
+    public void sendUdp(String msg, InetSocketAddress dest) {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        sendFrame(ByteBuffer.wrap(data), dest);
+    }
+
+    // Quadros de envio em grupo vão para o endereço de broadcast, uma cópia para todos
+    public void broadcastFrame(ByteBuffer buf) {
+        sendFrame(buf, broadcastAddress);
+    }
+
+    // Enfileira na classe de prioridade do datagrama; o envio real é feito pela thread do SendScheduler
+    public void sendFrame(ByteBuffer buf, InetSocketAddress dest) {
+        sender.send(buf, dest);
+    }
+
+    // Sem esperar espaço na fila de dados; false se o quadro não foi enfileirado (ver SendScheduler.trySend)
+    public boolean trySendFrame(ByteBuffer buf, InetSocketAddress dest) {
+        return sender.trySend(buf, dest);
+    }
+
     private void consoleLoop() {
         Scanner sc = new Scanner(System.in);
         while (true) {
             System.out.print("> ");
+            if (!sc.hasNextLine()) return;
             String line = sc.nextLine().trim();
             if (line.isEmpty()) continue;
 
@@ -144,6 +278,18 @@ public class UdpNode {
                     listDevices();
                     break;
 
+                case "rxqueue":
+                    printReceiveQueues();
+                    break;
+
+                case "txqueue":
+                    printSendQueues();
+                    break;
+
+                case "stats":
+                    metrics.print(this);
+                    break;
+
                 case "talk":
                     if (parts.length < 2) {
                         System.out.println("Uso: talk <nome> <mensagem>");
@@ -170,6 +316,56 @@ public class UdpNode {
                     sendFile(fileParts[0], fileParts[1]);
                     break;
 
+                case "sendfile-all":
+                    if (parts.length < 2) {
+                        System.out.println("Uso: sendfile-all <caminho-arquivo>");
+                        break;
+                    }
+                    sendFileToAll(parts[1].trim());
+                    break;
+
+                case "share":
+                    if (parts.length < 2) {
+                        System.out.println("Uso: share <caminho-arquivo>");
+                        break;
+                    }
+                    swarm.share(parts[1].trim());
+                    break;
+
+                case "fetch":
+                    if (parts.length < 2) {
+                        System.out.println("Uso: fetch <hash-md5>");
+                        break;
+                    }
+                    swarm.fetch(parts[1].trim());
+                    break;
+
+                case "swarm":
+                    swarm.print();
+                    break;
+
+                case "transfers":
+                    printTransfers();
+                    break;
+
+                case "log":
+                    if (parts.length > 1) {
+                        Log.setLevel(Log.parseLevel(parts[1].trim(), Log.getLevel()));
+                    }
+                    System.out.println("Nível de log: " + Log.getLevel().name().toLowerCase()
+                            + " (descartadas: " + Log.getDropped() + ")");
+                    break;
+
+                case "pause":
+                case "resume":
+                case "cancel":
+                    if (parts.length < 2) {
+                        System.out.println("Uso: " + cmd + " <id-transferência>");
+                        break;
+                    }
+                    controlTransfer(cmd, parts[1].trim());
+                    break;
+
                 default:
                     System.out.println("Comando não reconhecido: " + cmd);
             }
@@ -179,80 +375,495 @@ public class UdpNode {
     private synchronized void listDevices() {
         System.out.println("=== Dispositivos Ativos ===");
         long now = System.currentTimeMillis();
-        for (DeviceInfo info : activeDevices.values()) {
+        for (DeviceInfo info : devices.values()) {
             long diff = now - info.getLastHeartbeat();
-            System.out.println("* " + info.getName() + " - " + info.getIp() + ":" + info.getPort()
-                               + " (último heartbeat há " + diff + " ms)");
+            String line = "* " + info.getName() + " - " + info.getIp() + ":" + info.getPort()
+                          + " (último contato há " + diff + " ms)";
+            if (membership != null) {
+                line += " [" + (info.isSuspect() ? "suspeito" : "vivo") + ", inc=" + info.getIncarnation() + "]";
+            }
+            System.out.println(line);
         }
         System.out.println("===========================");
     }
 
+    private void printReceiveQueues() {
+        System.out.println("=== Fila de Recepção ===");
+        for (int i = 0; i < pipeline.getWorkers(); i++) {
+            System.out.println("* worker " + i + ": fila=" + pipeline.getQueueDepth(i)
+                               + " processados=" + pipeline.getProcessed(i));
+        }
+        System.out.println("Recebidos: " + pipeline.getReceived()
+                           + " | buffers livres: " + pipeline.getFreeBuffers());
+        System.out.println("Descartados: sem buffer=" + pipeline.getDroppedNoBuffer()
+                           + " fila cheia=" + pipeline.getDroppedQueueFull()
+                           + " envio=" + sender.getDroppedKernel());
+        System.out.println("========================");
+    }
+
+    private void printSendQueues() {
+        System.out.println("=== Fila de Envio ===");
+        for (int c = SendScheduler.CONTROL; c <= SendScheduler.BULK; c++) {
+            System.out.println(String.format("* %s: fila=%d enviados=%d descartados=%d/%d espera média=%.3f ms p99<=%.3f ms máx=%.3f ms",
+                    SendScheduler.nameOf(c), sender.getQueueDepth(c), sender.getSent(c),
+                    sender.getDroppedQueueFull(c), sender.getDroppedKernel(c),
+                    sender.getAvgWaitMs(c), sender.getWaitPercentileMs(c, 0.99), sender.getMaxWaitMs(c)));
+        }
+        System.out.println("(descartados = fila cheia / buffer do kernel cheio)");
+        System.out.println("=====================");
+    }
+
+    private void printTransfers() {
+        System.out.println("=== Transferências ===");
+        for (Transfer t : transfers.list()) {
+            System.out.println(String.format("* %s [%s] %s %s %.1f%% %.2f MB/s %s",
+                    t.getId(), t.getDirection() == Transfer.Direction.ENVIO ? "envio" : "recepção",
+                    t.getPeer(), t.getFileName(), t.getProgress(), t.getRate() / (1024 * 1024), t.getState()));
+        }
+        System.out.println("======================");
+    }
+
+    private void controlTransfer(String cmd, String id) {
+        boolean ok;
+        switch (cmd) {
+            case "pause":
+                ok = transfers.pause(id);
+                break;
+            case "resume":
+                ok = transfers.resume(id);
+                break;
+            default:
+                ok = transfers.cancel(id);
+        }
+        if (ok) {
+            System.out.println(">>> [INFO] Transferência " + id + ": " + cmd + " ok");
+        } else {
+            System.out.println("[ERRO] Não foi possível aplicar " + cmd + " à transferência " + id);
+        }
+    }
+
     private void sendTalk(String targetName, String content) {
-        DeviceInfo info = activeDevices.get(targetName);
+        DeviceInfo info = devices.get(targetName);
         if (info == null) {
             System.out.println("[ERRO] Dispositivo não encontrado: " + targetName);
             return;
         }
-        String id = generateMessageId();
+        long transferId = nextTransferId();
+        String id = messageId(transferId);
         String msg = "TALK " + id + " " + content;
-        pendingMessages.put(id, new PendingMessage(id, msg, info.getIp(), info.getPort()));
-        sendUdp(msg, info.getIp(), info.getPort());
+        sendReliable(new PendingMessage(transferId, msg, info));
         System.out.println(">>> [TALK enviado] ID=" + id + " para " + targetName);
     }
 
-    private void sendFile(String targetName, String filePath) {
-        DeviceInfo info = activeDevices.get(targetName);
+    // Valida no console e segue numa thread de controle, para permitir vários envios simultâneos.
+    // Retorna a transferência registrada (null se não começou), acompanhada pelas simulações.
+    Transfer sendFile(String targetName, String filePath) {
+        DeviceInfo info = devices.get(targetName);
         if (info == null) {
             System.out.println("[ERRO] Dispositivo não encontrado: " + targetName);
-            return;
+            return null;
+        }
+        File f = new File(filePath);
+        if (!f.exists()) {
+            System.out.println("[ERRO] Arquivo não encontrado: " + filePath);
+            return null;
         }
+        String id = messageId(nextTransferId());
+        Transfer transfer = transfers.registerOutbound(id, info, f.getName(), f.length());
+        transfers.submit(() -> runSendFile(id, transfer, info, f));
+        return transfer;
+    }
+
+    // Um único envio em broadcast para todos os dispositivos conhecidos (ver GroupSender)
+    private void sendFileToAll(String filePath) {
         File f = new File(filePath);
         if (!f.exists()) {
             System.out.println("[ERRO] Arquivo não encontrado: " + filePath);
             return;
         }
-        String id = generateMessageId();
+        List<DeviceInfo> targets = new ArrayList<>();
+        for (DeviceInfo d : devices.values()) {
+            if (!d.isSuspect()) targets.add(d);
+        }
+        if (targets.isEmpty()) {
+            System.out.println("[ERRO] Nenhum dispositivo ativo");
+            return;
+        }
+        String id = messageId(nextTransferId());
+        Transfer transfer = transfers.registerOutbound(id, "todos (" + targets.size() + ")", f.getName(), f.length());
+        GroupSender group = new GroupSender(this, id, transfer, f, targets);
+        groupSenders.put(group.getTransferId(), group);
+        transfers.submit(() -> {
+            List<DeviceInfo> outside = Collections.emptyList();
+            try {
+                outside = group.run();
+            } catch (InterruptedException e) {
+                transfers.finish(id, Transfer.State.FALHA);
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                transfers.finish(id, Transfer.State.FALHA);
+                e.printStackTrace();
+            } finally {
+                groupSenders.remove(group.getTransferId());
+            }
+            // Quem não entrou no grupo (nó antigo ou sem resposta) recebe por unicast
+            for (DeviceInfo d : outside) {
+                Log.info(">>> [GRUPO] ID=" + id + " " + d.getName() + " não respondeu ao GFILE; enviando por unicast");
+                sendFile(d.getName(), filePath);
+            }
+        });
+    }
+
+    private void runSendFile(String id, Transfer transfer, DeviceInfo info, File f) {
         long fileSize = f.length();
         String fileName = f.getName();
         String fileMsg = "FILE " + id + " " + fileName + " " + fileSize;
-        pendingMessages.put(id, new PendingMessage(id, fileMsg, info.getIp(), info.getPort()));
-        sendUdp(fileMsg, info.getIp(), info.getPort());
-        System.out.println(">>> [FILE enviado] ID=" + id + " Arquivo=" + fileName + " Tamanho=" + fileSize);
-
-        try (FileInputStream fis = new FileInputStream(f)) {
-            byte[] buffer = new byte[1024];
-            int read;
-            int seq = 0;
-            while ((read = fis.read(buffer)) != -1) {
-                seq++;
-                byte[] chunk = Arrays.copyOf(buffer, read);
-                String base64 = Base64.getEncoder().encodeToString(chunk);
-                String chunkMsg = "CHUNK " + id + " " + seq + " " + base64;
-                String chunkId = id + "-seq" + seq;
-                pendingMessages.put(chunkId, new PendingMessage(chunkId, chunkMsg, info.getIp(), info.getPort()));
-                sendUdp(chunkMsg, info.getIp(), info.getPort());
-                System.out.println("... enviado CHUNK seq=" + seq + " (" + read + " bytes)");
+        sendReliable(new PendingMessage(transferIdOf(id), fileMsg, info));
+        Log.info(">>> [FILE enviado] ID=" + id + " Arquivo=" + fileName + " Tamanho=" + fileSize);
+
+        // A data de modificação identifica a versão do arquivo para que o receptor só retome
+        // a partir de um checkpoint do mesmo conteúdo
+        TransferOptions offer = TransferOptions.local();
+        offer.resume = Long.toHexString(f.lastModified());
+        offer.chunk = pathMtu.chunkSizeFor(info);
+        // As assinaturas do delta podem chegar antes do ACCEPT: o coletor existe desde o OFFER
+        long transferId = transferIdOf(id);
+        DeltaSync.Signatures sigs = new DeltaSync.Signatures();
+        if (offer.delta > 0) {
+            signatures.put(transferId, sigs);
+        }
+        TransferOptions options = negotiate(id, info, offer);
+        boolean useDelta = options.binary && offer.delta > 0 && options.delta > 0 && options.basis > 0
+                && options.have == null;
+        if (!useDelta) {
+            signatures.remove(transferId);
+        }
+        int chunkSize = options.binary && options.chunk > 0 && offer.chunk > 0
+                ? Math.min(options.chunk, offer.chunk) : CHUNK_SIZE;
+        Log.info(">>> [FILE] ID=" + id + " protocolo=" + (options.binary ? "binário v" + FrameCodec.VERSION : "texto")
+                + " chunk=" + chunkSize + (options.zip != null ? " zip=" + options.zip : "")
+                + (options.fec > 0 ? " fec=" + options.fec : "") + (useDelta ? " delta=" + options.delta : ""));
+        if (options.have != null) {
+            Log.info(">>> [RESUME] ID=" + id + " destino já tem " + options.have.cardinality() + " chunks");
+        }
+        if (transfer.isFinished()) {
+            // Cancelada durante o handshake
+            signatures.remove(transferId);
+            cancelOutbound(id, info);
+            return;
+        }
+
+        try {
+            // O hash é calculado enquanto os chunks são lidos para envio, sem reler o arquivo
+            String fileHash;
+            DeltaSync.Delta delta = null;
+            if (useDelta) {
+                try {
+                    delta = prepareDelta(id, transfer, info, f, options, sigs);
+                } finally {
+                    signatures.remove(transferId);
+                }
+                if (transfer.isFinished()) {
+                    if (delta != null) delta.file.delete();
+                    cancelOutbound(id, info);
+                    return;
+                }
+            }
+            if (delta != null) {
+                // Só a diferença: o delta vai como um arquivo comum e o END leva o hash do arquivo novo
+                try (ChunkSource source = new ChunkSource(delta.file, chunkSize)) {
+                    if (!sendChunksWindowed(id, transfer, source, info, options)) {
+                        return;
+                    }
+                } finally {
+                    delta.file.delete();
+                }
+                fileHash = delta.md5;
+            } else if (options.binary) {
+                try (ChunkSource source = new ChunkSource(f, chunkSize)) {
+                    if (!sendChunksWindowed(id, transfer, source, info, options)) {
+                        return;
+                    }
+                    fileHash = source.md5Hex();
+                }
+            } else {
+                ChunkSource source = new ChunkSource(f, CHUNK_SIZE);
+                legacySources.put(id, source);
+                transfer.setState(Transfer.State.ATIVA);
+                if (!sendChunksLegacy(id, transfer, source, info)) {
+                    cancelOutbound(id, info);
+                    return;
+                }
+                fileHash = source.md5Hex();
             }
-            String fileHash = FileUtils.calculateMD5(f);
+            transfer.setState(Transfer.State.FINALIZANDO);
             String endMsg = "END " + id + " " + fileHash;
-            pendingMessages.put(id, new PendingMessage(id, endMsg, info.getIp(), info.getPort()));
-            sendUdp(endMsg, info.getIp(), info.getPort());
-            System.out.println(">>> [END enviado] ID=" + id + " hash=" + fileHash);
+            sendReliable(new PendingMessage(transferIdOf(id), endMsg, info));
+            Log.info(">>> [END enviado] ID=" + id + " hash=" + fileHash);
+        } catch (InterruptedException e) {
+            transfers.finish(id, Transfer.State.FALHA);
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
+            transfers.finish(id, Transfer.State.FALHA);
             e.printStackTrace();
         }
     }
 
-    private static synchronized String generateMessageId() {
-        messageCounter++;
-        return "msg" + messageCounter;
+    // Delta (DeltaSync): espera as assinaturas da cópia do receptor, pedindo com SIGREQ os quadros
+    // que faltam, gera o delta e combina o envio com "DELTA <id> <tamanho>". Retorna null para enviar
+    // o arquivo inteiro (assinaturas incompletas, delta grande demais); se o receptor não confirmar o
+    // DELTA, a transferência falha, já que ele pode estar esperando o delta.
+    private DeltaSync.Delta prepareDelta(String id, Transfer transfer, DeviceInfo info, File f,
+                                         TransferOptions options, DeltaSync.Signatures sigs)
+            throws IOException, InterruptedException {
+        int frames = DeltaSync.frameCount(options.basis, options.delta);
+        int stalls = 0;
+        int have = 0;
+        while (!transfer.isFinished()) {
+            int now = sigs.await(frames, SIG_TIMEOUT);
+            if (now >= frames) break;
+            stalls = now > have ? 0 : stalls + 1;
+            have = now;
+            if (stalls >= SIG_ATTEMPTS) {
+                Log.info(">>> [DELTA] ID=" + id + " assinaturas incompletas (" + have + "/" + frames
+                        + " quadros); enviando o arquivo inteiro");
+                return null;
+            }
+            StringBuilder missing = new StringBuilder("SIGREQ ").append(id).append(' ');
+            TransferOptions.formatRanges(sigs.missing(frames), missing);
+            sendUdp(missing.toString(), info.getAddress());
+        }
+        if (transfer.isFinished()) return null;
+
+        File tmp = File.createTempFile("labredes-" + id + "-", ".delta");
+        DeltaSync.Delta delta = DeltaSync.encode(f, sigs.assemble(DeltaSync.blockCount(options.basis, options.delta)),
+                options.delta, tmp);
+        if (delta == null) {
+            Log.info(">>> [DELTA] ID=" + id + " arquivo mudou demais; enviando o arquivo inteiro");
+            return null;
+        }
+        Log.info(">>> [DELTA] ID=" + id + " " + delta.size + " bytes em vez de " + f.length()
+                + " (" + delta.copiedBlocks + " blocos de " + options.delta + " reaproveitados, "
+                + delta.literalBytes + " bytes novos)");
+        if (handshake(id + "-delta", info, "DELTA " + id + " " + delta.size) == null) {
+            delta.file.delete();
+            throw new IOException("receptor não confirmou o DELTA");
+        }
+        return delta;
+    }
+
+    // Protocolo binário: janela deslizante com SACK, retransmite só os buracos
+    private boolean sendChunksWindowed(String id, Transfer transfer, ChunkSource source, DeviceInfo info,
+                                       TransferOptions options) throws InterruptedException {
+        SendWindow window = new SendWindow(this, timerWheel, id, source, sendBuffers, info, WINDOW_SIZE,
+                options.crc, options.ack, options.zip != null, options.fec, options.have);
+        sendWindows.put(window.getTransferId(), window);
+        transfers.activate(transfer, window);
+        if (transfer.isFinished()) {
+            // Cancelada entre o handshake e a ativação da janela
+            window.abort(CANCEL_REASON);
+        }
+        try {
+            if (!window.await()) {
+                Log.error(">>> [ERRO] Transferência ID=" + id + " abortada: " + window.getAbortReason());
+                if (CANCEL_REASON.equals(window.getAbortReason())) {
+                    cancelOutbound(id, info);
+                } else {
+                    transfers.finish(id, Transfer.State.FALHA);
+                    removePending(transferIdOf(id), 0);
+                }
+                return false;
+            }
+        } finally {
+            transfers.deactivate(transfer);
+            sendWindows.remove(window.getTransferId());
+        }
+        Log.info(">>> [FILE] ID=" + id + " " + window.getTotalChunks() + " chunks confirmados, "
+                + window.getRetransmissions() + " retransmissões"
+                + (window.getResumed() > 0 ? ", " + window.getResumed() + " retomados" : "")
+                + (options.fec > 0 ? ", " + window.getParityFrames() + " paridades" : ""));
+        if (options.zip != null && window.getRawBytes() > 0) {
+            Log.info(">>> [ZIP] ID=" + id + " " + window.getRawBytes() + " bytes enviados como "
+                    + window.getWireBytes() + " (" + window.getWireBytes() * 100 / window.getRawBytes() + "%)");
+        }
+        return true;
+    }
+
+    // Protocolo de texto (nós antigos): cada chunk fica pendente até o END ser confirmado.
+    // As pendências guardam só (arquivo, seq); o Base64 é remontado a cada (re)envio.
+    // O ritmo segue os mesmos limites de taxa do protocolo binário; retorna false se cancelado.
+    private boolean sendChunksLegacy(String id, Transfer transfer, ChunkSource source, DeviceInfo info) {
+        long transferId = transferIdOf(id);
+        for (int seq = 1; seq <= source.getTotalChunks(); seq++) {
+            int length = source.lengthOf(seq);
+            if (!transfers.awaitTurn(transfer, info, (length + 2) / 3 * 4 + 32)) {
+                return false;
+            }
+            sendReliable(new PendingMessage(transferId, source, seq, info));
+            transfer.addBytes(length);
+            if (CHUNK_LOG.allow()) CHUNK_LOG.log("... enviado CHUNK seq=" + seq + " (" + source.lengthOf(seq) + " bytes)");
+        }
+        return true;
+    }
+
+    // Cancelamento local de um envio: avisa o receptor e descarta as pendências do arquivo
+    private void cancelOutbound(String id, DeviceInfo info) {
+        transfers.finish(id, Transfer.State.CANCELADA);
+        dropTransferPending(id);
+        sendUdp("NACK " + id + " " + CANCEL_REASON, info.getAddress());
+    }
+
+    // Remove as pendências (FILE, chunks de texto, END) de uma transferência e fecha o arquivo
+    public void dropTransferPending(String baseId) {
+        pendingMessages.removeAll(transferIdOf(baseId), UdpNode::cancelTimeout);
+        closeChunkSource(baseId);
+    }
+
+    // Fecha o arquivo de uma transferência de texto cujo END foi confirmado
+    public void closeChunkSource(String id) {
+        ChunkSource source = legacySources.remove(id);
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Envia OFFER após o FILE e aguarda o ACCEPT (ou RESUME) do receptor.
+    // Sem resposta (nó antigo ou perda), a transferência usa o protocolo de texto.
+    private TransferOptions negotiate(String id, DeviceInfo info, TransferOptions offer) {
+        TransferOptions accepted = handshake(id, info, "OFFER " + id + " " + offer);
+        return accepted != null ? accepted : new TransferOptions();
+    }
+
+    // Reenvia 'msg' até completeHandshake(key, ...) ou o fim das tentativas (null)
+    private TransferOptions handshake(String key, DeviceInfo info, String msg) {
+        CompletableFuture<TransferOptions> future = new CompletableFuture<>();
+        pendingHandshakes.put(key, future);
+        try {
+            for (int attempt = 0; attempt < HANDSHAKE_ATTEMPTS; attempt++) {
+                sendUdp(msg, info.getAddress());
+                try {
+                    return future.get(HANDSHAKE_TIMEOUT / HANDSHAKE_ATTEMPTS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // tenta novamente
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        } finally {
+            pendingHandshakes.remove(key);
+        }
+        return null;
+    }
+
+    public void completeHandshake(String id, TransferOptions accepted) {
+        CompletableFuture<TransferOptions> future = pendingHandshakes.get(id);
+        if (future != null) {
+            future.complete(accepted);
+        }
+    }
+
+    // Separador do seq no ID dos chunks do protocolo de texto ("msgN-seqM")
+    static final String SEQ_SEPARATOR = "-seq";
+
+    // Converte o ID textual "msgN" (ou o "msgN-seqM" de um chunk de texto) no identificador numérico
+    // usado nos quadros binários e na PendingTable, sem criar substrings
+    public static long transferIdOf(String id) {
+        int start = id.startsWith("msg") ? 3 : 0;
+        int end = id.indexOf(SEQ_SEPARATOR, start);
+        try {
+            return Long.parseLong(id, start, end < 0 ? id.length() : end, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Seq do "msgN-seqM" de um chunk de texto; 0 para uma mensagem inteira e -1 se inválido
+    public static int seqOf(String id) {
+        int sep = id.indexOf(SEQ_SEPARATOR);
+        if (sep < 0) return 0;
+        try {
+            return Integer.parseInt(id, sep + SEQ_SEPARATOR.length(), id.length(), 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long nextTransferId() {
+        return messageCounter.incrementAndGet();
+    }
+
+    // O ID só vira texto na borda do protocolo
+    static String messageId(long transferId) {
+        return "msg" + transferId;
+    }
+
+    public DeviceRegistry getDevices() {
+        return devices;
+    }
+
+    public TransferManager getTransfers() {
+        return transfers;
+    }
+
+    public Swarm getSwarm() {
+        return swarm;
+    }
+
+    // Nome do dispositivo no endereço, ou o próprio endereço se ele ainda não mandou heartbeat
+    public String peerLabel(InetAddress addr, int port) {
+        String ip = addr.getHostAddress();
+        for (DeviceInfo info : devices.values()) {
+            if (info.getIp().equals(ip) && info.getPort() == port) {
+                return info.getName();
+            }
+        }
+        return ip + ":" + port;
+    }
+
+    public SendWindow getSendWindow(long transferId) {
+        return sendWindows.get(transferId);
+    }
+
+    public DeltaSync.Signatures getSignatures(long transferId) {
+        return signatures.get(transferId);
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public MessageHandler.ReceiveState getReceiveState() {
+        return receiveState;
+    }
+
+    public ReceivePipeline getPipeline() {
+        return pipeline;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public SendScheduler getSendScheduler() {
+        return sender;
     }
 
-    public Map<String, DeviceInfo> getActiveDevices() {
-        return activeDevices;
+    public GroupSender getGroupSender(long transferId) {
+        return groupSenders.get(transferId);
     }
 
-    public Map<String, PendingMessage> getPendingMessages() {
+    public PendingTable getPendingMessages() {
         return pendingMessages;
     }
 
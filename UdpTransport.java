@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Transporte sobre um DatagramChannel não bloqueante: a recepção espera no Selector e o envio
+// retorna false quando o buffer de envio do kernel está cheio
+public class UdpTransport implements Transport {
+    // Porta do nó e destino dos broadcasts (-Dlabredes.port, -Dlabredes.broadcast, -Dlabredes.broadcastPort):
+    // permitem rodar vários nós na mesma máquina, como no benchmark de transferência por loopback
+    private static final int PORT = Integer.getInteger("labredes.port", 9876);
+    private static final String DEST_IP = System.getProperty("labredes.broadcast", "192.168.118.255");
+    private static final int DEST_PORT = Integer.getInteger("labredes.broadcastPort", PORT);
+    // Buffer de recepção do kernel para absorver rajadas (limitado por net.core.rmem_max)
+    private static final int SOCKET_RCVBUF = 4 * 1024 * 1024;
+    private static final int ETHERNET_MTU = 1500;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final InetSocketAddress broadcastAddress;
+
+    private UdpTransport(DatagramChannel channel, Selector selector, InetSocketAddress broadcastAddress) {
+        this.channel = channel;
+        this.selector = selector;
+        this.broadcastAddress = broadcastAddress;
+    }
+
+    public static UdpTransport open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RCVBUF);
+        channel.bind(new InetSocketAddress(PORT));
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        return new UdpTransport(channel, selector, new InetSocketAddress(InetAddress.getByName(DEST_IP), DEST_PORT));
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InetSocketAddress getBroadcastAddress() {
+        return broadcastAddress;
+    }
+
+    @Override
+    public boolean send(ByteBuffer buf, InetSocketAddress dest) throws IOException {
+        return channel.send(buf, dest) > 0;
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer dst) throws IOException {
+        return (InetSocketAddress) channel.receive(dst);
+    }
+
+    @Override
+    public void await() throws IOException {
+        selector.select();
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void setTrafficClass(int tos) throws IOException {
+        channel.setOption(StandardSocketOptions.IP_TOS, tos);
+    }
+
+    // MTU da interface pela qual o sistema roteia até o destino
+    @Override
+    public int mtu(InetSocketAddress dest) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(dest);
+            NetworkInterface nif = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (nif != null && nif.getMTU() > 0) {
+                return nif.getMTU();
+            }
+        } catch (IOException e) {
+            // sem rota conhecida: assume Ethernet
+        }
+        return ETHERNET_MTU;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,98 @@
+package labredes;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Custo de montar e de ler um chunk em cada protocolo, como no envio (sendFile/SendWindow) e na
+// recepção (ReceivePipeline + MessageHandler): texto "CHUNK id seq base64" e quadro binário DATA
+// com CRC32C, num buffer direto como o dos envios
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+    @Param({"1024", "1436", "8192"})
+    public int chunkSize;
+
+    private byte[] chunk;
+    private byte[] textWire;
+    private ByteBuffer frameOut;
+    private ByteBuffer frameIn;
+    private final CRC32C crc = new CRC32C();
+    private final FrameCodec.Frame frame = new FrameCodec.Frame();
+    private byte[] payload;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        payload = new byte[chunkSize];
+        textWire = ("CHUNK msg1 1 " + Base64.getEncoder().encodeToString(chunk)).getBytes(StandardCharsets.UTF_8);
+        frameOut = ByteBuffer.allocateDirect(ReceivePipeline.MAX_DATAGRAM);
+        frameIn = ByteBuffer.allocateDirect(ReceivePipeline.MAX_DATAGRAM);
+        encodeBinary();
+        frameIn.put(frameOut).flip();
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        // ChunkSource.textChunk + UdpNode.sendUdp
+        String msg = "CHUNK msg1 " + (++seq) + " " + Base64.getEncoder().encodeToString(chunk);
+        return msg.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] decodeText() {
+        // ReceivePipeline.dispatch + MessageHandler.handleChunk
+        String msg = new String(textWire, 0, textWire.length, StandardCharsets.UTF_8);
+        String[] tokens = msg.split(" ", 4);
+        seq = Integer.parseInt(tokens[2]);
+        return Base64.getDecoder().decode(tokens[3]);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        // SendWindow.transmit: os dados já estão no buffer depois do cabeçalho
+        ByteBuffer buf = frameOut;
+        buf.clear();
+        buf.put(FrameCodec.HEADER_SIZE, chunk);
+        buf.limit(FrameCodec.HEADER_SIZE + chunkSize).position(FrameCodec.HEADER_SIZE);
+        crc.reset();
+        crc.update(buf);
+        buf.limit(buf.capacity());
+        buf.putInt(FrameCodec.HEADER_SIZE + chunkSize, (int) crc.getValue());
+        FrameCodec.encodeHeader(buf, FrameCodec.TYPE_DATA, FrameCodec.FLAG_CRC32C, 1L, ++seq,
+                chunkSize + FrameCodec.CRC_SIZE);
+        return buf;
+    }
+
+    @Benchmark
+    public byte[] decodeBinary() {
+        // MessageHandler.handleBinaryChunk: decodifica, confere o CRC32C e lê o payload
+        ByteBuffer buf = frameIn;
+        buf.clear().limit(FrameCodec.HEADER_SIZE + chunkSize + FrameCodec.CRC_SIZE);
+        if (!FrameCodec.decode(buf, frame)) {
+            throw new IllegalStateException("quadro inválido");
+        }
+        int length = frame.length - FrameCodec.CRC_SIZE;
+        buf.limit(frame.payloadOffset + length).position(frame.payloadOffset);
+        crc.reset();
+        crc.update(buf);
+        buf.limit(frame.payloadOffset + frame.length);
+        if ((int) crc.getValue() != buf.getInt(frame.payloadOffset + length)) {
+            throw new IllegalStateException("CRC32C inválido");
+        }
+        buf.position(frame.payloadOffset);
+        buf.get(payload, 0, length);
+        return payload;
+    }
+}
@@ -0,0 +1,232 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Simulação de eventos discretos de um envio binário por um enlace com perda, para comparar o tempo
+// de conclusão sem FEC e com paridade XOR a cada K chunks (ver Fec).
+// O modelo segue o SendWindow: janela deslizante, SACK a cada chunk, reenvio rápido após 3 SACKs
+// com o mesmo buraco (com FEC, só depois do receptor passar do grupo) e RTO de no mínimo 200 ms.
+// As perdas são independentes e valem para chunks, paridades e SACKs. Os chunks reconstruídos são
+// conferidos byte a byte com os originais. É um modelo: a reconstrução pelos nós reais, sobre a
+// MemoryNetwork, é conferida em node/src/test/java/FecRecoveryTest.
+// Uso: java -cp benchmarks/target/benchmarks.jar labredes.FecSimulation [chunks] [rttMs] [taxaBytesPorSegundo]
+//      [perdas%] [grupos]
+// ex.: java -cp benchmarks/target/benchmarks.jar labredes.FecSimulation 1000 200 12500000 0,1,5,10 0,16,8
+public class FecSimulation {
+    private static final int CHUNK_SIZE = 1436;
+    private static final int FRAME_OVERHEAD = FrameCodec.HEADER_SIZE + FrameCodec.CRC_SIZE + 28;
+    private static final int WINDOW = 256;
+    private static final int FAST_RETX_THRESHOLD = 3;
+    private static final double MIN_RTO = 0.2;
+    private static final int RUNS = 3;
+
+    private static final int ARRIVE_CHUNK = 0;
+    private static final int ARRIVE_PARITY = 1;
+    private static final int ARRIVE_SACK = 2;
+    private static final int TIMEOUT = 3;
+
+    private static class Event implements Comparable<Event> {
+        final double time;
+        final int type;
+        final int seq;
+        final int sent;       // TIMEOUT: número do envio que o agendou
+        final BitSet sack;    // ARRIVE_SACK: chunks que o receptor tinha
+
+        Event(double time, int type, int seq, int sent, BitSet sack) {
+            this.time = time;
+            this.type = type;
+            this.seq = seq;
+            this.sent = sent;
+            this.sack = sack;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return Double.compare(time, o.time);
+        }
+    }
+
+    public static void main(String[] args) {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        double rtt = (args.length > 1 ? Double.parseDouble(args[1]) : 40) / 1000.0;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 1_250_000;
+        double[] lossRates = Arrays.stream((args.length > 3 ? args[3] : "0,1,2,5,10,20").split(","))
+                .mapToDouble(v -> Double.parseDouble(v) / 100).toArray();
+        int[] groups = Arrays.stream((args.length > 4 ? args[4] : "0,16,8,4").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+
+        byte[][] data = new byte[chunks + 1][CHUNK_SIZE];
+        Random random = new Random(42);
+        for (int seq = 1; seq <= chunks; seq++) {
+            random.nextBytes(data[seq]);
+        }
+
+        System.out.printf("%d chunks de %d bytes, RTT %.0f ms, enlace %.1f Mbit/s, janela %d%n",
+                chunks, CHUNK_SIZE, rtt * 1000, rate * 8 / 1e6, WINDOW);
+        System.out.printf("%-7s", "perda");
+        for (int group : groups) {
+            System.out.printf(" | %-26s", group == 0 ? "sem FEC" : "FEC K=" + group + " (+" + 100 / group + "%)");
+        }
+        System.out.println();
+        for (double loss : lossRates) {
+            System.out.printf("%5.0f%% ", loss * 100);
+            for (int group : groups) {
+                double time = 0;
+                long retx = 0;
+                long recovered = 0;
+                for (int run = 0; run < RUNS; run++) {
+                    long[] r = simulate(data, chunks, group, loss, rtt, rate, new Random(run * 31 + 7));
+                    time += r[0] / 1e6;
+                    retx += r[1];
+                    recovered += r[2];
+                }
+                System.out.printf(" | %6.2f s %5d rtx %5d fec", time / RUNS, retx / RUNS, recovered / RUNS);
+            }
+            System.out.println();
+        }
+    }
+
+    // Retorna {tempo de conclusão em µs, retransmissões, chunks reconstruídos}
+    private static long[] simulate(byte[][] data, int chunks, int group, double loss, double rtt,
+                                   double rate, Random random) {
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        double frameTime = (CHUNK_SIZE + FRAME_OVERHEAD) / rate;
+        double rto = Math.max(MIN_RTO, 2 * rtt);
+
+        // Remetente
+        BitSet acked = new BitSet();
+        int base = 1;
+        int nextSeq = 1;
+        int[] sendCount = new int[chunks + 1];
+        int[] holeReports = new int[chunks + 1];
+        double linkFree = 0;
+        long retransmissions = 0;
+
+        // Receptor
+        BitSet received = new BitSet();
+        byte[][] stored = new byte[chunks + 1][];
+        byte[][] parity = new byte[chunks + 1][];
+        long recovered = 0;
+
+        double now = 0;
+        while (received.cardinality() < chunks) {
+            // Chunks novos que cabem na janela saem no ritmo do enlace
+            while (nextSeq <= chunks && nextSeq < base + WINDOW && linkFree <= now) {
+                linkFree = transmit(events, random, loss, Math.max(now, linkFree), frameTime, rtt, ARRIVE_CHUNK, nextSeq);
+                events.add(new Event(linkFree + rto, TIMEOUT, nextSeq, ++sendCount[nextSeq], null));
+                if (group > 0 && nextSeq == Fec.lastOf(nextSeq, group, chunks) && nextSeq > Fec.firstOf(nextSeq, group)) {
+                    linkFree = transmit(events, random, loss, linkFree, frameTime, rtt, ARRIVE_PARITY, Fec.firstOf(nextSeq, group));
+                }
+                nextSeq++;
+            }
+            Event e = events.poll();
+            if (e == null) break;
+            if (nextSeq <= chunks && nextSeq < base + WINDOW && linkFree < e.time) {
+                // O enlace fica livre antes do próximo evento: volta a enviar
+                events.add(e);
+                now = linkFree;
+                continue;
+            }
+            now = e.time;
+            switch (e.type) {
+                case ARRIVE_CHUNK:
+                    if (!received.get(e.seq)) {
+                        received.set(e.seq);
+                        stored[e.seq] = data[e.seq];
+                        if (group > 0) {
+                            recovered += tryRecover(data, stored, parity, received, Fec.firstOf(e.seq, group), group, chunks);
+                        }
+                    }
+                    sack(events, random, loss, now, rtt, received);
+                    break;
+                case ARRIVE_PARITY:
+                    parity[e.seq] = xorOf(data, e.seq, Fec.lastOf(e.seq, group, chunks));
+                    recovered += tryRecover(data, stored, parity, received, e.seq, group, chunks);
+                    sack(events, random, loss, now, rtt, received);
+                    break;
+                case ARRIVE_SACK: {
+                    int highest = e.sack.length() - 1;
+                    for (int seq = e.sack.nextSetBit(base); seq >= 0 && seq < nextSeq; seq = e.sack.nextSetBit(seq + 1)) {
+                        acked.set(seq);
+                    }
+                    base = acked.nextClearBit(Math.max(base, 1));
+                    for (int seq = base; seq < Math.min(highest, nextSeq); seq++) {
+                        if (acked.get(seq)) continue;
+                        if (group > 0 && highest <= Fec.lastOf(seq, group, chunks)) continue;
+                        if (++holeReports[seq] == FAST_RETX_THRESHOLD) {
+                            linkFree = transmit(events, random, loss, Math.max(now, linkFree), frameTime, rtt, ARRIVE_CHUNK, seq);
+                            events.add(new Event(linkFree + rto, TIMEOUT, seq, ++sendCount[seq], null));
+                            holeReports[seq] = Integer.MIN_VALUE;
+                            retransmissions++;
+                        }
+                    }
+                    break;
+                }
+                case TIMEOUT:
+                    if (acked.get(e.seq) || e.sent != sendCount[e.seq]) break;
+                    holeReports[e.seq] = 0;
+                    linkFree = transmit(events, random, loss, Math.max(now, linkFree), frameTime, rtt, ARRIVE_CHUNK, e.seq);
+                    events.add(new Event(linkFree + rto, TIMEOUT, e.seq, ++sendCount[e.seq], null));
+                    retransmissions++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new long[] {(long) (now * 1e6), retransmissions, recovered};
+    }
+
+    // Põe o quadro no enlace a partir de 'start'; retorna quando o enlace fica livre de novo
+    private static double transmit(PriorityQueue<Event> events, Random random, double loss, double start,
+                                   double frameTime, double rtt, int type, int seq) {
+        double done = start + frameTime;
+        if (random.nextDouble() >= loss) {
+            events.add(new Event(done + rtt / 2, type, seq, 0, null));
+        }
+        return done;
+    }
+
+    private static void sack(PriorityQueue<Event> events, Random random, double loss, double now, double rtt,
+                             BitSet received) {
+        if (random.nextDouble() >= loss) {
+            events.add(new Event(now + rtt / 2, ARRIVE_SACK, 0, 0, (BitSet) received.clone()));
+        }
+    }
+
+    private static byte[] xorOf(byte[][] data, int first, int last) {
+        byte[] acc = new byte[CHUNK_SIZE];
+        for (int seq = first; seq <= last; seq++) {
+            Fec.xor(acc, ByteBuffer.wrap(data[seq]));
+        }
+        return acc;
+    }
+
+    // Mesma regra do receptor: com a paridade e exatamente um chunk faltando, reconstrói esse chunk
+    private static int tryRecover(byte[][] data, byte[][] stored, byte[][] parity, BitSet received,
+                                  int first, int group, int chunks) {
+        if (parity[first] == null) return 0;
+        int last = Fec.lastOf(first, group, chunks);
+        int missing = -1;
+        for (int seq = first; seq <= last; seq++) {
+            if (received.get(seq)) continue;
+            if (missing > 0) return 0;
+            missing = seq;
+        }
+        byte[] acc = parity[first];
+        parity[first] = null;
+        if (missing < 0) return 0;
+        for (int seq = first; seq <= last; seq++) {
+            if (seq != missing) Fec.xor(acc, ByteBuffer.wrap(stored[seq]));
+        }
+        if (!Arrays.equals(acc, data[missing])) {
+            throw new IllegalStateException("chunk " + missing + " reconstruído com conteúdo errado");
+        }
+        stored[missing] = acc;
+        received.set(missing);
+        return 1;
+    }
+}
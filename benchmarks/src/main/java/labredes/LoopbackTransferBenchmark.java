@@ -0,0 +1,236 @@
+package labredes;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Transferência de ponta a ponta pelo loopback: dois nós em processos próprios (como nos containers),
+// o remetente recebe "sendfile" pelo console e cada operação termina quando o receptor valida o MD5.
+// Além de transferências/s, reporta a vazão (megabytes, em MB/s) e o p99 da latência dos chunks
+// (p99ChunkMs: RTT do envio de um chunk até o seu ACK, do histograma labredes_rtt_ms do remetente,
+// interpolado dentro do balde). Propriedades -Dlabredes.* passadas ao benchmark seguem para os nós:
+//   java -jar benchmarks.jar LoopbackTransfer -jvmArgsAppend "-Dlabredes.fec=8"
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackTransferBenchmark {
+    private static final long TRANSFER_TIMEOUT = 120;
+    private static final long DISCOVERY_TIMEOUT = 15;
+
+    @Param({"10485760", "52428800"})
+    public int size;
+
+    private File dir;
+    private File source;
+    private File received;
+    private Process sender;
+    private Process receiver;
+    private Writer console;
+    private int metricsPort;
+    private final Semaphore discovered = new Semaphore(0);
+    private final Semaphore completed = new Semaphore(0);
+    private volatile boolean corrupted;
+    private long[] baseline;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Latency {
+        public double p99ChunkMs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            p99ChunkMs = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("loopback-bench").toFile();
+        File a = new File(dir, "a");
+        File b = new File(dir, "b");
+        a.mkdirs();
+        b.mkdirs();
+        source = new File(a, "data.bin");
+        received = new File(b, "received_data.bin");
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = new FileOutputStream(source)) {
+            for (int written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+
+        int portA = freeUdpPort();
+        int portB = freeUdpPort();
+        metricsPort = freeTcpPort();
+        receiver = startNode("B", b, portB, portA, 0);
+        sender = startNode("A", a, portA, portB, metricsPort);
+        follow(receiver, line -> {
+            if (line.contains("validado com sucesso")) {
+                completed.release();
+            } else if (line.contains("corrompido")) {
+                corrupted = true;
+                completed.release();
+            }
+        });
+        follow(sender, line -> {
+            if (line.contains("Novo dispositivo encontrado: B")) discovered.release();
+        });
+        console = new OutputStreamWriter(sender.getOutputStream(), StandardCharsets.UTF_8);
+        if (!discovered.tryAcquire(DISCOVERY_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("O remetente não descobriu o receptor");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() throws IOException {
+        baseline = rttBuckets();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.destroyForcibly();
+        receiver.destroyForcibly();
+        File[] dirs = dir.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                File[] files = d.listFiles();
+                if (files != null) {
+                    for (File f : files) f.delete();
+                }
+                d.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void sendFile(Throughput throughput, Latency latency) throws Exception {
+        // Sem a cópia anterior no receptor, para não virar um delta (DeltaSync)
+        received.delete();
+        console.write("sendfile B " + source.getAbsolutePath() + "\n");
+        console.flush();
+        if (!completed.tryAcquire(TRANSFER_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Transferência não concluída em " + TRANSFER_TIMEOUT + " s");
+        }
+        if (corrupted) {
+            throw new IllegalStateException("Arquivo recebido corrompido");
+        }
+        throughput.megabytes += size / (1024.0 * 1024.0);
+        latency.p99ChunkMs = quantile(rttBuckets(), baseline, 0.99);
+    }
+
+    private Process startNode(String name, File workDir, int port, int peerPort, int metrics) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("labredes.")) {
+                cmd.add("-D" + key + "=" + System.getProperty(key));
+            }
+        }
+        cmd.add("-Dlabredes.port=" + port);
+        cmd.add("-Dlabredes.broadcast=127.0.0.1");
+        cmd.add("-Dlabredes.broadcastPort=" + peerPort);
+        cmd.add("-Dlabredes.metricsPort=" + metrics);
+        cmd.add("-Dlabredes.progress=0");
+        // O classpath do fork do JMH não traz o jar dos benchmarks: usa o local de onde o nó foi carregado
+        cmd.add("-cp");
+        cmd.add(new File(Device.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        cmd.add(Device.class.getName());
+        cmd.add(name);
+        return new ProcessBuilder(cmd).directory(workDir).redirectErrorStream(true).start();
+    }
+
+    private interface LineListener {
+        void onLine(String line);
+    }
+
+    private static void follow(Process process, LineListener listener) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    listener.onLine(line);
+                }
+            } catch (IOException ignored) {
+            }
+        }, "Loopback-stdout");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Contagens cumulativas de labredes_rtt_ms_bucket do remetente, na ordem dos limites
+    private long[] rttBuckets() throws IOException {
+        List<Long> counts = new ArrayList<>();
+        URL url = new URL("http://127.0.0.1:" + metricsPort + "/metrics");
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("labredes_rtt_ms_bucket{")) {
+                    counts.add(Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+                }
+            }
+        }
+        long[] out = new long[counts.size()];
+        for (int i = 0; i < out.length; i++) out[i] = counts.get(i);
+        return out;
+    }
+
+    // Quantil das amostras entre 'before' e 'after', interpolado linearmente dentro do balde (como o
+    // histogram_quantile do Prometheus); os limites dos baldes são 1, 2, 4, ... ms
+    static double quantile(long[] after, long[] before, double q) {
+        int n = Math.min(after.length, before.length);
+        if (n == 0) return 0;
+        long total = after[n - 1] - before[n - 1];
+        if (total == 0) return 0;
+        double rank = q * total;
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            long cumulative = after[i] - before[i];
+            if (cumulative >= rank) {
+                double lower = i == 0 ? 0 : 1L << (i - 1);
+                if (i == n - 1) return lower;
+                double upper = 1L << i;
+                return lower + (upper - lower) * (rank - previous) / Math.max(1, cumulative - previous);
+            }
+            previous = cumulative;
+        }
+        return 1L << (n - 2);
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket s = new DatagramSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static int freeTcpPort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
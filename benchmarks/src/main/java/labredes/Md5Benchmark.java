@@ -0,0 +1,62 @@
+package labredes;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Vazão do FileUtils.calculateMD5 (usado pelo remetente antes do END) por tamanho de arquivo.
+// O arquivo é lido do cache do sistema: mede o digest e a leitura, não o disco.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Md5Benchmark {
+    @Param({"65536", "1048576", "67108864"})
+    public int size;
+
+    private File file;
+
+    // Megabytes digeridos, normalizados pelo tempo: sai como MB/s ao lado de ops/s
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("md5-bench", ".bin");
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String calculateMD5(Bytes bytes) throws Exception {
+        String md5 = FileUtils.calculateMD5(file);
+        bytes.megabytes += size / (1024.0 * 1024.0);
+        return md5;
+    }
+}
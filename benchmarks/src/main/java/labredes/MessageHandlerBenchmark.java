@@ -0,0 +1,81 @@
+package labredes;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// MessageHandler.handleMessage por tipo de mensagem de texto, num nó aberto sem console (as respostas
+// saem de fato pelo socket). CHUNK e END usam uma recepção aberta com FILE: o CHUNK repetido vai
+// pelo caminho de duplicata (decodifica e confirma) e o END encontra um chunk ainda faltando.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlabredes.port=0", "-Dlabredes.broadcast=127.0.0.1",
+        "-Dlabredes.broadcastPort=9", "-Dlabredes.metricsPort=0", "-Dlabredes.log=erro"})
+@State(Scope.Benchmark)
+public class MessageHandlerBenchmark {
+    // Quem "envia" as mensagens: a porta discard, para as respostas não voltarem ao nó
+    private static final int PEER_PORT = 9;
+    private static final String FILE_NAME = "handler-bench.bin";
+
+    @Param({"HEARTBEAT", "TALK", "ACK", "NACK", "CHUNK", "END"})
+    public String type;
+
+    private UdpNode node;
+    private InetAddress peer;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        node = new UdpNode("Bench");
+        node.open();
+        peer = InetAddress.getLoopbackAddress();
+        byte[] chunk = new byte[UdpNode.CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+        String chunkMsg = "CHUNK msg1 1 " + Base64.getEncoder().encodeToString(chunk);
+        // Dois chunks: o primeiro chega, o segundo fica faltando
+        MessageHandler.handleMessage("FILE msg1 " + FILE_NAME + " " + 2 * UdpNode.CHUNK_SIZE, peer, PEER_PORT, node);
+        MessageHandler.handleMessage(chunkMsg, peer, PEER_PORT, node);
+        switch (type) {
+            case "HEARTBEAT":
+                message = "HEARTBEAT Peer";
+                break;
+            case "TALK":
+                message = "TALK msg7 uma mensagem curta de conversa";
+                break;
+            case "ACK":
+                message = "ACK msg999";
+                break;
+            case "NACK":
+                message = "NACK msg999 CHUNK_INVALIDO";
+                break;
+            case "CHUNK":
+                message = chunkMsg;
+                break;
+            case "END":
+                message = "END msg1 0123456789abcdef0123456789abcdef";
+                break;
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        node.getTransfers().cancel(MessageHandler.inboundId("msg1", peer, PEER_PORT));
+        node.close();
+        new File("received_" + FILE_NAME).delete();
+        TransferCheckpoint.sidecarOf(new File("received_" + FILE_NAME)).delete();
+    }
+
+    @Benchmark
+    public void handleMessage() {
+        MessageHandler.handleMessage(message, peer, PEER_PORT, node);
+    }
+}
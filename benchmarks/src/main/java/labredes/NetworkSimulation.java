@@ -0,0 +1,223 @@
+package labredes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Muitos nós na mesma JVM, ligados por uma MemoryNetwork com as condições dadas (ver
+// MemoryNetwork.Conditions.parse), cada um com o seu diretório temporário.
+//   membership: tempo até todos os nós conhecerem todos os outros (HEARTBEAT ou gossip, conforme
+//               -Dlabredes.membership)
+//   transfer:   pares 1→2, 3→4, ... enviam ao mesmo tempo um arquivo do tamanho dado; reporta a
+//               vazão agregada e a sobrecarga de retransmissão (retransmissões / pacotes enviados)
+// Uso: java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation membership <nós> [condições]
+//      java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation transfer <nós> <tamanho> [condições]
+// ex.: java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation membership 200 latency=2,jitter=1,loss=0.01
+//      java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation transfer 8 20m latency=5,jitter=2,loss=0.02,bw=20m
+// As condições também podem vir de -Dlabredes.netem.
+public class NetworkSimulation {
+    private static final long DISCOVERY_TIMEOUT_MS = 120_000;
+    private static final long TRANSFER_TIMEOUT_MS = 600_000;
+    private static final long POLL_MS = 50;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Uso: java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation membership <nós> [condições]");
+            System.out.println("     java -cp benchmarks/target/benchmarks.jar labredes.NetworkSimulation transfer <nós> <tamanho> [condições]");
+            return;
+        }
+        String mode = args[0];
+        // Antes de carregar UdpNode/Metrics/Log, que leem as propriedades na inicialização: sem
+        // servidor de métricas, temporizadores mais grossos e sem o log de cada pacote
+        defaultProperty("labredes.metricsPort", "0");
+        defaultProperty("labredes.timerTick", "50");
+        defaultProperty("labredes.log", "aviso");
+        if ("membership".equals(mode)) {
+            // Centenas de nós trocando só mensagens de controle: poucos workers e buffers por nó.
+            // Nas transferências ficam os do nó (buffers acima da janela de envio), senão a própria
+            // recepção descarta chunks numa rede sem perdas.
+            defaultProperty("labredes.workers", "1");
+            defaultProperty("labredes.rxBuffers", "64");
+        }
+
+        int nodes = Integer.parseInt(args[1]);
+        int conditionsArg = "transfer".equals(mode) ? 3 : 2;
+        String spec = args.length > conditionsArg ? args[conditionsArg] : System.getProperty("labredes.netem", "");
+        MemoryNetwork.Conditions conditions = MemoryNetwork.Conditions.parse(spec);
+
+        File root = Files.createTempDirectory("netsim").toFile();
+        List<UdpNode> list = new ArrayList<>();
+        MemoryNetwork network = new MemoryNetwork(conditions);
+        try {
+            System.out.println(">>> [SIM] " + nodes + " nós, rede: " + conditions);
+            long start = System.nanoTime();
+            for (int i = 1; i <= nodes; i++) {
+                File dir = new File(root, "node" + i);
+                dir.mkdirs();
+                UdpNode node = new UdpNode("Node" + i, network.open(MemoryNetwork.addressOf(i)), dir);
+                node.open();
+                list.add(node);
+            }
+            System.out.println(String.format(">>> [SIM] Nós abertos em %.0f ms", (System.nanoTime() - start) / 1e6));
+
+            switch (mode) {
+                case "membership":
+                    membership(list, start);
+                    break;
+                case "transfer":
+                    transfer(list, TokenBucket.parseRate(args[2]), root);
+                    break;
+                default:
+                    System.out.println("[ERRO] Modo desconhecido: " + mode);
+            }
+            System.out.println(">>> [SIM] Rede: " + network.summary());
+            long noBuffer = 0;
+            long queueFull = 0;
+            for (UdpNode node : list) {
+                noBuffer += node.getPipeline().getDroppedNoBuffer();
+                queueFull += node.getPipeline().getDroppedQueueFull();
+            }
+            System.out.println(">>> [SIM] Descartados na recepção dos nós: sem buffer=" + noBuffer + " fila cheia=" + queueFull);
+        } finally {
+            for (UdpNode node : list) {
+                node.close();
+            }
+            network.close();
+            delete(root);
+        }
+        System.exit(0);
+    }
+
+    private static void membership(List<UdpNode> nodes, long start) throws InterruptedException {
+        int n = nodes.size();
+        long deadline = start + DISCOVERY_TIMEOUT_MS * 1_000_000;
+        long half = 0;
+        while (System.nanoTime() < deadline) {
+            int complete = 0;
+            long links = 0;
+            for (UdpNode node : nodes) {
+                int known = node.getDevices().size();
+                links += known;
+                if (known == n - 1) complete++;
+            }
+            if (half == 0 && links * 2 >= (long) n * (n - 1)) {
+                half = System.nanoTime();
+            }
+            if (complete == n) {
+                System.out.println(String.format(">>> [SIM] Metade dos vínculos em %.0f ms; todos se conhecem em %.0f ms",
+                        (half - start) / 1e6, (System.nanoTime() - start) / 1e6));
+                return;
+            }
+            Thread.sleep(POLL_MS);
+        }
+        long links = 0;
+        for (UdpNode node : nodes) links += node.getDevices().size();
+        System.out.println(String.format(">>> [SIM] Sem convergência em %d s: %d de %d vínculos",
+                DISCOVERY_TIMEOUT_MS / 1000, links, (long) n * (n - 1)));
+    }
+
+    private static void transfer(List<UdpNode> nodes, long size, File root) throws Exception {
+        int pairs = nodes.size() / 2;
+        if (pairs == 0) {
+            System.out.println("[ERRO] São necessários ao menos 2 nós");
+            return;
+        }
+        File source = new File(root, "data.bin");
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = new FileOutputStream(source)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        // Cada remetente precisa conhecer o seu receptor antes do sendfile
+        long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT_MS;
+        for (int p = 0; p < pairs; p++) {
+            String target = nodes.get(2 * p + 1).getDeviceName();
+            while (nodes.get(2 * p).getDevices().get(target) == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.out.println("[ERRO] Node" + (2 * p + 1) + " não descobriu " + target);
+                    return;
+                }
+                Thread.sleep(POLL_MS);
+            }
+        }
+
+        long packetsBefore = packetsOut(nodes);
+        long retxBefore = retransmissions(nodes);
+        long start = System.nanoTime();
+        Transfer[] transfers = new Transfer[pairs];
+        for (int p = 0; p < pairs; p++) {
+            transfers[p] = nodes.get(2 * p).sendFile(nodes.get(2 * p + 1).getDeviceName(), source.getPath());
+        }
+
+        deadline = System.currentTimeMillis() + TRANSFER_TIMEOUT_MS;
+        int done = 0;
+        int failed = 0;
+        while (done < pairs && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MS);
+            done = 0;
+            failed = 0;
+            for (Transfer t : transfers) {
+                Transfer.State state = t == null ? Transfer.State.FALHA : t.getState();
+                if (state == Transfer.State.CONCLUIDA) {
+                    done++;
+                } else if (state == Transfer.State.FALHA || state == Transfer.State.CANCELADA) {
+                    done++;
+                    failed++;
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long packets = packetsOut(nodes) - packetsBefore;
+        long retx = retransmissions(nodes) - retxBefore;
+
+        // O tamanho não diz nada (ReceiveStorage pré-aloca o arquivo): compara o conteúdo pelo hash
+        String expected = FileUtils.calculateMD5(source);
+        int intact = 0;
+        for (int p = 0; p < pairs; p++) {
+            File received = MessageHandler.receivedFile(source.getName(), nodes.get(2 * p + 1));
+            if (received.isFile() && expected.equals(FileUtils.calculateMD5(received))) intact++;
+        }
+        System.out.println(String.format(">>> [SIM] %d de %d transferências concluídas (%d falhas, %d arquivos íntegros) em %.2f s",
+                done - failed, pairs, failed, intact, seconds));
+        System.out.println(String.format(">>> [SIM] Vazão agregada: %.2f MB/s",
+                (double) size * (done - failed) / (1024 * 1024) / seconds));
+        System.out.println(String.format(">>> [SIM] Retransmissões: %d de %d pacotes enviados (%.2f%%)",
+                retx, packets, packets == 0 ? 0 : 100.0 * retx / packets));
+    }
+
+    // Métricas são de cada nó: a simulação soma as de todos
+    private static long packetsOut(List<UdpNode> nodes) {
+        long n = 0;
+        for (UdpNode node : nodes) n += node.getMetrics().getPacketsOut();
+        return n;
+    }
+
+    private static long retransmissions(List<UdpNode> nodes) {
+        long n = 0;
+        for (UdpNode node : nodes) n += node.getMetrics().getRetransmissions();
+        return n;
+    }
+
+    private static void defaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,83 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+// Compara o custo de codificar + decodificar um CHUNK no protocolo de texto (Base64)
+// e no protocolo binário.
+// Uso: java -cp benchmarks/target/benchmarks.jar labredes.ProtocolBenchmark [pacotes] [tamanhoChunk]
+public class ProtocolBenchmark {
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        byte[] chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+
+        // Aquecimento do JIT
+        runText(chunk, packets / 5);
+        runBinary(chunk, packets / 5);
+
+        report("texto+Base64", chunkSize, packets, runText(chunk, packets));
+        report("binário v" + FrameCodec.VERSION, chunkSize, packets, runBinary(chunk, packets));
+    }
+
+    // Retorna {nanos, bytesNoFio}
+    private static long[] runText(byte[] chunk, int packets) {
+        long wire = 0;
+        long start = System.nanoTime();
+        for (int seq = 1; seq <= packets; seq++) {
+            // Lado do remetente (como o sendFile legado)
+            String msg = "CHUNK msg1 " + seq + " " + Base64.getEncoder().encodeToString(chunk);
+            byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+            wire += data.length;
+
+            // Lado do receptor (como o handleMessage/handleChunk legado)
+            String received = new String(data, 0, data.length, StandardCharsets.UTF_8);
+            String[] parts = received.split(" ", 2);
+            String[] tokens = received.split(" ", 4);
+            int parsedSeq = Integer.parseInt(tokens[2]);
+            byte[] payload = Base64.getDecoder().decode(tokens[3]);
+            sink += parts.length + parsedSeq + payload[payload.length - 1];
+        }
+        return new long[] { System.nanoTime() - start, wire };
+    }
+
+    private static long[] runBinary(byte[] chunk, int packets) {
+        ByteBuffer out = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + chunk.length);
+        byte[] rx = new byte[FrameCodec.HEADER_SIZE + chunk.length];
+        ByteBuffer in = ByteBuffer.wrap(rx);
+        FrameCodec.Frame frame = new FrameCodec.Frame();
+        byte[] payload = new byte[chunk.length];
+        long wire = 0;
+        long start = System.nanoTime();
+        for (int seq = 1; seq <= packets; seq++) {
+            FrameCodec.encode(out, FrameCodec.TYPE_DATA, (byte) 0, 1L, seq, chunk, 0, chunk.length);
+            int len = out.limit();
+            wire += len;
+
+            // Simula a chegada do datagrama no buffer de recepção reutilizado
+            System.arraycopy(out.array(), 0, rx, 0, len);
+            in.clear().limit(len);
+            if (!FrameCodec.decode(in, frame)) {
+                throw new IllegalStateException("quadro inválido seq=" + seq);
+            }
+            frame.copyPayload(payload, 0);
+            sink += frame.seq + payload[payload.length - 1];
+        }
+        return new long[] { System.nanoTime() - start, wire };
+    }
+
+    private static void report(String name, int chunkSize, int packets, long[] result) {
+        double secs = result[0] / 1e9;
+        double pps = packets / secs;
+        double payloadMBps = (double) packets * chunkSize / secs / (1024 * 1024);
+        double wireMBps = result[1] / secs / (1024 * 1024);
+        System.out.printf("%-14s pacotes/s=%,12.0f  payload=%8.1f MB/s  fio=%8.1f MB/s  bytes/pacote=%d%n",
+                name, pps, payloadMBps, wireMBps, result[1] / packets);
+    }
+}
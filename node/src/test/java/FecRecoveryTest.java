@@ -0,0 +1,49 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Com FEC (-Dlabredes.fec=4, na execução fec-test do surefire), um chunk perdido por grupo é
+// reconstruído pela paridade no receptor, pelos nós reais sobre a MemoryNetwork, sem nenhum reenvio
+// do remetente
+class FecRecoveryTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    @TempDir
+    File root;
+
+    @Test
+    void oneLostChunkPerGroupIsRebuiltFromParity() throws Exception {
+        int group = Fec.GROUP;
+        assertTrue(group > 1, "rodar pela execução fec-test do surefire (-Dlabredes.fec)");
+        try (TestNodes net = new TestNodes(root, 2, new MemoryNetwork.Conditions())) {
+            net.awaitDiscovery(TIMEOUT_MS);
+            File file = TestNodes.randomFile(root, "fec.bin", 200_000, 7);
+
+            // Perde, uma única vez, o segundo chunk de cada grupo (o primeiro envio de cada seq)
+            Set<Integer> dropped = ConcurrentHashMap.newKeySet();
+            net.network.setDropRule(buf -> FrameCodec.isBinary(buf)
+                    && buf.get(buf.position() + 2) == FrameCodec.TYPE_DATA
+                    && isSecondOfGroup(buf.getInt(buf.position() + 12), group)
+                    && dropped.add(buf.getInt(buf.position() + 12)));
+
+            UdpNode sender = net.get(1);
+            Transfer t = sender.sendFile("Node2", file.getPath());
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(t, TIMEOUT_MS));
+
+            File received = MessageHandler.receivedFile(file.getName(), net.get(2));
+            assertEquals(FileUtils.calculateMD5(file), FileUtils.calculateMD5(received));
+            assertTrue(dropped.size() > 10, "poucos chunks perdidos: " + dropped.size());
+            assertEquals(dropped.size(), net.network.getLost());
+            assertEquals(0, sender.getMetrics().retxWindow.sum(), "chunks reenviados em vez de reconstruídos");
+        }
+    }
+
+    private static boolean isSecondOfGroup(int seq, int group) {
+        return seq == Fec.firstOf(seq, group) + 1;
+    }
+}
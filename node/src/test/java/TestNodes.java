@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Nós numa MemoryNetwork para os testes, cada um com um diretório próprio em 'root'
+final class TestNodes implements AutoCloseable {
+    private static final long POLL_MS = 20;
+
+    final MemoryNetwork network;
+    final List<UdpNode> nodes = new ArrayList<>();
+
+    TestNodes(File root, int count, MemoryNetwork.Conditions conditions) throws IOException {
+        network = new MemoryNetwork(conditions);
+        for (int i = 1; i <= count; i++) {
+            File dir = new File(root, "node" + i);
+            dir.mkdirs();
+            UdpNode node = new UdpNode("Node" + i, network.open(MemoryNetwork.addressOf(i)), dir);
+            node.open();
+            nodes.add(node);
+        }
+        // O primeiro HEARTBEAT de cada nó sai ao abrir, antes dos seguintes existirem
+        for (UdpNode node : nodes) {
+            node.sendHeartbeat();
+        }
+    }
+
+    UdpNode get(int n) {
+        return nodes.get(n - 1);
+    }
+
+    void awaitDiscovery(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (UdpNode node : nodes) {
+            while (node.getDevices().size() < nodes.size() - 1) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError(node.getDeviceName() + " não descobriu os outros nós");
+                }
+                Thread.sleep(POLL_MS);
+            }
+        }
+    }
+
+    // Espera o fim da transferência e retorna o estado final
+    static Transfer.State awaitFinished(Transfer transfer, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!transfer.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MS);
+        }
+        return transfer.getState();
+    }
+
+    static File randomFile(File dir, String name, int size, long seed) throws IOException {
+        File f = new File(dir, name);
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        try (OutputStream out = new FileOutputStream(f)) {
+            out.write(data);
+        }
+        return f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (UdpNode node : nodes) {
+            node.close();
+        }
+        network.close();
+    }
+}
@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Protocolo de texto (sem resposta ao OFFER): o END sai logo após o último chunk, e o ACK de um
+// chunk ("msgN-seqM") não pode ser tomado pelo ACK do END enquanto há chunks em retransmissão
+class TextProtocolTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    @TempDir
+    File root;
+
+    @Test
+    void chunkLostBeforeEndDoesNotCompleteEarly() throws Exception {
+        try (TestNodes net = new TestNodes(root, 2, new MemoryNetwork.Conditions())) {
+            net.awaitDiscovery(TIMEOUT_MS);
+            File file = TestNodes.randomFile(root, "texto.bin", 20_000, 11);
+
+            // Sem OFFER o remetente cai no protocolo de texto; o primeiro envio do chunk 2 se perde
+            AtomicBoolean dropped = new AtomicBoolean();
+            net.network.setDropRule(buf -> {
+                String text = startOf(buf);
+                return text.startsWith("OFFER ")
+                        || (text.startsWith("CHUNK msg1 2 ") && dropped.compareAndSet(false, true));
+            });
+
+            Transfer sent = net.get(1).sendFile("Node2", file.getPath());
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(sent, TIMEOUT_MS));
+            assertTrue(dropped.get());
+
+            // O remetente só conclui com o END confirmado, ou seja, com a recepção validada
+            Transfer received = net.get(2).getTransfers().list().iterator().next();
+            assertEquals(Transfer.Direction.RECEPCAO, received.getDirection());
+            assertEquals(Transfer.State.CONCLUIDA, received.getState());
+            assertEquals(FileUtils.calculateMD5(file),
+                    FileUtils.calculateMD5(MessageHandler.receivedFile(file.getName(), net.get(2))));
+        }
+    }
+
+    private static String startOf(ByteBuffer buf) {
+        byte[] head = new byte[Math.min(buf.remaining(), 16)];
+        buf.get(head);
+        return new String(head, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Cada nó numera os seus envios a partir de msg1: recepções e envios com o mesmo ID não se misturam
+class TransferIdTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    @TempDir
+    File root;
+
+    @Test
+    void sameIdFromTwoSendersAndInBothDirections() throws Exception {
+        try (TestNodes net = new TestNodes(root, 3, new MemoryNetwork.Conditions())) {
+            net.awaitDiscovery(TIMEOUT_MS);
+            File a = TestNodes.randomFile(root, "a.bin", 300_000, 1);
+            File b = TestNodes.randomFile(root, "b.bin", 200_000, 2);
+            File c = TestNodes.randomFile(root, "c.bin", 100_000, 3);
+
+            // Node1 e Node2 enviam o seu msg1 a Node3, que ao mesmo tempo envia o dele a Node1
+            Transfer fromA = net.get(1).sendFile("Node3", a.getPath());
+            Transfer fromB = net.get(2).sendFile("Node3", b.getPath());
+            Transfer fromC = net.get(3).sendFile("Node1", c.getPath());
+            assertEquals("msg1", fromA.getId());
+            assertEquals("msg1", fromB.getId());
+            assertEquals("msg1", fromC.getId());
+
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(fromA, TIMEOUT_MS));
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(fromB, TIMEOUT_MS));
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(fromC, TIMEOUT_MS));
+            assertSameContent(a, MessageHandler.receivedFile(a.getName(), net.get(3)));
+            assertSameContent(b, MessageHandler.receivedFile(b.getName(), net.get(3)));
+            assertSameContent(c, MessageHandler.receivedFile(c.getName(), net.get(1)));
+
+            // Duas recepções em Node3 e uma em Node1, sem substituir o envio de mesmo ID
+            assertEquals(3, net.get(3).getTransfers().list().size());
+            assertEquals(2, net.get(1).getTransfers().list().size());
+        }
+    }
+
+    @Test
+    void cancelNackOnlyAffectsTheSendersTransfer() throws Exception {
+        try (TestNodes net = new TestNodes(root, 3, MemoryNetwork.Conditions.parse("bw=1m"))) {
+            net.awaitDiscovery(TIMEOUT_MS);
+            File a = TestNodes.randomFile(root, "a.bin", 1_000_000, 1);
+            File b = TestNodes.randomFile(root, "b.bin", 1_000_000, 2);
+            File c = TestNodes.randomFile(root, "c.bin", 1_000_000, 3);
+
+            // Node2 recebe o msg1 de Node1 e o de Node3 e envia o seu msg1 a Node1
+            Transfer fromA = net.get(1).sendFile("Node2", a.getPath());
+            Transfer fromB = net.get(2).sendFile("Node1", b.getPath());
+            Transfer fromC = net.get(3).sendFile("Node2", c.getPath());
+            String fromCAtB = MessageHandler.inboundId("msg1", MemoryNetwork.addressOf(3).getAddress(), MemoryNetwork.PORT);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (net.get(2).getTransfers().list().size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // "NACK msg1 CANCELADO" de Node3 só encerra a recepção que veio dele
+            assertTrue(net.get(3).getTransfers().cancel("msg1"));
+            assertEquals(Transfer.State.CANCELADA, fromC.getState());
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(fromA, TIMEOUT_MS));
+            assertEquals(Transfer.State.CONCLUIDA, TestNodes.awaitFinished(fromB, TIMEOUT_MS));
+            assertSameContent(a, MessageHandler.receivedFile(a.getName(), net.get(2)));
+            assertSameContent(b, MessageHandler.receivedFile(b.getName(), net.get(1)));
+            Transfer cancelled = null;
+            for (Transfer t : net.get(2).getTransfers().list()) {
+                if (t.getId().equals(fromCAtB)) cancelled = t;
+            }
+            assertNotNull(cancelled);
+            assertEquals(Transfer.State.CANCELADA, TestNodes.awaitFinished(cancelled, TIMEOUT_MS));
+        }
+    }
+
+    private static void assertSameContent(File expected, File actual) throws Exception {
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()),
+                actual.getName());
+    }
+}